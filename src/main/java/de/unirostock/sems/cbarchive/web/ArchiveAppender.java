@@ -0,0 +1,794 @@
+package de.unirostock.sems.cbarchive.web;
+/*
+CombineArchiveWeb - a WebInterface to read/create/write/manipulate/... COMBINE archives
+Copyright (C) 2014  SEMS Group
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import org.jdom2.Document;
+import org.jdom2.Element;
+import org.jdom2.JDOMException;
+import org.jdom2.input.SAXBuilder;
+
+import de.binfalse.bflog.LOGGER;
+import de.unirostock.sems.cbarchive.Utils;
+import de.unirostock.sems.cbarchive.web.dataholder.StatisticData;
+
+/**
+ * Adds files to an archive, without rewriting the whole archive file.
+ *
+ * The CombineArchive library writes archives through a zip file system, which copies every entry
+ * into a new file on close. To add a small file to a big archive, the changes are made in a
+ * skeleton of the archive instead: a small zip with empty placeholders for all entries, but the
+ * full manifest and meta data files. After the skeleton got packed, the new and replaced entries,
+ * the manifest and the meta data are copied as they are to the end of the archive file, replacing
+ * its old central directory, and a new central directory is written behind them.
+ *
+ * The old central directory is saved in a journal next to the archive first, so an interrupted
+ * append can be undone, see {@link #recover(File)}. Replaced entries stay in the file as unused
+ * bytes. The archive is rewritten as a whole instead, if the unused bytes would exceed
+ * {@link Fields#APPEND_MAX_DEAD_SPACE} percent of the file. Archives, which need zip64 extensions,
+ * are always rewritten.
+ */
+public class ArchiveAppender {
+
+	// Singleton stuff
+	private static volatile ArchiveAppender instance = null;
+
+	/**
+	 * Returns the Singleton instance
+	 * @return the ArchiveAppender
+	 */
+	public static ArchiveAppender getInstance() {
+		if( instance == null ) {
+			synchronized (ArchiveAppender.class) {
+				if( instance == null )
+					instance = new ArchiveAppender();
+			}
+		}
+
+		return instance;
+	}
+
+	// --------------------------------------------------------------------------------
+
+	/** appended to the archive id, contains the property separator, so the index recovery ignores it */
+	public static final String JOURNAL_EXTENSION = ".append";
+
+	private static final int JOURNAL_MAGIC = 0x43415741;
+	private static final int JOURNAL_VERSION = 1;
+
+	private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+	private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+	private static final int END_SIGNATURE = 0x06054b50;
+	private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+	private static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+
+	private static final int LOCAL_HEADER_SIZE = 30;
+	private static final int CENTRAL_HEADER_SIZE = 46;
+	private static final int END_SIZE = 22;
+	private static final int ZIP64_LOCATOR_SIZE = 20;
+	private static final int MAX_COMMENT_SIZE = 0xFFFF;
+	private static final int ZIP64_EXTRA_ID = 0x0001;
+	private static final long MAX_ENTRIES = 0xFFFFL;
+	private static final long MAX_OFFSET = 0xFFFFFFFFL;
+
+	private static final String MANIFEST_NAME = "manifest.xml";
+
+	/** number of archives, changed in place */
+	private final AtomicLong appends = new AtomicLong(0);
+	/** number of archives, which were rewritten as a whole */
+	private final AtomicLong rewrites = new AtomicLong(0);
+	/** bytes written into archive files */
+	private final AtomicLong bytesWritten = new AtomicLong(0);
+	/** size of the files, which were added to archives */
+	private final AtomicLong payloadBytes = new AtomicLong(0);
+
+	private ArchiveAppender() {
+	}
+
+	/**
+	 * Prepares to add files to an archive in place. The caller has to hold the exclusive archive lock
+	 * until the append is committed or discarded, and nobody else may have the archive opened.
+	 *
+	 * @param archiveFile the archive file
+	 * @return the append or null, if the archive cannot be changed in place
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public Append prepare( File archiveFile ) throws IOException {
+
+		if( Fields.APPEND_MAX_DEAD_SPACE <= 0 )
+			return null;
+
+		CentralDirectory directory = null;
+		try( FileChannel channel = FileChannel.open(archiveFile.toPath(), StandardOpenOption.READ) ) {
+			directory = CentralDirectory.read(channel);
+			if( directory == null ) {
+				LOGGER.debug("cannot add files in place to ", archiveFile, ", zip64 or unknown format");
+				return null;
+			}
+			directory.readSpans(channel);
+		}
+
+		File skeletonFile = File.createTempFile(Fields.TEMP_FILE_PREFIX, ".zip");
+		try {
+			if( writeSkeleton(archiveFile, directory, skeletonFile) == false ) {
+				skeletonFile.delete();
+				return null;
+			}
+		}
+		catch (IOException | RuntimeException e) {
+			skeletonFile.delete();
+			throw e;
+		}
+
+		return new Append(archiveFile, directory, skeletonFile);
+	}
+
+	/**
+	 * Counts an archive, which was rewritten as a whole.
+	 *
+	 * @param bytesWritten size of the new archive file
+	 * @param payloadBytes size of the added files
+	 */
+	public void countRewrite( long bytesWritten, long payloadBytes ) {
+		this.rewrites.incrementAndGet();
+		this.bytesWritten.addAndGet(bytesWritten);
+		this.payloadBytes.addAndGet(payloadBytes);
+	}
+
+	private void countAppend( long bytesWritten, long payloadBytes ) {
+		this.appends.incrementAndGet();
+		this.bytesWritten.addAndGet(bytesWritten);
+		this.payloadBytes.addAndGet(payloadBytes);
+	}
+
+	/**
+	 * Adds the write statistics.
+	 *
+	 * @param stats the statistic data to fill
+	 */
+	public void fillStats( StatisticData stats ) {
+		long written = bytesWritten.get();
+		long payload = payloadBytes.get();
+
+		stats.setArchiveAppends( appends.get() );
+		stats.setArchiveRewrites( rewrites.get() );
+		stats.setArchiveBytesWritten(written);
+		stats.setArchivePayloadBytes(payload);
+		if( payload > 0 )
+			stats.setArchiveWriteAmplification( (double) written / payload );
+	}
+
+	/**
+	 * Checks if an append to the archive was interrupted.
+	 *
+	 * @param archiveFile the archive file
+	 * @return true, if {@link #recover(File)} has to be called
+	 */
+	public static boolean needsRecovery( File archiveFile ) {
+		return getJournalFile(archiveFile).exists();
+	}
+
+	/**
+	 * Undoes an interrupted append, if there is one. The caller has to hold the exclusive archive lock.
+	 *
+	 * @param archiveFile the archive file
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static void recover( File archiveFile ) throws IOException {
+
+		File journalFile = getJournalFile(archiveFile);
+		if( journalFile.exists() == false )
+			return;
+
+		Journal journal = Journal.read(journalFile);
+		if( journal != null ) {
+			LOGGER.warn("undo interrupted append to ", archiveFile);
+			journal.restore(archiveFile);
+		}
+		// an incomplete journal was written, before the archive got touched
+
+		Files.delete( journalFile.toPath() );
+	}
+
+	/**
+	 * Removes the journal of an archive, if there is one.
+	 *
+	 * @param archiveFile the archive file
+	 */
+	public static void deleteJournal( File archiveFile ) {
+		try {
+			Files.deleteIfExists( getJournalFile(archiveFile).toPath() );
+		} catch (IOException e) {
+			LOGGER.warn(e, "Cannot delete append journal of ", archiveFile);
+		}
+	}
+
+	private static File getJournalFile( File archiveFile ) {
+		return new File( archiveFile.getParentFile(), archiveFile.getName() + JOURNAL_EXTENSION );
+	}
+
+	/**
+	 * Writes the skeleton of an archive: the manifest and all meta data files with their content,
+	 * an empty placeholder for every other entry.
+	 *
+	 * @return false, if the archive cannot be read this way
+	 */
+	private static boolean writeSkeleton( File archiveFile, CentralDirectory directory, File skeletonFile ) throws IOException {
+
+		try( ZipFile zipFile = new ZipFile(archiveFile);
+				ZipOutputStream out = new ZipOutputStream( new FileOutputStream(skeletonFile) ) ) {
+
+			Set<String> metaFiles = readMetaFileNames(zipFile);
+			if( metaFiles == null )
+				return false;
+			directory.fullCopies.addAll(metaFiles);
+
+			for( Record record : directory.records.values() ) {
+				ZipEntry entry = new ZipEntry(record.name);
+				out.putNextEntry(entry);
+				if( directory.fullCopies.contains(record.name) ) {
+					ZipEntry source = zipFile.getEntry(record.name);
+					try( InputStream in = zipFile.getInputStream(source) ) {
+						byte[] buffer = new byte[8192];
+						int read;
+						while( (read = in.read(buffer)) != -1 )
+							out.write(buffer, 0, read);
+					}
+				}
+				out.closeEntry();
+			}
+		}
+		catch (ZipException e) {
+			// e.g. duplicate or invalid entry names, the zip file system has to deal with them
+			LOGGER.warn(e, "Cannot write skeleton of ", archiveFile);
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Returns the manifest and all meta data files listed in the manifest.
+	 *
+	 * @return the names or null, if the manifest is not readable
+	 */
+	private static Set<String> readMetaFileNames( ZipFile zipFile ) throws IOException {
+
+		ZipEntry manifestEntry = zipFile.getEntry(MANIFEST_NAME);
+		if( manifestEntry == null )
+			return null;
+
+		Document manifest = null;
+		try( InputStream in = zipFile.getInputStream(manifestEntry) ) {
+			manifest = new SAXBuilder().build(in);
+		} catch (JDOMException e) {
+			LOGGER.warn(e, "Cannot parse manifest of ", zipFile.getName());
+			return null;
+		}
+
+		Set<String> names = new HashSet<String>();
+		names.add(MANIFEST_NAME);
+		String metaDataFormat = Utils.getOmexMetaDataUri().toString();
+		for( Element content : manifest.getRootElement().getChildren() ) {
+			String location = content.getAttributeValue("location");
+			if( location == null || metaDataFormat.equals( content.getAttributeValue("format") ) == false )
+				continue;
+
+			if( location.startsWith("./") )
+				location = location.substring(2);
+			else if( location.startsWith("/") )
+				location = location.substring(1);
+			names.add(location);
+		}
+
+		return names;
+	}
+
+	// --------------------------------------------------------------------------------
+
+	/**
+	 * Files added to one archive. Open {@link #getSkeletonFile()} as CombineArchive, add the files,
+	 * pack and close it and {@link #commit(long)} the changes to the archive afterwards.
+	 * Has to be {@link #discard()}ed in any case.
+	 */
+	public class Append {
+
+		private final File archiveFile;
+		private final CentralDirectory directory;
+		private final File skeletonFile;
+		/** entries, which got new content */
+		private final Set<String> touched = new HashSet<String>();
+
+		private Append( File archiveFile, CentralDirectory directory, File skeletonFile ) {
+			this.archiveFile = archiveFile;
+			this.directory = directory;
+			this.skeletonFile = skeletonFile;
+		}
+
+		public File getSkeletonFile() {
+			return skeletonFile;
+		}
+
+		/**
+		 * Marks an entry, which was added or replaced in the skeleton.
+		 *
+		 * @param filePath the path of the entry in the archive
+		 */
+		public void touch( String filePath ) {
+			touched.add( filePath.startsWith("/") ? filePath.substring(1) : filePath );
+		}
+
+		/**
+		 * Writes the changes of the packed and closed skeleton into the archive.
+		 *
+		 * @param payloadBytes size of the added files, for the statistics
+		 * @throws IOException Signals that an I/O exception has occurred.
+		 */
+		public void commit( long payloadBytes ) throws IOException {
+
+			CentralDirectory skeleton = null;
+			try( FileChannel channel = FileChannel.open(skeletonFile.toPath(), StandardOpenOption.READ) ) {
+				skeleton = CentralDirectory.read(channel);
+				if( skeleton != null )
+					skeleton.readSpans(channel);
+			}
+			if( skeleton == null ) {
+				// e.g. the added files need zip64
+				rewrite(payloadBytes);
+				return;
+			}
+
+			// entries of the new archive: either the old one or the one from the skeleton
+			List<Record> kept = new ArrayList<Record>();
+			List<Record> taken = new ArrayList<Record>();
+			long deadBytes = directory.deadBytes;
+			for( Record record : directory.records.values() ) {
+				Record replacement = skeleton.records.get(record.name);
+				if( replacement == null || isTaken(record.name) )
+					deadBytes += record.span;
+				else
+					kept.add(record);
+			}
+			long appendedBytes = 0;
+			long directorySize = 0;
+			for( Record record : skeleton.records.values() ) {
+				if( isTaken(record.name) || directory.records.containsKey(record.name) == false ) {
+					taken.add(record);
+					appendedBytes += record.span;
+				}
+			}
+			for( Record record : kept )
+				directorySize += record.header.length;
+			for( Record record : taken )
+				directorySize += record.header.length;
+
+			long directoryOffset = directory.offset + appendedBytes;
+			long length = directoryOffset + directorySize + END_SIZE + directory.comment.length;
+			if( kept.size() + taken.size() > MAX_ENTRIES || directoryOffset + directorySize > MAX_OFFSET ) {
+				LOGGER.debug("archive ", archiveFile, " would need zip64, rewrite it");
+				rewrite(payloadBytes);
+			}
+			else if( deadBytes * 100 > length * Fields.APPEND_MAX_DEAD_SPACE ) {
+				LOGGER.debug("archive ", archiveFile, " would have ", deadBytes, " unused bytes, rewrite it");
+				rewrite(payloadBytes);
+			}
+			else {
+				append(kept, taken, directoryOffset, directorySize, length);
+				countAppend(length - directory.offset, payloadBytes);
+			}
+		}
+
+		/**
+		 * Deletes the skeleton.
+		 */
+		public void discard() {
+			if( skeletonFile.delete() == false && skeletonFile.exists() )
+				LOGGER.warn("Cannot delete archive skeleton ", skeletonFile);
+		}
+
+		private boolean isTaken( String name ) {
+			return touched.contains(name) || directory.fullCopies.contains(name);
+		}
+
+		private void append( List<Record> kept, List<Record> taken, long directoryOffset, long directorySize, long length ) throws IOException {
+
+			File journalFile = getJournalFile(archiveFile);
+			Journal journal = null;
+			try( FileChannel channel = FileChannel.open(archiveFile.toPath(), StandardOpenOption.READ) ) {
+				journal = Journal.create(channel, directory.offset);
+			}
+			journal.write(journalFile);
+
+			try( FileChannel out = FileChannel.open(archiveFile.toPath(), StandardOpenOption.WRITE);
+					FileChannel in = FileChannel.open(skeletonFile.toPath(), StandardOpenOption.READ) ) {
+
+				// the new and replaced entries, as they were written into the skeleton
+				long position = directory.offset;
+				ByteBuffer directoryBuffer = ByteBuffer.allocate( (int) directorySize + END_SIZE + directory.comment.length ).order(ByteOrder.LITTLE_ENDIAN);
+				for( Record record : kept )
+					directoryBuffer.put(record.header);
+				for( Record record : taken ) {
+					transfer(in, record.offset, record.span, out, position);
+					byte[] header = record.header.clone();
+					ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN).putInt(42, (int) position);
+					directoryBuffer.put(header);
+					position += record.span;
+				}
+
+				// end of central directory
+				directoryBuffer.putInt(END_SIGNATURE);
+				directoryBuffer.putShort( (short) 0 );
+				directoryBuffer.putShort( (short) 0 );
+				directoryBuffer.putShort( (short) (kept.size() + taken.size()) );
+				directoryBuffer.putShort( (short) (kept.size() + taken.size()) );
+				directoryBuffer.putInt( (int) directorySize );
+				directoryBuffer.putInt( (int) directoryOffset );
+				directoryBuffer.putShort( (short) directory.comment.length );
+				directoryBuffer.put(directory.comment);
+				directoryBuffer.flip();
+
+				out.position(position);
+				while( directoryBuffer.hasRemaining() )
+					out.write(directoryBuffer);
+				out.truncate(length);
+				out.force(true);
+			}
+			catch (IOException | RuntimeException e) {
+				LOGGER.error(e, "Cannot append to archive ", archiveFile, ", undo");
+				journal.restore(archiveFile);
+				Files.delete( journalFile.toPath() );
+				throw e;
+			}
+
+			Files.delete( journalFile.toPath() );
+			LOGGER.debug("appended ", taken.size(), " entries to ", archiveFile);
+		}
+
+		/**
+		 * Applies the changes of the skeleton through a zip file system, which rewrites the whole archive.
+		 */
+		private void rewrite( long payloadBytes ) throws IOException {
+
+			try( FileSystem target = FileSystems.newFileSystem(archiveFile.toPath(), (ClassLoader) null);
+					FileSystem source = FileSystems.newFileSystem(skeletonFile.toPath(), (ClassLoader) null) ) {
+
+				// removed entries, files first, so their directories are empty afterwards
+				for( String name : directory.records.keySet() ) {
+					if( name.endsWith("/") == false && Files.exists( source.getPath(name) ) == false )
+						Files.deleteIfExists( target.getPath(name) );
+				}
+				for( String name : directory.records.keySet() ) {
+					if( name.endsWith("/") && Files.exists( source.getPath(name) ) == false ) {
+						try {
+							Files.deleteIfExists( target.getPath(name) );
+						} catch (DirectoryNotEmptyException e) {
+							// still contains other entries
+						}
+					}
+				}
+
+				// new and replaced entries
+				for( Path root : source.getRootDirectories() ) {
+					for( Path path : listFiles(root) ) {
+						String name = root.relativize(path).toString();
+						if( isTaken(name) == false && directory.records.containsKey(name) )
+							continue;
+
+						Path targetPath = target.getPath(name);
+						if( targetPath.getParent() != null )
+							Files.createDirectories( targetPath.getParent() );
+						Files.copy( path, targetPath, StandardCopyOption.REPLACE_EXISTING );
+					}
+				}
+			}
+
+			countRewrite(archiveFile.length(), payloadBytes);
+		}
+	}
+
+	private static List<Path> listFiles( Path directory ) throws IOException {
+		List<Path> files = new ArrayList<Path>();
+		try( DirectoryStream<Path> stream = Files.newDirectoryStream(directory) ) {
+			for( Path path : stream ) {
+				if( Files.isDirectory(path) )
+					files.addAll( listFiles(path) );
+				else
+					files.add(path);
+			}
+		}
+		return files;
+	}
+
+	private static void transfer( FileChannel in, long position, long count, FileChannel out, long target ) throws IOException {
+		out.position(target);
+		while( count > 0 ) {
+			long transferred = in.transferTo(position, count, out);
+			if( transferred <= 0 )
+				throw new EOFException("Unexpected end of archive skeleton");
+			position += transferred;
+			count -= transferred;
+		}
+	}
+
+	private static void readFully( FileChannel channel, ByteBuffer buffer, long position ) throws IOException {
+		while( buffer.hasRemaining() ) {
+			int read = channel.read(buffer, position);
+			if( read < 0 )
+				throw new EOFException("Unexpected end of archive");
+			position += read;
+		}
+		buffer.flip();
+	}
+
+	// --------------------------------------------------------------------------------
+
+	/**
+	 * One entry of a central directory.
+	 */
+	private static class Record {
+		private String name;
+		/** the central directory header as it is */
+		private byte[] header;
+		/** offset of the local header */
+		private long offset;
+		private long compressedSize;
+		private int flags;
+		/** size of local header, data and data descriptor */
+		private long span;
+	}
+
+	/**
+	 * The parsed central directory of a zip file, without zip64 extensions.
+	 */
+	private static class CentralDirectory {
+
+		private long offset;
+		private long size;
+		private byte[] comment;
+		private final Map<String, Record> records = new LinkedHashMap<String, Record>();
+		/** entries, which are copied completely into the skeleton */
+		private final Set<String> fullCopies = new HashSet<String>();
+		/** bytes, which are not used by any entry */
+		private long deadBytes;
+
+		/**
+		 * @return the central directory or null, if zip64 is needed or the format is not supported
+		 */
+		private static CentralDirectory read( FileChannel channel ) throws IOException {
+
+			long fileSize = channel.size();
+			if( fileSize < END_SIZE )
+				return null;
+
+			// the end record is followed by a comment of unknown size
+			int tailSize = (int) Math.min( fileSize, END_SIZE + MAX_COMMENT_SIZE );
+			ByteBuffer tail = ByteBuffer.allocate(tailSize).order(ByteOrder.LITTLE_ENDIAN);
+			readFully(channel, tail, fileSize - tailSize);
+
+			int end = -1;
+			for( int i = tailSize - END_SIZE; i >= 0; i-- ) {
+				if( tail.getInt(i) == END_SIGNATURE && i + END_SIZE + (tail.getShort(i + 20) & 0xFFFF) == tailSize ) {
+					end = i;
+					break;
+				}
+			}
+			if( end < 0 )
+				return null;
+			// zip64 archives are left to the zip file system
+			if( end >= ZIP64_LOCATOR_SIZE && tail.getInt(end - ZIP64_LOCATOR_SIZE) == ZIP64_LOCATOR_SIGNATURE )
+				return null;
+
+			int disk = tail.getShort(end + 4) & 0xFFFF;
+			int directoryDisk = tail.getShort(end + 6) & 0xFFFF;
+			int entriesOnDisk = tail.getShort(end + 8) & 0xFFFF;
+			int entries = tail.getShort(end + 10) & 0xFFFF;
+			CentralDirectory directory = new CentralDirectory();
+			directory.size = tail.getInt(end + 12) & MAX_OFFSET;
+			directory.offset = tail.getInt(end + 16) & MAX_OFFSET;
+			directory.comment = new byte[ tail.getShort(end + 20) & 0xFFFF ];
+			tail.position(end + END_SIZE);
+			tail.get(directory.comment);
+
+			if( disk != 0 || directoryDisk != 0 || entriesOnDisk != entries || entries == MAX_ENTRIES
+					|| directory.size == MAX_OFFSET || directory.offset == MAX_OFFSET
+					|| directory.offset + directory.size != fileSize - tailSize + end )
+				return null;
+
+			ByteBuffer buffer = ByteBuffer.allocate( (int) directory.size ).order(ByteOrder.LITTLE_ENDIAN);
+			readFully(channel, buffer, directory.offset);
+			int position = 0;
+			for( int i = 0; i < entries; i++ ) {
+				if( position + CENTRAL_HEADER_SIZE > buffer.limit() || buffer.getInt(position) != CENTRAL_HEADER_SIGNATURE )
+					return null;
+
+				int nameLength = buffer.getShort(position + 28) & 0xFFFF;
+				int extraLength = buffer.getShort(position + 30) & 0xFFFF;
+				int commentLength = buffer.getShort(position + 32) & 0xFFFF;
+				int length = CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+				if( position + length > buffer.limit() )
+					return null;
+
+				Record record = new Record();
+				record.flags = buffer.getShort(position + 8) & 0xFFFF;
+				record.compressedSize = buffer.getInt(position + 20) & MAX_OFFSET;
+				long size = buffer.getInt(position + 24) & MAX_OFFSET;
+				record.offset = buffer.getInt(position + 42) & MAX_OFFSET;
+				if( record.compressedSize == MAX_OFFSET || size == MAX_OFFSET || record.offset == MAX_OFFSET
+						|| hasZip64Extra(buffer, position + CENTRAL_HEADER_SIZE + nameLength, extraLength) )
+					return null;
+
+				record.header = new byte[length];
+				buffer.position(position);
+				buffer.get(record.header);
+				record.name = new String( record.header, CENTRAL_HEADER_SIZE, nameLength, StandardCharsets.UTF_8 );
+				// duplicate names are left to the zip file system
+				if( directory.records.put(record.name, record) != null )
+					return null;
+
+				position += length;
+			}
+
+			return directory;
+		}
+
+		private static boolean hasZip64Extra( ByteBuffer buffer, int position, int length ) {
+			int end = position + length;
+			while( position + 4 <= end ) {
+				if( (buffer.getShort(position) & 0xFFFF) == ZIP64_EXTRA_ID )
+					return true;
+				position += 4 + (buffer.getShort(position + 2) & 0xFFFF);
+			}
+			return false;
+		}
+
+		/**
+		 * Determines the size of every entry in the file and the number of unused bytes.
+		 */
+		private void readSpans( FileChannel channel ) throws IOException {
+
+			long usedBytes = 0;
+			ByteBuffer header = ByteBuffer.allocate(LOCAL_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			ByteBuffer descriptor = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+			for( Record record : records.values() ) {
+				header.clear();
+				readFully(channel, header, record.offset);
+				if( header.getInt(0) != LOCAL_HEADER_SIGNATURE )
+					throw new ZipException("Invalid local header of " + record.name);
+
+				record.span = LOCAL_HEADER_SIZE + (header.getShort(26) & 0xFFFF) + (header.getShort(28) & 0xFFFF) + record.compressedSize;
+				if( (record.flags & 0x08) != 0 ) {
+					// data descriptor, the signature is optional
+					descriptor.clear();
+					readFully(channel, descriptor, record.offset + record.span);
+					record.span += descriptor.getInt(0) == DATA_DESCRIPTOR_SIGNATURE ? 16 : 12;
+				}
+				usedBytes += record.span;
+			}
+
+			deadBytes = Math.max( offset - usedBytes, 0 );
+		}
+	}
+
+	/**
+	 * The end of an archive file, starting at its central directory, as it was before an append.
+	 */
+	private static class Journal {
+
+		private long length;
+		private long offset;
+		private byte[] tail;
+
+		private static Journal create( FileChannel channel, long offset ) throws IOException {
+			Journal journal = new Journal();
+			journal.length = channel.size();
+			journal.offset = offset;
+			ByteBuffer buffer = ByteBuffer.allocate( (int) (journal.length - offset) );
+			readFully(channel, buffer, offset);
+			journal.tail = buffer.array();
+			return journal;
+		}
+
+		/**
+		 * @return the journal or null, if it was not written completely
+		 */
+		private static Journal read( File journalFile ) throws IOException {
+			try( DataInputStream in = new DataInputStream( new FileInputStream(journalFile) ) ) {
+				if( in.readInt() != JOURNAL_MAGIC || in.readInt() != JOURNAL_VERSION )
+					return null;
+
+				Journal journal = new Journal();
+				journal.length = in.readLong();
+				journal.offset = in.readLong();
+				journal.tail = new byte[ in.readInt() ];
+				in.readFully(journal.tail);
+				if( in.readLong() != checksum(journal.tail) )
+					return null;
+
+				return journal;
+			}
+			catch (EOFException e) {
+				return null;
+			}
+		}
+
+		private void write( File journalFile ) throws IOException {
+			try( FileOutputStream file = new FileOutputStream(journalFile);
+					DataOutputStream out = new DataOutputStream(file) ) {
+				out.writeInt(JOURNAL_MAGIC);
+				out.writeInt(JOURNAL_VERSION);
+				out.writeLong(length);
+				out.writeLong(offset);
+				out.writeInt(tail.length);
+				out.write(tail);
+				out.writeLong( checksum(tail) );
+				out.flush();
+				file.getFD().sync();
+			}
+		}
+
+		private void restore( File archiveFile ) throws IOException {
+			try( FileChannel channel = FileChannel.open(archiveFile.toPath(), StandardOpenOption.WRITE) ) {
+				channel.position(offset);
+				ByteBuffer buffer = ByteBuffer.wrap(tail);
+				while( buffer.hasRemaining() )
+					channel.write(buffer);
+				channel.truncate(length);
+				channel.force(true);
+			}
+		}
+
+		private static long checksum( byte[] data ) {
+			CRC32 crc = new CRC32();
+			crc.update(data, 0, data.length);
+			return crc.getValue();
+		}
+	}
+
+}
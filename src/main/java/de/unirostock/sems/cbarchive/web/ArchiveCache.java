@@ -0,0 +1,424 @@
+package de.unirostock.sems.cbarchive.web;
+/*
+CombineArchiveWeb - a WebInterface to read/create/write/manipulate/... COMBINE archives
+Copyright (C) 2014  SEMS Group
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystemAlreadyExistsException;
+import java.text.MessageFormat;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jdom2.JDOMException;
+
+import de.binfalse.bflog.LOGGER;
+import de.unirostock.sems.cbarchive.ArchiveEntry;
+import de.unirostock.sems.cbarchive.CombineArchive;
+import de.unirostock.sems.cbarchive.CombineArchiveException;
+import de.unirostock.sems.cbarchive.web.dataholder.ArchiveEntryDataholder;
+import de.unirostock.sems.cbarchive.web.dataholder.StatisticData;
+import de.unirostock.sems.cbarchive.web.exception.CombineArchiveWebException;
+
+/**
+ * Least recently used cache of parsed archives, which are only read.
+ *
+ * A cached archive stays open together with its entry dataholders, so subsequent reads
+ * of the same archive neither open the zip file nor parse the manifest and the meta data
+ * again. Archives are cached per workspace and archive id and are only reused, while the
+ * modification date and the size of the file are unchanged. The cache is bounded by
+ * {@link Fields#ARCHIVE_CACHE_SIZE} archives and {@link Fields#ARCHIVE_CACHE_BYTES} bytes
+ * of archive files.
+ *
+ * The zip file of an archive can only be opened once at a time, therefore everyone, who
+ * wants to modify an archive, has to {@link #invalidate(String, String)} it before opening
+ * it, while holding the exclusive archive lock. Cached archives are shared between readers,
+ * which may hold the shared lock concurrently, and are closed after the last reader has released them.
+ */
+public class ArchiveCache {
+
+	// Singleton stuff
+	private static volatile ArchiveCache instance = null;
+
+	/**
+	 * Returns the Singleton instance
+	 * @return the ArchiveCache
+	 */
+	public static ArchiveCache getInstance() {
+		if( instance == null ) {
+			synchronized (ArchiveCache.class) {
+				if( instance == null )
+					instance = new ArchiveCache();
+			}
+		}
+
+		return instance;
+	}
+
+	// --------------------------------------------------------------------------------
+
+	/** workspace id/archive id -> cached archive, in access order, guarded by the monitor of the cache */
+	private final LinkedHashMap<String, CachedArchive> cache = new LinkedHashMap<String, CachedArchive>(16, 0.75f, true);
+	/** size of all archive files in the cache, guarded by the monitor of the cache */
+	private long bytes = 0L;
+	/** serializes the opening of archives with the same key */
+	private final Object[] loadLocks = new Object[32];
+
+	private final AtomicLong hits = new AtomicLong(0L);
+	private final AtomicLong misses = new AtomicLong(0L);
+	private final AtomicLong evictions = new AtomicLong(0L);
+	private final AtomicLong invalidations = new AtomicLong(0L);
+
+	private ArchiveCache() {
+		for( int i = 0; i < loadLocks.length; i++ )
+			loadLocks[i] = new Object();
+	}
+
+	/**
+	 * Returns the parsed archive from the cache or opens it.
+	 * The caller has to hold the (shared) archive lock and to {@link #release(CachedArchive)} the archive afterwards.
+	 *
+	 * @param workspaceId the workspace id
+	 * @param archiveId the archive id
+	 * @param file the archive file
+	 * @return the cached archive
+	 * @throws CombineArchiveWebException if the archive cannot be parsed
+	 */
+	public CachedArchive acquire( String workspaceId, String archiveId, File file ) throws CombineArchiveWebException {
+
+		String key = getKey(workspaceId, archiveId);
+		long lastModified = file.lastModified();
+		long length = file.length();
+
+		CachedArchive cached = lookup(key, lastModified, length);
+		if( cached != null )
+			return cached;
+
+		// the zip file can only be opened once, so concurrent readers of the same archive have to wait for each other
+		synchronized ( loadLocks[ (key.hashCode() & 0x7fffffff) % loadLocks.length ] ) {
+
+			// someone else might have opened it meanwhile
+			cached = lookup(key, lastModified, length);
+			if( cached != null )
+				return cached;
+
+			misses.incrementAndGet();
+			cached = new CachedArchive(key, file, lastModified, length);
+			cached.references = 1;
+
+			if( Fields.ARCHIVE_CACHE_SIZE <= 0 ) {
+				// cache is disabled, close it after use
+				cached.retired = true;
+				return cached;
+			}
+
+			List<CachedArchive> retired = new ArrayList<CachedArchive>();
+			synchronized (this) {
+				cache.put(key, cached);
+				bytes += length;
+				evict(retired);
+			}
+			closeAll(retired);
+
+			return cached;
+		}
+	}
+
+	/**
+	 * Hands an archive back, which was obtained by {@link #acquire(String, String, File)}.
+	 * Closes it, if it is not part of the cache anymore and nobody else uses it.
+	 *
+	 * @param cached the cached archive
+	 */
+	public void release( CachedArchive cached ) {
+
+		if( cached == null )
+			return;
+
+		boolean close = false;
+		synchronized (this) {
+			cached.references--;
+			close = cached.retired && cached.references <= 0;
+		}
+
+		if( close )
+			cached.close();
+	}
+
+	/**
+	 * Drops an archive from the cache, e.g. because it is going to be changed, deleted or renamed.
+	 * Has to be called, before the archive file is opened for writing.
+	 *
+	 * @param workspaceId the workspace id
+	 * @param archiveId the archive id
+	 */
+	public void invalidate( String workspaceId, String archiveId ) {
+
+		List<CachedArchive> retired = new ArrayList<CachedArchive>(1);
+		synchronized (this) {
+			if( remove( getKey(workspaceId, archiveId), retired ) )
+				invalidations.incrementAndGet();
+		}
+		closeAll(retired);
+	}
+
+	/**
+	 * Drops all archives of a workspace from the cache.
+	 *
+	 * @param workspaceId the workspace id
+	 */
+	public void invalidateWorkspace( String workspaceId ) {
+
+		String prefix = workspaceId + "/";
+		List<CachedArchive> retired = new ArrayList<CachedArchive>();
+		synchronized (this) {
+			Iterator<Map.Entry<String, CachedArchive>> iter = cache.entrySet().iterator();
+			while( iter.hasNext() ) {
+				Map.Entry<String, CachedArchive> entry = iter.next();
+				if( entry.getKey().startsWith(prefix) == false )
+					continue;
+
+				iter.remove();
+				bytes -= entry.getValue().length;
+				retire(entry.getValue(), retired);
+				invalidations.incrementAndGet();
+			}
+		}
+		closeAll(retired);
+	}
+
+	/**
+	 * Drops all archives, archives still in use are closed as soon as they are released.
+	 */
+	public void clear() {
+
+		List<CachedArchive> retired = new ArrayList<CachedArchive>();
+		synchronized (this) {
+			for( CachedArchive cached : cache.values() )
+				retire(cached, retired);
+			cache.clear();
+			bytes = 0L;
+		}
+		closeAll(retired);
+	}
+
+	/**
+	 * Adds the cache metrics to the stats.
+	 *
+	 * @param stats the stats
+	 */
+	public void fillStats( StatisticData stats ) {
+
+		synchronized (this) {
+			stats.setArchiveCacheBytes(bytes);
+		}
+		stats.setArchiveCacheHits( hits.get() );
+		stats.setArchiveCacheMisses( misses.get() );
+		stats.setArchiveCacheEvictions( evictions.get() );
+		stats.setArchiveCacheInvalidations( invalidations.get() );
+	}
+
+	/**
+	 * Returns the cached archive and counts a hit, if it is still up to date.
+	 * Outdated archives are dropped.
+	 *
+	 * @return the cached archive with one more reference or null
+	 */
+	private CachedArchive lookup( String key, long lastModified, long length ) {
+
+		List<CachedArchive> retired = new ArrayList<CachedArchive>(1);
+		synchronized (this) {
+			CachedArchive cached = cache.get(key);
+			if( cached != null && cached.matches(lastModified, length) ) {
+				cached.references++;
+				hits.incrementAndGet();
+				return cached;
+			}
+			else if( cached != null ) {
+				// file got changed without invalidation
+				remove(key, retired);
+				invalidations.incrementAndGet();
+			}
+		}
+		closeAll(retired);
+
+		return null;
+	}
+
+	/**
+	 * Evicts the least recently used archives, until the cache fits its bounds again.
+	 * Has to be called with the monitor of the cache.
+	 */
+	private void evict( List<CachedArchive> retired ) {
+
+		Iterator<CachedArchive> iter = cache.values().iterator();
+		while( iter.hasNext() && ( cache.size() > Fields.ARCHIVE_CACHE_SIZE || (Fields.ARCHIVE_CACHE_BYTES > 0 && bytes > Fields.ARCHIVE_CACHE_BYTES) ) ) {
+			CachedArchive cached = iter.next();
+			iter.remove();
+			bytes -= cached.length;
+			retire(cached, retired);
+			evictions.incrementAndGet();
+			LOGGER.debug("evicted ", cached.key, " from the archive cache");
+		}
+	}
+
+	/**
+	 * Has to be called with the monitor of the cache.
+	 */
+	private boolean remove( String key, List<CachedArchive> retired ) {
+
+		CachedArchive cached = cache.remove(key);
+		if( cached == null )
+			return false;
+
+		bytes -= cached.length;
+		retire(cached, retired);
+		return true;
+	}
+
+	/**
+	 * Marks the archive as removed from the cache and collects it for closing, if it is unused.
+	 * Has to be called with the monitor of the cache.
+	 */
+	private void retire( CachedArchive cached, List<CachedArchive> retired ) {
+		cached.retired = true;
+		if( cached.references <= 0 )
+			retired.add(cached);
+	}
+
+	private void closeAll( List<CachedArchive> retired ) {
+		for( CachedArchive cached : retired )
+			cached.close();
+	}
+
+	private static String getKey( String workspaceId, String archiveId ) {
+		return workspaceId + "/" + archiveId;
+	}
+
+	// --------------------------------------------------------------------------------
+
+	/**
+	 * An opened archive together with its entry dataholders.
+	 * Neither the archive nor the dataholders may be modified.
+	 */
+	public static class CachedArchive {
+
+		private final String key;
+		private final long lastModified;
+		private final long length;
+		private final CombineArchive archive;
+		private final Map<String, ArchiveEntryDataholder> entries;
+
+		/** number of readers using this archive, guarded by the monitor of the cache */
+		private int references = 0;
+		/** true, if the archive is not part of the cache (anymore), guarded by the monitor of the cache */
+		private boolean retired = false;
+
+		private CachedArchive( String key, File file, long lastModified, long length ) throws CombineArchiveWebException {
+			this.key = key;
+			this.lastModified = lastModified;
+			this.length = length;
+
+			try {
+				archive = new CombineArchive(file);
+				LOGGER.debug("opening ", file.getAbsolutePath(), " for the archive cache");
+			} catch (IOException | JDOMException | ParseException | CombineArchiveException | FileSystemAlreadyExistsException e) {
+				LOGGER.error(e, MessageFormat.format("The archive is not parsable: {0}", file.getAbsolutePath()) );
+				throw new CombineArchiveWebException("The archive is not parsable", e);
+			}
+
+			entries = Collections.unmodifiableMap( collectEntries(archive) );
+		}
+
+		private boolean matches( long lastModified, long length ) {
+			return this.lastModified == lastModified && this.length == length;
+		}
+
+		private void close() {
+			// sizes are read from the zip file system, which is gone afterwards
+			for( ArchiveEntryDataholder entry : entries.values() )
+				entry.loadFileSize();
+
+			try {
+				archive.close();
+				LOGGER.debug("close cached ", key);
+			} catch (IOException e) {
+				LOGGER.warn(e, "Cannot close cached archive ", key);
+			}
+		}
+
+		public CombineArchive getArchive() {
+			return archive;
+		}
+
+		public Map<String, ArchiveEntryDataholder> getEntries() {
+			return entries;
+		}
+
+		public long getLastModified() {
+			return lastModified;
+		}
+
+		public long getLength() {
+			return length;
+		}
+
+	}
+
+	/**
+	 * Builds the entry dataholders of an archive, including the archive meta information as root entry.
+	 *
+	 * @param archive the opened archive
+	 * @return file path -> entry dataholder
+	 */
+	public static Map<String, ArchiveEntryDataholder> collectEntries( CombineArchive archive ) {
+
+		Map<String, ArchiveEntryDataholder> entries = new HashMap<String, ArchiveEntryDataholder>();
+
+		// gather information
+		Collection<ArchiveEntry> archiveEntries = archive.getEntries();
+		List<ArchiveEntry> mainEntries = archive.getMainEntries();
+
+		// iterate over entries
+		for( ArchiveEntry entry : archiveEntries ) {
+
+			// entry information are gathered in the entry dataholder
+			ArchiveEntryDataholder dataholder = new ArchiveEntryDataholder(entry);
+			if( mainEntries.contains(entry) )
+				dataholder.setMaster(true);
+
+			// put it into the map
+			entries.put(dataholder.getFilePath(), dataholder);
+		}
+
+		// add the archive meta information as root entry
+		ArchiveEntryDataholder rootDataholder = new ArchiveEntryDataholder(archive, false, "/", "", null);
+		rootDataholder.updateId();
+		entries.put("/", rootDataholder );
+
+		return entries;
+	}
+
+}
@@ -0,0 +1,204 @@
+package de.unirostock.sems.cbarchive.web;
+/*
+CombineArchiveWeb - a WebInterface to read/create/write/manipulate/... COMBINE archives
+Copyright (C) 2014  SEMS Group
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import de.unirostock.sems.cbarchive.web.exception.CombineArchiveWebException;
+
+/**
+ * Hands out the read/write locks of all archives.
+ *
+ * A lock only exists, while somebody holds or waits for it. Every caller takes a reference
+ * on the lock before waiting and drops it on unlock, the last one removes the lock from the
+ * registry. So the registry never holds more locks than there are requests, no matter how
+ * many archives were ever touched, and archives never share a monitor.
+ */
+public class ArchiveLockRegistry {
+
+	// Singleton stuff
+	private static volatile ArchiveLockRegistry instance = null;
+
+	/**
+	 * Returns the Singleton instance
+	 * @return the ArchiveLockRegistry
+	 */
+	public static ArchiveLockRegistry getInstance() {
+		if( instance == null ) {
+			synchronized (ArchiveLockRegistry.class) {
+				if( instance == null )
+					instance = new ArchiveLockRegistry();
+			}
+		}
+
+		return instance;
+	}
+
+	// --------------------------------------------------------------------------------
+
+	private final ConcurrentMap<String, ArchiveLock> locks = new ConcurrentHashMap<String, ArchiveLock>();
+
+	private ArchiveLockRegistry() {
+	}
+
+	/**
+	 * Locks an archive and waits at most {@code timeout} ms for it.
+	 *
+	 * @param workspaceId the workspace id
+	 * @param archiveId the archive id
+	 * @param exclusive true for the write lock, false for the shared read lock
+	 * @param timeout time in ms
+	 * @return the acquired lock, has to be unlocked afterwards
+	 * @throws CombineArchiveWebException if the lock could not be acquired in time
+	 */
+	public ArchiveLockHandle lock( String workspaceId, String archiveId, boolean exclusive, long timeout ) throws CombineArchiveWebException {
+
+		ArchiveLock archiveLock = retain( workspaceId + "/" + archiveId );
+		Lock lock = exclusive ? archiveLock.lock.writeLock() : archiveLock.lock.readLock();
+
+		// wait outside of any monitor, so a locked archive does not block other archives
+		boolean locked = false;
+		try {
+			locked = lock.tryLock( timeout, TimeUnit.MILLISECONDS );
+		} catch (InterruptedException e) {
+			throw new CombineArchiveWebException("Lock interrupted.", e);
+		}
+		finally {
+			if( locked == false )
+				release(archiveLock);
+		}
+
+		if( locked == false )
+			throw new CombineArchiveWebException("Lock timeout.");
+
+		return new ArchiveLockHandle(archiveLock, lock);
+	}
+
+	/**
+	 * Returns the number of archives, which are currently locked or waited for.
+	 *
+	 * @return the number of locks
+	 */
+	public int size() {
+		return locks.size();
+	}
+
+	private ArchiveLock retain( String key ) {
+
+		while( true ) {
+			ArchiveLock archiveLock = locks.get(key);
+			if( archiveLock == null ) {
+				archiveLock = new ArchiveLock(key);
+				ArchiveLock existing = locks.putIfAbsent(key, archiveLock);
+				if( existing != null )
+					archiveLock = existing;
+			}
+
+			if( archiveLock.retain() )
+				return archiveLock;
+
+			// the last holder is just removing it, help and try again
+			locks.remove(key, archiveLock);
+		}
+	}
+
+	private void release( ArchiveLock archiveLock ) {
+		if( archiveLock.release() )
+			locks.remove(archiveLock.key, archiveLock);
+	}
+
+	/**
+	 * The lock of one archive with its number of references.
+	 */
+	private static class ArchiveLock {
+
+		private final String key;
+		// fair, so a writer is not starved by a continuous stream of readers
+		private final ReadWriteLock lock = new ReentrantReadWriteLock(true);
+		/** number of holders and waiters, -1 once the lock got removed */
+		private final AtomicInteger references = new AtomicInteger(0);
+
+		private ArchiveLock( String key ) {
+			this.key = key;
+		}
+
+		private boolean retain() {
+			while( true ) {
+				int current = references.get();
+				if( current < 0 )
+					return false;
+				if( references.compareAndSet(current, current + 1) )
+					return true;
+			}
+		}
+
+		/**
+		 * @return true, if this was the last reference and the lock has to be removed
+		 */
+		private boolean release() {
+			return references.decrementAndGet() == 0 && references.compareAndSet(0, -1);
+		}
+	}
+
+	/**
+	 * An acquired archive lock, unlocking it drops the reference on the archive lock.
+	 * It can only be unlocked once, by the thread holding it.
+	 */
+	public class ArchiveLockHandle implements AutoCloseable {
+
+		private final ArchiveLock archiveLock;
+		private final Lock lock;
+		/** only accessed by the thread holding the lock */
+		private boolean released = false;
+
+		private ArchiveLockHandle( ArchiveLock archiveLock, Lock lock ) {
+			this.archiveLock = archiveLock;
+			this.lock = lock;
+		}
+
+		/**
+		 * Releases the archive lock.
+		 *
+		 * @throws IllegalMonitorStateException if the lock was released already or the current thread does not hold it
+		 */
+		public void unlock() {
+			if( released )
+				throw new IllegalMonitorStateException("The archive lock was already released");
+
+			// throws, if the current thread does not hold the lock, it stays registered then
+			lock.unlock();
+			released = true;
+			release(archiveLock);
+		}
+
+		/**
+		 * Same as {@link #unlock()}.
+		 */
+		@Override
+		public void close() {
+			unlock();
+		}
+	}
+
+}
@@ -0,0 +1,455 @@
+package de.unirostock.sems.cbarchive.web;
+/*
+CombineArchiveWeb - a WebInterface to read/create/write/manipulate/... COMBINE archives
+Copyright (C) 2014  SEMS Group
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.transform.TransformerException;
+
+import de.binfalse.bflog.LOGGER;
+import de.unirostock.sems.cbarchive.web.WorkingCopyManager.WorkingCopy;
+import de.unirostock.sems.cbarchive.web.dataholder.Archive;
+import de.unirostock.sems.cbarchive.web.dataholder.BatchOperation;
+import de.unirostock.sems.cbarchive.web.dataholder.StatisticData;
+import de.unirostock.sems.cbarchive.web.exception.CombineArchiveWebException;
+
+/**
+ * Queues concurrent changes of the same archive and packs them together.
+ *
+ * The first caller of an archive becomes the leader: it opens the archive, applies all mutations,
+ * which are queued at this time, one after another and packs the archive once for all of them.
+ * Mutations arriving meanwhile wait for the next cycle, which is run by the first of them. So
+ * callers of a burst do not wait for the archive lock, but for their cycle, and every caller gets
+ * the result of its own mutation, as soon as the archive containing it is written.
+ *
+ * A failing mutation does not affect the others of its cycle, but its partial changes are packed
+ * with them, unless its check rejected it before. If the archive cannot be opened or packed, all
+ * mutations of the cycle fail.
+ *
+ * If working copies are enabled and all mutations of a cycle can be journaled, the cycle applies
+ * them to the working copy of the archive instead and does not pack it, see {@link WorkingCopyManager}.
+ */
+public class ArchiveMutationQueue {
+
+	// Singleton stuff
+	private static volatile ArchiveMutationQueue instance = null;
+
+	/**
+	 * Returns the Singleton instance
+	 * @return the ArchiveMutationQueue
+	 */
+	public static ArchiveMutationQueue getInstance() {
+		if( instance == null ) {
+			synchronized (ArchiveMutationQueue.class) {
+				if( instance == null )
+					instance = new ArchiveMutationQueue();
+			}
+		}
+
+		return instance;
+	}
+
+	// --------------------------------------------------------------------------------
+
+	/**
+	 * A change of an opened archive.
+	 *
+	 * @param <T> the result
+	 */
+	public static abstract class Mutation<T> {
+
+		private boolean changed = true;
+
+		/**
+		 * Applies the change. The archive is shared with the other mutations of the cycle, so it
+		 * must neither be packed nor closed.
+		 *
+		 * @param archive the opened archive
+		 * @return the result, handed to the caller after the archive got packed
+		 * @throws CombineArchiveWebException the combine archive web exception
+		 * @throws IOException Signals that an I/O exception has occurred.
+		 */
+		public abstract T apply( Archive archive ) throws CombineArchiveWebException, IOException;
+
+		/**
+		 * Verifies, that the change can be applied as a whole, before it is journaled or applied.
+		 * A failing check fails the mutation, without touching the archive.
+		 *
+		 * @param archive the opened archive
+		 * @throws CombineArchiveWebException if the change cannot be applied
+		 */
+		protected void check( Archive archive ) throws CombineArchiveWebException {
+		}
+
+		/**
+		 * Marks, that this mutation did not change the archive, e.g. because there was nothing
+		 * to change. A cycle without changes does not pack the archive.
+		 */
+		protected void unchanged() {
+			changed = false;
+		}
+
+		/**
+		 * Returns the change as batch operations, which are journaled, if the archive is kept as
+		 * working copy, see {@link WorkingCopyManager}. Applying the operations to the archive has to
+		 * have the same effect as {@link #apply(Archive)}.
+		 *
+		 * @return the operations or null, if the change cannot be journaled, the archive is packed then
+		 */
+		protected List<BatchOperation> getOperations() {
+			return null;
+		}
+	}
+
+	private final ConcurrentMap<String, Queue> queues = new ConcurrentHashMap<String, Queue>();
+
+	private final AtomicLong mutations = new AtomicLong(0);
+	private final AtomicLong cycles = new AtomicLong(0);
+
+	private ArchiveMutationQueue() {
+	}
+
+	/**
+	 * Applies a mutation to an archive, together with all concurrent mutations of the same archive.
+	 * Returns after the archive got packed.
+	 *
+	 * @param user the user, owning the archive
+	 * @param archiveId the archive id
+	 * @param appendOnly true, if the mutation only adds files, see {@link UserManager#getAppendableArchive(String)}
+	 * @param mutation the mutation
+	 * @return the result of the mutation
+	 * @throws CombineArchiveWebException if the mutation failed or the archive could not be opened or packed
+	 * @throws IOException if the mutation failed or the archive does not exist
+	 */
+	public <T> T submit( UserManager user, String archiveId, boolean appendOnly, Mutation<T> mutation ) throws CombineArchiveWebException, IOException {
+
+		String key = user.getWorkspaceId() + "/" + archiveId;
+		Ticket<T> ticket = new Ticket<T>(user, archiveId, appendOnly, mutation);
+		mutations.incrementAndGet();
+
+		Queue queue = null;
+		boolean leader = false;
+		while( queue == null ) {
+			queue = queues.get(key);
+			if( queue == null ) {
+				queue = new Queue(key);
+				Queue existing = queues.putIfAbsent(key, queue);
+				if( existing != null )
+					queue = existing;
+			}
+
+			synchronized (queue) {
+				if( queue.removed ) {
+					// the last leader just left, try again with a new queue
+					queue = null;
+					continue;
+				}
+				queue.pending.add(ticket);
+				leader = queue.running == false;
+				queue.running = true;
+			}
+		}
+
+		// wait, until the mutation is applied or it is our turn to lead the next cycle
+		if( leader == false )
+			ticket.await();
+		if( ticket.done == false )
+			run(queue);
+
+		return ticket.get();
+	}
+
+	/**
+	 * Adds the statistics of the mutation queue.
+	 *
+	 * @param stats the stats
+	 */
+	public void fillStats( StatisticData stats ) {
+		stats.setArchiveMutations( mutations.get() );
+		stats.setArchiveMutationCycles( cycles.get() );
+	}
+
+	/**
+	 * Runs one cycle with all pending mutations and hands the queue over to the next waiting caller.
+	 */
+	private void run( Queue queue ) {
+
+		List<Ticket<?>> cycle = null;
+		synchronized (queue) {
+			cycle = new ArrayList<Ticket<?>>(queue.pending);
+			queue.pending.clear();
+		}
+
+		try {
+			apply(cycle);
+		}
+		catch (RuntimeException e) {
+			LOGGER.error(e, "Cannot apply changes to archive ", queue.key);
+			for( Ticket<?> ticket : cycle ) {
+				if( ticket.done == false )
+					ticket.fail(e);
+			}
+		}
+		finally {
+			// nobody may wait forever, even if something unexpected went wrong
+			for( Ticket<?> ticket : cycle ) {
+				if( ticket.done == false )
+					ticket.fail( new CombineArchiveWebException("Cannot apply the change to the archive") );
+			}
+
+			synchronized (queue) {
+				if( queue.pending.isEmpty() ) {
+					queue.running = false;
+					queue.removed = true;
+					queues.remove(queue.key, queue);
+				}
+				else
+					queue.pending.get(0).lead();
+			}
+		}
+	}
+
+	private void apply( List<Ticket<?>> cycle ) {
+
+		Ticket<?> first = cycle.get(0);
+		boolean appendOnly = true;
+		boolean journaled = WorkingCopyManager.isEnabled();
+		for( Ticket<?> ticket : cycle ) {
+			appendOnly = appendOnly && ticket.appendOnly;
+			journaled = journaled && ticket.mutation.getOperations() != null;
+		}
+
+		if( journaled ) {
+			applyToWorkingCopy(cycle);
+			return;
+		}
+
+		Archive archive = null;
+		try {
+			archive = appendOnly ? first.user.getAppendableArchive(first.archiveId) : first.user.getArchive(first.archiveId);
+		}
+		catch (CombineArchiveWebException | IOException e) {
+			for( Ticket<?> ticket : cycle )
+				ticket.fail(e);
+			return;
+		}
+
+		boolean changed = false;
+		for( Ticket<?> ticket : cycle ) {
+			if( ticket.check(archive) )
+				changed = ticket.apply(archive) || changed;
+		}
+
+		Exception error = null;
+		try {
+			if( changed )
+				archive.pack();
+		}
+		catch (IOException | TransformerException e) {
+			LOGGER.error(e, "Cannot pack archive ", first.archiveId, " in workspace ", first.user.getWorkspaceId());
+			error = new CombineArchiveWebException("Cannot pack and close archive", e);
+		}
+		finally {
+			try {
+				// closing writes the archive file
+				archive.close();
+			}
+			catch (IOException e) {
+				LOGGER.error(e, "Cannot close archive ", first.archiveId, " in workspace ", first.user.getWorkspaceId());
+				if( error == null )
+					error = new CombineArchiveWebException("Cannot pack and close archive", e);
+			}
+		}
+
+		if( changed && error == null ) {
+			cycles.incrementAndGet();
+			QuotaManager.getInstance().updateArchive( first.user.getWorkspace(), first.archiveId );
+			if( cycle.size() > 1 )
+				LOGGER.debug("packed ", cycle.size(), " changes of archive ", first.archiveId, " at once");
+		}
+
+		for( Ticket<?> ticket : cycle ) {
+			if( error != null )
+				ticket.fail(error);
+			ticket.complete();
+		}
+	}
+
+	/**
+	 * Applies all mutations of a cycle to the working copy of the archive, each one after it got journaled.
+	 */
+	private void applyToWorkingCopy( List<Ticket<?>> cycle ) {
+
+		Ticket<?> first = cycle.get(0);
+		WorkingCopy copy = null;
+		try {
+			copy = first.user.openWorkingCopy(first.archiveId);
+		}
+		catch (CombineArchiveWebException | IOException e) {
+			for( Ticket<?> ticket : cycle )
+				ticket.fail(e);
+			return;
+		}
+
+		try {
+			for( Ticket<?> ticket : cycle ) {
+				// a rejected change must not end up in the journal
+				if( ticket.check( copy.getArchive() ) == false )
+					continue;
+				try {
+					copy.journal( ticket.mutation.getOperations() );
+				}
+				catch (IOException e) {
+					LOGGER.error(e, "Cannot journal change of archive ", first.archiveId, " in workspace ", first.user.getWorkspaceId());
+					ticket.fail( new CombineArchiveWebException("Cannot journal the change of the archive", e) );
+					continue;
+				}
+				ticket.apply( copy.getArchive() );
+			}
+			copy.changed();
+		}
+		finally {
+			copy.release();
+		}
+
+		cycles.incrementAndGet();
+		for( Ticket<?> ticket : cycle ) {
+			if( ticket.done == false )
+				ticket.complete();
+		}
+	}
+
+	/**
+	 * The pending mutations of one archive.
+	 */
+	private static class Queue {
+
+		private final String key;
+		private final List<Ticket<?>> pending = new ArrayList<Ticket<?>>();
+		/** true, while a leader runs the cycles of this queue */
+		private boolean running = false;
+		/** true, once the queue got removed, it must not be used anymore */
+		private boolean removed = false;
+
+		private Queue( String key ) {
+			this.key = key;
+		}
+	}
+
+	/**
+	 * A queued mutation with its result.
+	 */
+	private static class Ticket<T> {
+
+		private final UserManager user;
+		private final String archiveId;
+		private final boolean appendOnly;
+		private final Mutation<T> mutation;
+		/** counted down, when the result is there or the caller has to lead the next cycle */
+		private final CountDownLatch signal = new CountDownLatch(1);
+
+		private T result = null;
+		private Exception error = null;
+		private volatile boolean done = false;
+
+		private Ticket( UserManager user, String archiveId, boolean appendOnly, Mutation<T> mutation ) {
+			this.user = user;
+			this.archiveId = archiveId;
+			this.appendOnly = appendOnly;
+			this.mutation = mutation;
+		}
+
+		/**
+		 * @return true, if the mutation may be applied, otherwise it failed
+		 */
+		private boolean check( Archive archive ) {
+			try {
+				mutation.check(archive);
+				return true;
+			}
+			catch (CombineArchiveWebException | RuntimeException e) {
+				error = e;
+				return false;
+			}
+		}
+
+		/**
+		 * @return true, if the archive got changed
+		 */
+		private boolean apply( Archive archive ) {
+			try {
+				result = mutation.apply(archive);
+				return mutation.changed;
+			}
+			catch (CombineArchiveWebException | IOException | RuntimeException e) {
+				// partial changes are packed, unless the mutation says otherwise
+				error = e;
+				return mutation.changed;
+			}
+		}
+
+		private void fail( Exception e ) {
+			result = null;
+			error = e;
+			complete();
+		}
+
+		private void complete() {
+			done = true;
+			signal.countDown();
+		}
+
+		private void lead() {
+			signal.countDown();
+		}
+
+		private void await() {
+			// the mutation might be applied already, so the caller has to wait for the result anyway
+			boolean interrupted = false;
+			while( true ) {
+				try {
+					signal.await();
+					break;
+				}
+				catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if( interrupted )
+				Thread.currentThread().interrupt();
+		}
+
+		private T get() throws CombineArchiveWebException, IOException {
+			if( error instanceof CombineArchiveWebException )
+				throw (CombineArchiveWebException) error;
+			else if( error instanceof IOException )
+				throw (IOException) error;
+			else if( error instanceof RuntimeException )
+				throw (RuntimeException) error;
+
+			return result;
+		}
+	}
+
+}
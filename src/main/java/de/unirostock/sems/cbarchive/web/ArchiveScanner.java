@@ -0,0 +1,158 @@
+package de.unirostock.sems.cbarchive.web;
+/*
+CombineArchiveWeb - a WebInterface to read/create/write/manipulate/... COMBINE archives
+Copyright (C) 2014  SEMS Group
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.binfalse.bflog.LOGGER;
+import de.unirostock.sems.cbarchive.web.dataholder.Archive;
+
+/**
+ * Reads the content of many archives in parallel, e.g. for a deep scan of a workspace.
+ *
+ * All scans share one bounded pool of {@link Fields#DEEP_SCAN_PARALLELISM} threads. A caller waits
+ * at most {@link Fields#DEEP_SCAN_TIMEOUT} ms for all of its archives together, so a locked or slow
+ * archive delays the result by no more than the timeout. Archives, which could not be read in time
+ * or not at all, are returned without content.
+ */
+public class ArchiveScanner {
+
+	// Singleton stuff
+	private static volatile ArchiveScanner instance = null;
+
+	/**
+	 * Returns the Singleton instance
+	 * @return the ArchiveScanner
+	 */
+	public static ArchiveScanner getInstance() {
+		if( instance == null ) {
+			synchronized (ArchiveScanner.class) {
+				if( instance == null )
+					instance = new ArchiveScanner();
+			}
+		}
+
+		return instance;
+	}
+
+	// --------------------------------------------------------------------------------
+
+	/** time in seconds, an idle thread is kept */
+	private static final long KEEP_ALIVE = 60;
+
+	private final ThreadPoolExecutor executor;
+
+	private ArchiveScanner() {
+
+		// scans mostly wait for the disk or for locked archives
+		int parallelism = Fields.DEEP_SCAN_PARALLELISM > 0 ? (int) Fields.DEEP_SCAN_PARALLELISM : 4 * Runtime.getRuntime().availableProcessors();
+		executor = new ThreadPoolExecutor( parallelism, parallelism, KEEP_ALIVE, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger(0);
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "archive-scanner-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		// no threads, while nobody scans
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Runs all scans in parallel and waits for them, until the deep scan timeout is reached.
+	 *
+	 * @param scans reads the content of one archive each
+	 * @param fallbacks the archives without content, in the same order as the scans
+	 * @return the result of each scan or its fallback, if the scan failed or did not finish in time
+	 */
+	public List<Archive> scan( List<Callable<Archive>> scans, List<Archive> fallbacks ) {
+
+		long startTime = System.currentTimeMillis();
+		List<Future<Archive>> futures = new ArrayList<Future<Archive>>( scans.size() );
+		try {
+			for( Callable<Archive> scan : scans )
+				futures.add( executor.submit(scan) );
+		}
+		catch (RejectedExecutionException e) {
+			// shutting down, the remaining archives stay without content
+			LOGGER.warn(e, "Cannot schedule the deep scan of all archives");
+		}
+
+		List<Archive> result = new ArrayList<Archive>( fallbacks.size() );
+		boolean interrupted = false;
+		int partial = 0;
+		for( int i = 0; i < fallbacks.size(); i++ ) {
+			Archive archive = fallbacks.get(i);
+			Future<Archive> future = i < futures.size() ? futures.get(i) : null;
+
+			if( future != null && interrupted == false ) {
+				try {
+					if( Fields.DEEP_SCAN_TIMEOUT > 0 )
+						archive = future.get( Math.max(startTime + Fields.DEEP_SCAN_TIMEOUT - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS );
+					else
+						archive = future.get();
+				}
+				catch (TimeoutException e) {
+					LOGGER.warn("deep scan of archive ", archive.getId(), " did not finish within ", Fields.DEEP_SCAN_TIMEOUT, "ms");
+				}
+				catch (ExecutionException e) {
+					LOGGER.error(e.getCause(), "couldn't read combine archive ", archive.getId());
+				}
+				catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+
+			if( archive == fallbacks.get(i) ) {
+				partial++;
+				// do not interrupt a running scan, it might be reading from a shared archive
+				if( future != null )
+					future.cancel(false);
+			}
+			result.add(archive);
+		}
+
+		if( interrupted )
+			Thread.currentThread().interrupt();
+		if( partial > 0 )
+			LOGGER.info("deep scan of ", fallbacks.size(), " archives returned ", partial, " without content after ", System.currentTimeMillis() - startTime, "ms");
+
+		return result;
+	}
+
+	/**
+	 * Stops the threads, scans are rejected afterwards.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+}
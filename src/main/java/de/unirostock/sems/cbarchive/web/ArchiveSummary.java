@@ -0,0 +1,263 @@
+package de.unirostock.sems.cbarchive.web;
+/*
+CombineArchiveWeb - a WebInterface to read/create/write/manipulate/... COMBINE archives
+Copyright (C) 2014  SEMS Group
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import de.binfalse.bflog.LOGGER;
+import de.unirostock.sems.cbarchive.web.dataholder.ArchiveEntryDataholder;
+import de.unirostock.sems.cbarchive.web.provider.ObjectMapperProvider;
+
+/**
+ * Summary of an archive, stored as JSON file next to the archive.
+ *
+ * The summary holds the serialized entry dataholders including their meta data, exactly as
+ * they are returned by the REST interface, so listing the entries or reading meta data does
+ * not need to open the archive. The summary is written, after the archive got packed, and
+ * is only valid as long as the modification date and the size of the archive file match.
+ * Outdated summaries are rebuilt on the next read, see {@link UserManager#getArchiveSummary(String)}.
+ */
+public class ArchiveSummary {
+
+	/** version of the file format, summaries with another version are rebuilt */
+	public static final int VERSION = 2;
+	/** appended to the archive id, contains the property separator, so the index recovery ignores it */
+	public static final String FILE_EXTENSION = ".summary";
+
+	private static final String TEMP_EXTENSION = ".tmp";
+
+	private static final ObjectMapper mapper = new ObjectMapperProvider().getContext(null);
+
+	/** modification date and size of the archive file, this summary belongs to */
+	private long lastModified;
+	private long length;
+	/** serialized entries, sorted by file name */
+	private final ArrayNode entries;
+
+	private ArchiveSummary( long lastModified, long length, ArrayNode entries ) {
+		this.lastModified = lastModified;
+		this.length = length;
+		this.entries = entries;
+	}
+
+	/**
+	 * Creates the summary of the current state of an archive. The summary belongs to the
+	 * archive file, as it is when the summary gets written.
+	 *
+	 * @param entries the entry dataholders of the archive
+	 * @return the summary
+	 */
+	public static ArchiveSummary build( Collection<ArchiveEntryDataholder> entries ) {
+
+		List<ArchiveEntryDataholder> sorted = new ArrayList<ArchiveEntryDataholder>(entries);
+		Collections.sort(sorted, new Comparator<ArchiveEntryDataholder>() {
+			@Override
+			public int compare(ArchiveEntryDataholder o1, ArchiveEntryDataholder o2) {
+				return o1.getFileName().toLowerCase().compareTo(o2.getFileName().toLowerCase());
+			}
+		});
+
+		ArrayNode nodes = mapper.createArrayNode();
+		for( ArchiveEntryDataholder entry : sorted ) {
+			JsonNode node = mapper.valueToTree(entry);
+			nodes.add( node );
+		}
+
+		return new ArchiveSummary( -1L, -1L, nodes );
+	}
+
+	/**
+	 * Reads the summary of an archive.
+	 *
+	 * @param archiveFile the archive file
+	 * @return the summary or null, if there is no valid summary for the current state of the archive
+	 */
+	public static ArchiveSummary read( File archiveFile ) {
+
+		// stat the archive first, a concurrent write makes the summary look outdated, but never the other way round
+		long lastModified = archiveFile.lastModified();
+		long length = archiveFile.length();
+		File summaryFile = getSummaryFile(archiveFile);
+
+		JsonNode root = null;
+		try {
+			root = mapper.readTree( Files.readAllBytes(summaryFile.toPath()) );
+		} catch (NoSuchFileException e) {
+			return null;
+		} catch (IOException e) {
+			LOGGER.warn(e, "Cannot read archive summary ", summaryFile);
+			return null;
+		}
+
+		if( root == null || root.path("version").asInt() != VERSION )
+			return null;
+		if( root.path("lastModified").asLong() != lastModified || root.path("length").asLong() != length )
+			return null;
+
+		JsonNode entries = root.path("entries");
+		if( entries.isArray() == false )
+			return null;
+
+		return new ArchiveSummary( lastModified, length, (ArrayNode) entries );
+	}
+
+	/**
+	 * Writes the summary next to the archive. The file is replaced atomically, if supported.
+	 * The archive has to be locked and synced to disk, so the summary is tied to its current state.
+	 *
+	 * @param archiveFile the archive file
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public void write( File archiveFile ) throws IOException {
+
+		lastModified = archiveFile.lastModified();
+		length = archiveFile.length();
+
+		ObjectNode root = mapper.createObjectNode();
+		root.put("version", VERSION);
+		root.put("lastModified", lastModified);
+		root.put("length", length);
+		root.set("entries", entries);
+
+		File summaryFile = getSummaryFile(archiveFile);
+		// readers may rebuild the summary concurrently, so each one gets its own temp file
+		File tempFile = Files.createTempFile( summaryFile.getParentFile().toPath(), summaryFile.getName() + ".", TEMP_EXTENSION ).toFile();
+		try {
+			Files.write( tempFile.toPath(), mapper.writeValueAsBytes(root) );
+		}
+		catch (IOException e) {
+			Files.deleteIfExists( tempFile.toPath() );
+			throw e;
+		}
+
+		try {
+			Files.move( tempFile.toPath(), summaryFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING );
+		}
+		catch (AtomicMoveNotSupportedException e) {
+			Files.move( tempFile.toPath(), summaryFile.toPath(), StandardCopyOption.REPLACE_EXISTING );
+		}
+	}
+
+	/**
+	 * Removes the summary of an archive, if there is one.
+	 *
+	 * @param archiveFile the archive file
+	 */
+	public static void delete( File archiveFile ) {
+		try {
+			Files.deleteIfExists( getSummaryFile(archiveFile).toPath() );
+		} catch (IOException e) {
+			LOGGER.warn(e, "Cannot delete archive summary of ", archiveFile);
+		}
+	}
+
+	public static File getSummaryFile( File archiveFile ) {
+		return new File( archiveFile.getParentFile(), archiveFile.getName() + FILE_EXTENSION );
+	}
+
+	/**
+	 * Returns all entries, sorted by file name.
+	 *
+	 * @return the serialized entry dataholders
+	 */
+	public ArrayNode getEntries() {
+		return entries;
+	}
+
+	/**
+	 * Returns an entry by its id.
+	 *
+	 * @param entryId the entry id
+	 * @return the serialized entry dataholder or null
+	 */
+	public JsonNode getEntryById( String entryId ) {
+		return findById(entries, entryId);
+	}
+
+	/**
+	 * Returns an entry by its path in the archive.
+	 *
+	 * @param filePath the file path
+	 * @return the serialized entry dataholder or null
+	 */
+	public JsonNode getEntryByPath( String filePath ) {
+
+		if( filePath == null )
+			return null;
+
+		for( JsonNode entry : entries ) {
+			if( filePath.equals( entry.path("filePath").asText() ) )
+				return entry;
+		}
+
+		return null;
+	}
+
+	/**
+	 * Returns a meta object of an entry.
+	 *
+	 * @param entryId the entry id
+	 * @param metaId the meta id
+	 * @return the serialized meta object dataholder or null
+	 */
+	public JsonNode getMetaById( String entryId, String metaId ) {
+
+		JsonNode entry = getEntryById(entryId);
+		if( entry == null )
+			return null;
+
+		return findById( entry.path("meta"), metaId );
+	}
+
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	public long getLength() {
+		return length;
+	}
+
+	private static JsonNode findById( JsonNode nodes, String id ) {
+
+		if( id == null || id.isEmpty() )
+			return null;
+
+		for( JsonNode node : nodes ) {
+			if( id.equals( node.path("id").asText() ) )
+				return node;
+		}
+
+		return null;
+	}
+
+}
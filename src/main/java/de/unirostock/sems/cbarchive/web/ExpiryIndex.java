@@ -0,0 +1,146 @@
+package de.unirostock.sems.cbarchive.web;
+/*
+CombineArchiveWeb - a WebInterface to read/create/write/manipulate/... COMBINE archives
+Copyright (C) 2014  SEMS Group
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Time ordered index of the workspaces by their last-seen date, a timing wheel with
+ * fixed-width buckets.
+ *
+ * Every workspace is in exactly one bucket, touching a workspace moves it to the bucket
+ * of the new last-seen date. Expired workspaces are polled bucket by bucket from the old
+ * end, so the costs of an expiry run only depend on the number of expired workspaces.
+ */
+public class ExpiryIndex {
+
+	/** width of one bucket in ms */
+	private final long bucketWidth;
+
+	/** bucket number -> ids of the workspaces in this bucket */
+	private final ConcurrentSkipListMap<Long, Set<String>> buckets = new ConcurrentSkipListMap<Long, Set<String>>();
+	/** workspace id -> bucket number */
+	private final ConcurrentMap<String, Long> bucketOf = new ConcurrentHashMap<String, Long>();
+
+	public ExpiryIndex( long bucketWidth ) {
+		this.bucketWidth = bucketWidth;
+	}
+
+	/**
+	 * Adds a workspace or moves it to the bucket of its new last-seen date.
+	 *
+	 * @param workspaceId the workspace id
+	 * @param lastseen the last-seen timestamp in ms
+	 */
+	public void touch( String workspaceId, long lastseen ) {
+
+		long bucket = lastseen / bucketWidth;
+
+		// most workspaces are touched several times within the same bucket
+		Long current = bucketOf.get(workspaceId);
+		if( current != null && current == bucket )
+			return;
+
+		synchronized (this) {
+			current = bucketOf.put(workspaceId, bucket);
+			if( current != null )
+				removeFromBucket(current, workspaceId);
+
+			Set<String> ids = buckets.get(bucket);
+			if( ids == null ) {
+				ids = Collections.newSetFromMap( new ConcurrentHashMap<String, Boolean>() );
+				buckets.put(bucket, ids);
+			}
+			ids.add(workspaceId);
+		}
+	}
+
+	/**
+	 * Removes a workspace from the index.
+	 *
+	 * @param workspaceId the workspace id
+	 */
+	public synchronized void remove( String workspaceId ) {
+
+		Long bucket = bucketOf.remove(workspaceId);
+		if( bucket != null )
+			removeFromBucket(bucket, workspaceId);
+	}
+
+	/**
+	 * Removes and returns all workspaces, which were last seen before the deadline.
+	 * Workspaces of the bucket containing the deadline stay, until the whole bucket is due.
+	 *
+	 * @param deadline timestamp in ms
+	 * @return ids of the expired workspaces
+	 */
+	public synchronized List<String> pollExpired( long deadline ) {
+
+		List<String> expired = new ArrayList<String>();
+		NavigableMap<Long, Set<String>> due = buckets.headMap( deadline / bucketWidth, false );
+
+		for( Map.Entry<Long, Set<String>> entry : due.entrySet() ) {
+			for( String workspaceId : entry.getValue() ) {
+				bucketOf.remove(workspaceId);
+				expired.add(workspaceId);
+			}
+		}
+		due.clear();
+
+		return expired;
+	}
+
+	/**
+	 * Returns a read-only view of all buckets, ordered from the oldest to the newest.
+	 * The start of a bucket in ms is its number times the bucket width.
+	 *
+	 * @return bucket number -> ids of the workspaces
+	 */
+	public SortedMap<Long, Set<String>> getBuckets() {
+		return Collections.unmodifiableSortedMap(buckets);
+	}
+
+	public long getBucketWidth() {
+		return bucketWidth;
+	}
+
+	public int size() {
+		return bucketOf.size();
+	}
+
+	private void removeFromBucket( long bucket, String workspaceId ) {
+
+		Set<String> ids = buckets.get(bucket);
+		if( ids == null )
+			return;
+
+		ids.remove(workspaceId);
+		if( ids.isEmpty() )
+			buckets.remove(bucket);
+	}
+
+}
@@ -47,6 +47,24 @@ public class Fields {
 	public static File STORAGE = new File ("/tmp/CombineArchiveWebStorage");
 
 	public static File SETTINGS_FILE = new File( STORAGE, SETTINGS_FILE_NAME );
+
+	public static final String JOURNAL_FILE_NAME = "CaWeb.settings.journal";
+
+	/** Append-only journal of all changes since the last settings snapshot */
+	public static File JOURNAL_FILE = new File( STORAGE, JOURNAL_FILE_NAME );
+
+	public static final String MVSTORE_FILE_NAME = "CaWeb.mvstore";
+
+	/** Database file of the embedded workspace store */
+	public static File MVSTORE_FILE = new File( STORAGE, MVSTORE_FILE_NAME );
+
+	public static final String TOMBSTONE_DIR_NAME = ".tombstones";
+
+	/** Removed workspaces are moved here, until they are deleted in the background */
+	public static File TOMBSTONE_DIR = new File( STORAGE, TOMBSTONE_DIR_NAME );
+
+	/** Backend of the workspace index, either "properties" or "mvstore". Only mvstore keeps idle workspaces out of memory */
+	public static String WORKSPACE_STORE = "mvstore";
 	
 	/** Blacklist of file names */
 	public static final Set<String> FILENAME_BLACKLIST = Collections.unmodifiableSet(
@@ -70,6 +88,48 @@ public class Fields {
 	// 5 min.
 	public static final long STORAGE_AGE = 60*5*1000;
 
+	/** time in seconds after which an unused workspace is dropped from memory */
+	public static long WORKSPACE_IDLE_TIME = 60*30;
+
+	/** maximum number of workspaces kept in memory, 0 means unlimited */
+	public static long WORKSPACE_CACHE_SIZE = 1000;
+
+	/** recovery of the workspace index from the storage directory on startup: off, auto (only missing workspaces, if the index is empty or unreadable) or force (also missing archives) */
+	public static String RECOVERY_MODE = "auto";
+
+	/** number of threads used for the recovery, 0 means one per processor */
+	public static long RECOVERY_PARALLELISM = 0;
+
+	/** maximum number of files per second deleted from removed workspaces, 0 means unlimited */
+	public static long DELETE_RATE = 200;
+
+	/** time in ms, changes of the workspace index are collected before they are written. 0 writes them immediately */
+	public static long WRITE_BEHIND_WINDOW = 200;
+
+	/** fsync policy for the workspace index: none, snapshot or batch */
+	public static String FSYNC_POLICY = "batch";
+
+	/** number of journal records, after which the journal gets compacted into the settings file */
+	public static long JOURNAL_COMPACT_THRESHOLD = 1000;
+
+	/** maximum number of parsed archives kept open for reading, 0 disables the archive cache */
+	public static long ARCHIVE_CACHE_SIZE = 64;
+
+	/** maximum size in bytes of all archive files in the archive cache together, 0 means unlimited */
+	public static long ARCHIVE_CACHE_BYTES = 256 * 1024 * 1024;
+
+	/** number of threads used to read the archives of a workspace in parallel, 0 means four per processor */
+	public static long DEEP_SCAN_PARALLELISM = 0;
+
+	/** time in ms to wait for the archives of a workspace to be read, slower archives are listed without content. 0 means no limit */
+	public static long DEEP_SCAN_TIMEOUT = 3000;
+
+	/** maximum share of unused bytes in an archive file in percent, files are added in place as long as it stays below. 0 disables adding in place */
+	public static long APPEND_MAX_DEAD_SPACE = 25;
+
+	/** time in ms, a changed archive is kept open as working copy after its last change, before it gets packed. 0 disables working copies */
+	public static long WORKING_COPY_IDLE_TIMEOUT = 0;
+
 	/** Prefix for temp files */
 	public static final String TEMP_FILE_PREFIX = "caweb";
 
@@ -140,6 +200,18 @@ public class Fields {
 	/** Maximum file size for uploads. 0 means unlimited */
 	public static long QUOTA_UPLOAD_SIZE = QUOTA_UNLIMITED;
 
+	/** Time in seconds between two quota scans, which update the stats and remove expired workspaces. 0 disables the periodic scan */
+	public static long QUOTA_SCAN_INTERVAL = 900;
+
+	/** Time in seconds between two full rescans of all archive sizes, in between the sizes are tracked incrementally */
+	public static long QUOTA_RECONCILIATION_INTERVAL = 86400;
+
+	/** Number of threads used for the quota scan, 0 means one per processor */
+	public static long QUOTA_SCAN_PARALLELISM = 0;
+
+	/** Time in seconds, after which the quota reservation of an unfinished upload or import is dropped. 0 means never */
+	public static long QUOTA_RESERVATION_TIMEOUT = 3600;
+
 	// ------------------------------------------------------------------------
 	// Loading Fields from servlet context
 
@@ -188,10 +260,54 @@ public class Fields {
 		if( storage != null ) {
 			Fields.STORAGE = new File( storage );
 			Fields.SETTINGS_FILE = new File( Fields.STORAGE, Fields.SETTINGS_FILE_NAME );
+			Fields.JOURNAL_FILE = new File( Fields.STORAGE, Fields.JOURNAL_FILE_NAME );
+			Fields.MVSTORE_FILE = new File( Fields.STORAGE, Fields.MVSTORE_FILE_NAME );
+			Fields.TOMBSTONE_DIR = new File( Fields.STORAGE, Fields.TOMBSTONE_DIR_NAME );
 
 			LOGGER.info("Set storage to ", Fields.STORAGE);
 		}
 		
+		// workspace store backend
+		String workspaceStore = context.getInitParameter("WORKSPACE_STORE");
+		if( workspaceStore != null && workspaceStore.isEmpty() == false )
+			WORKSPACE_STORE = workspaceStore.toLowerCase();
+		
+		// materialized workspaces
+		WORKSPACE_IDLE_TIME = parseLong( context.getInitParameter("WORKSPACE_IDLE_TIME"), WORKSPACE_IDLE_TIME );
+		WORKSPACE_CACHE_SIZE = parseLong( context.getInitParameter("WORKSPACE_CACHE_SIZE"), WORKSPACE_CACHE_SIZE );
+		
+		// index recovery
+		String recoveryMode = context.getInitParameter("RECOVERY_MODE");
+		if( recoveryMode != null && recoveryMode.isEmpty() == false )
+			RECOVERY_MODE = recoveryMode.toLowerCase();
+		RECOVERY_PARALLELISM = parseLong( context.getInitParameter("RECOVERY_PARALLELISM"), RECOVERY_PARALLELISM );
+		
+		// background deletion
+		DELETE_RATE = parseLong( context.getInitParameter("DELETE_RATE"), DELETE_RATE );
+		
+		// write behind
+		WRITE_BEHIND_WINDOW = parseLong( context.getInitParameter("WRITE_BEHIND_WINDOW"), WRITE_BEHIND_WINDOW );
+		String fsyncPolicy = context.getInitParameter("FSYNC_POLICY");
+		if( fsyncPolicy != null && fsyncPolicy.isEmpty() == false )
+			FSYNC_POLICY = fsyncPolicy.toLowerCase();
+		
+		// settings journal
+		JOURNAL_COMPACT_THRESHOLD = parseLong( context.getInitParameter("JOURNAL_COMPACT_THRESHOLD"), JOURNAL_COMPACT_THRESHOLD );
+		
+		// archive cache
+		ARCHIVE_CACHE_SIZE = parseLong( context.getInitParameter("ARCHIVE_CACHE_SIZE"), ARCHIVE_CACHE_SIZE );
+		ARCHIVE_CACHE_BYTES = parseLong( context.getInitParameter("ARCHIVE_CACHE_BYTES"), ARCHIVE_CACHE_BYTES );
+		
+		// deep scan
+		DEEP_SCAN_PARALLELISM = parseLong( context.getInitParameter("DEEP_SCAN_PARALLELISM"), DEEP_SCAN_PARALLELISM );
+		DEEP_SCAN_TIMEOUT = parseLong( context.getInitParameter("DEEP_SCAN_TIMEOUT"), DEEP_SCAN_TIMEOUT );
+		
+		// in place additions
+		APPEND_MAX_DEAD_SPACE = parseLong( context.getInitParameter("APPEND_MAX_DEAD_SPACE"), APPEND_MAX_DEAD_SPACE );
+		
+		// working copies
+		WORKING_COPY_IDLE_TIMEOUT = parseLong( context.getInitParameter("WORKING_COPY_IDLE_TIMEOUT"), WORKING_COPY_IDLE_TIMEOUT );
+		
 		// sedML WebTools
 		String sedMlWebTools = context.getInitParameter("SEDML_WEBTOOLS");
 		if( sedMlWebTools != null && sedMlWebTools.isEmpty() == false )
@@ -246,19 +362,43 @@ public class Fields {
 		QUOTA_ARCHIVE_LIMIT		= parseQuotaFromString( context.getInitParameter("QUOTA_ARCHIVE_LIMIT") );
 		QUOTA_FILE_LIMIT		= parseQuotaFromString( context.getInitParameter("QUOTA_FILE_LIMIT") );
 		QUOTA_UPLOAD_SIZE		= parseQuotaFromString( context.getInitParameter("QUOTA_UPLOAD_SIZE") );
+		QUOTA_SCAN_INTERVAL = parseLong( context.getInitParameter("QUOTA_SCAN_INTERVAL"), QUOTA_SCAN_INTERVAL );
+		QUOTA_RECONCILIATION_INTERVAL = parseLong( context.getInitParameter("QUOTA_RECONCILIATION_INTERVAL"), QUOTA_RECONCILIATION_INTERVAL );
+		QUOTA_SCAN_PARALLELISM = parseLong( context.getInitParameter("QUOTA_SCAN_PARALLELISM"), QUOTA_SCAN_PARALLELISM );
+		QUOTA_RESERVATION_TIMEOUT = parseLong( context.getInitParameter("QUOTA_RESERVATION_TIMEOUT"), QUOTA_RESERVATION_TIMEOUT );
 		
 		
 		LOGGER.info ("configured: ",
 			"\nLoglevel: ", desiredLogLevel,
 			"\nFields.STORAGE: ", Fields.STORAGE,
 			"\nFields.SETTINGS_FILE: ", Fields.SETTINGS_FILE,
+			"\nFields.JOURNAL_FILE: ", Fields.JOURNAL_FILE,
+			"\nWORKSPACE_STORE: ", WORKSPACE_STORE,
+			"\nWORKSPACE_IDLE_TIME: ", WORKSPACE_IDLE_TIME,
+			"\nWORKSPACE_CACHE_SIZE: ", WORKSPACE_CACHE_SIZE,
+			"\nRECOVERY_MODE: ", RECOVERY_MODE,
+			"\nRECOVERY_PARALLELISM: ", RECOVERY_PARALLELISM,
+			"\nDELETE_RATE: ", DELETE_RATE,
+			"\nWRITE_BEHIND_WINDOW: ", WRITE_BEHIND_WINDOW,
+			"\nFSYNC_POLICY: ", FSYNC_POLICY,
+			"\nJOURNAL_COMPACT_THRESHOLD: ", JOURNAL_COMPACT_THRESHOLD,
+			"\nARCHIVE_CACHE_SIZE: ", ARCHIVE_CACHE_SIZE,
+			"\nARCHIVE_CACHE_BYTES: ", ARCHIVE_CACHE_BYTES,
+			"\nDEEP_SCAN_PARALLELISM: ", DEEP_SCAN_PARALLELISM,
+			"\nDEEP_SCAN_TIMEOUT: ", DEEP_SCAN_TIMEOUT,
+			"\nAPPEND_MAX_DEAD_SPACE: ", APPEND_MAX_DEAD_SPACE,
+			"\nWORKING_COPY_IDLE_TIMEOUT: ", WORKING_COPY_IDLE_TIMEOUT,
 			"\nQUOTA_TOTAL_SIZE: ", QUOTA_TOTAL_SIZE,
 			"\nQUOTA_WORKSPACE_SIZE: ", QUOTA_WORKSPACE_SIZE,
 			"\nQUOTA_WORKSPACE_AGE: ", QUOTA_WORKSPACE_AGE,
 			"\nQUOTA_ARCHIVE_SIZE: ", QUOTA_ARCHIVE_SIZE,
 			"\nQUOTA_ARCHIVE_LIMIT: ", QUOTA_ARCHIVE_LIMIT,
 			"\nQUOTA_FILE_LIMIT: ", QUOTA_FILE_LIMIT, 
-			"\nQUOTA_UPLOAD_SIZE: ", QUOTA_UPLOAD_SIZE
+			"\nQUOTA_UPLOAD_SIZE: ", QUOTA_UPLOAD_SIZE,
+			"\nQUOTA_SCAN_INTERVAL: ", QUOTA_SCAN_INTERVAL,
+			"\nQUOTA_RECONCILIATION_INTERVAL: ", QUOTA_RECONCILIATION_INTERVAL,
+			"\nQUOTA_SCAN_PARALLELISM: ", QUOTA_SCAN_PARALLELISM,
+			"\nQUOTA_RESERVATION_TIMEOUT: ", QUOTA_RESERVATION_TIMEOUT
 			);
 		
 	}
@@ -0,0 +1,182 @@
+package de.unirostock.sems.cbarchive.web;
+/*
+CombineArchiveWeb - a WebInterface to read/create/write/manipulate/... COMBINE archives
+Copyright (C) 2014  SEMS Group
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import de.unirostock.sems.cbarchive.web.dataholder.StatisticData;
+
+/**
+ * Compact histogram of non-negative values with logarithmic buckets.
+ *
+ * Every power of two is split into {@value #SUB_BUCKETS} linear buckets, so a value is
+ * known with a relative error of at most 1/{@value #SUB_BUCKETS}, while the whole range of
+ * long values fits into less than 500 counters. Values can be added and removed again,
+ * so the histogram can follow changing sizes incrementally. Histograms with the same
+ * layout can be merged by adding up their counters.
+ */
+public class Histogram {
+
+	/** linear buckets per power of two, smaller values are counted exactly */
+	private static final int SUB_BUCKETS = 8;
+	private static final int SUB_BUCKET_BITS = 3;
+	/** number of buckets to cover all values up to Long.MAX_VALUE */
+	private static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+	/**
+	 * Counts a value.
+	 *
+	 * @param value the value, negative values are counted as 0
+	 */
+	public void add( long value ) {
+		counts.incrementAndGet( bucketOf(value) );
+	}
+
+	/**
+	 * Counts a value multiple times.
+	 *
+	 * @param value the value, negative values are counted as 0
+	 * @param count number of occurrences
+	 */
+	public void add( long value, long count ) {
+		if( count != 0 )
+			counts.addAndGet( bucketOf(value), count );
+	}
+
+	/**
+	 * Removes a value, which was counted before.
+	 *
+	 * @param value the value
+	 */
+	public void remove( long value ) {
+		counts.decrementAndGet( bucketOf(value) );
+	}
+
+	/**
+	 * Replaces a counted value by a new one.
+	 *
+	 * @param oldValue the old value
+	 * @param newValue the new value
+	 */
+	public void replace( long oldValue, long newValue ) {
+
+		int oldBucket = bucketOf(oldValue);
+		int newBucket = bucketOf(newValue);
+		if( oldBucket == newBucket )
+			return;
+
+		counts.incrementAndGet(newBucket);
+		counts.decrementAndGet(oldBucket);
+	}
+
+	/**
+	 * Adds all counts of the other histogram to this one.
+	 *
+	 * @param other the other histogram
+	 */
+	public void merge( Histogram other ) {
+		for( int i = 0; i < BUCKETS; i++ ) {
+			long count = other.counts.get(i);
+			if( count != 0 )
+				counts.addAndGet(i, count);
+		}
+	}
+
+	/**
+	 * Drops all counts.
+	 */
+	public void clear() {
+		for( int i = 0; i < BUCKETS; i++ )
+			counts.set(i, 0L);
+	}
+
+	/**
+	 * Computes the percentiles of the current counts.
+	 * Reported values are the upper bounds of the buckets, so they never underestimate.
+	 *
+	 * @return the distribution
+	 */
+	public StatisticData.Distribution getDistribution() {
+
+		// one consistent copy, the counters may change meanwhile
+		long[] snapshot = new long[BUCKETS];
+		long total = 0L;
+		int highest = -1;
+		for( int i = 0; i < BUCKETS; i++ ) {
+			// removals may overtake the additions for a moment
+			snapshot[i] = Math.max( counts.get(i), 0L );
+			total += snapshot[i];
+			if( snapshot[i] > 0 )
+				highest = i;
+		}
+
+		StatisticData.Distribution distribution = new StatisticData.Distribution();
+		distribution.setCount(total);
+		if( total == 0 )
+			return distribution;
+
+		distribution.setP50( percentile(snapshot, total, 0.50) );
+		distribution.setP90( percentile(snapshot, total, 0.90) );
+		distribution.setP99( percentile(snapshot, total, 0.99) );
+		distribution.setMax( upperBound(highest) );
+
+		return distribution;
+	}
+
+	private static long percentile( long[] snapshot, long total, double quantile ) {
+
+		long rank = (long) Math.ceil( quantile * total );
+		long seen = 0L;
+		for( int i = 0; i < snapshot.length; i++ ) {
+			seen += snapshot[i];
+			if( seen >= rank )
+				return upperBound(i);
+		}
+
+		return upperBound(snapshot.length - 1);
+	}
+
+	private static int bucketOf( long value ) {
+
+		if( value < SUB_BUCKETS )
+			return value < 0 ? 0 : (int) value;
+
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return SUB_BUCKETS + (exponent - SUB_BUCKET_BITS) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * Returns the largest value, which falls into the bucket.
+	 */
+	private static long upperBound( int bucket ) {
+
+		if( bucket < SUB_BUCKETS )
+			return bucket;
+
+		int exponent = (bucket - SUB_BUCKETS) / SUB_BUCKETS + SUB_BUCKET_BITS;
+		long sub = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+		long lower = (1L << exponent) + (sub << (exponent - SUB_BUCKET_BITS));
+		long width = 1L << (exponent - SUB_BUCKET_BITS);
+		// the last bucket ends at Long.MAX_VALUE
+		return lower + width - 1 < lower ? Long.MAX_VALUE : lower + width - 1;
+	}
+
+}
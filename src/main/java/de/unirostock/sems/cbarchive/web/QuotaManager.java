@@ -17,18 +17,48 @@ You should have received a copy of the GNU General Public License
 along with this program.  If not, see <http://www.gnu.org/licenses/>.
 */
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import de.binfalse.bflog.LOGGER;
 import de.unirostock.sems.cbarchive.web.dataholder.StatisticData;
 import de.unirostock.sems.cbarchive.web.dataholder.Workspace;
+import de.unirostock.sems.cbarchive.web.exception.QuotaException;
 
+/**
+ * Keeps track of the disk usage of all workspaces.
+ * 
+ * The sizes are accounted incrementally: every write or deletion of an archive adjusts the
+ * counters of its workspace and the total size by the difference in bytes, so quota checks
+ * do not need to touch the file system. A full rescan of all archives only runs as
+ * reconciliation every {@link Fields#QUOTA_RECONCILIATION_INTERVAL} seconds.
+ * 
+ * The distributions of the archive and workspace sizes are kept in histograms, which follow the
+ * same incremental updates.
+ * 
+ * Uploads and imports reserve their bytes before they write anything, see {@link #reserve(Workspace, String, long)}.
+ * Reserved bytes count against the quotas like written ones, so concurrent uploads cannot overcommit
+ * the storage together.
+ */
 public class QuotaManager {
 
 	// Singleton stuff
@@ -47,29 +77,139 @@ public class QuotaManager {
 
 	// --------------------------------------------------------------------------------
 
-	protected Map<String, Long> workspaceCache = new HashMap<String, Long>();
+	protected ConcurrentMap<String, WorkspaceUsage> usages = new ConcurrentHashMap<String, WorkspaceUsage>();
 	protected WorkspaceManager workspaceManager = null;
-	protected long totalSize = 0L;
+	protected final AtomicLong totalSize = new AtomicLong(0L);
+	/** time in ms, when the next full scan has to re-read all archive sizes */
+	protected volatile long nextReconciliation = 0L;
 	
-	protected Thread workerThread = null;
-	protected long workerExecutionTime = 0L;
+	/** time in seconds to wait for a running scan on shutdown */
+	private static final long SHUTDOWN_TIMEOUT = 10;
+	/** maximum time in seconds between two checks for timed out reservations */
+	private static final long RESERVATION_SWEEP_INTERVAL = 60;
 	
-	protected StatisticData stats = null;
-	protected Date statsTimestamp = null;
+	/** runs all scans, one after the other */
+	protected final ScheduledExecutorService executor;
+	/** splits each scan across {@link Fields#QUOTA_SCAN_PARALLELISM} threads, the scan is mostly waiting for the file system */
+	protected final ForkJoinPool scanPool;
+	/** runs the expiry and the reservation sweeps, so they do not wait for a long scan */
+	protected final ScheduledExecutorService maintenance;
+	/** deletes the expired workspaces, one after the other */
+	protected final ExecutorService remover;
+	/** true while a scan is queued, but not started yet */
+	protected final AtomicBoolean scanPending = new AtomicBoolean(false);
+	/** true while a scan is running */
+	protected volatile boolean scanRunning = false;
+	/** true, if one of the callers of the pending scan wants the settings to be stored afterwards */
+	protected final AtomicBoolean storeSettingsPending = new AtomicBoolean(false);
+	protected volatile long workerExecutionTime = 0L;
+	
+	/** last generated stats, only replaced as a whole and never modified after publication */
+	protected volatile StatisticData stats = null;
+	
+	/** all open reservations, to drop them after their timeout */
+	protected final Set<QuotaReservation> reservations = Collections.newSetFromMap( new ConcurrentHashMap<QuotaReservation, Boolean>() );
+	/** bytes reserved in all workspaces together */
+	protected final AtomicLong totalReserved = new AtomicLong(0L);
+	
+	/** sizes of all accounted archives */
+	protected final Histogram archiveSizes = new Histogram();
+	/** sizes of all accounted workspaces */
+	protected final Histogram workspaceSizes = new Histogram();
+	/** number of entries of all archives, which were opened since the start */
+	protected final Histogram archiveEntries = new Histogram();
 
 	private QuotaManager() {
 
 		workspaceManager = WorkspaceManager.getInstance();
+		executor = Executors.newSingleThreadScheduledExecutor( new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "quota-scanner");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		maintenance = Executors.newSingleThreadScheduledExecutor( new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "quota-maintenance");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		scanPool = new ForkJoinPool( Fields.QUOTA_SCAN_PARALLELISM > 0 ? (int) Fields.QUOTA_SCAN_PARALLELISM : Runtime.getRuntime().availableProcessors() );
+		remover = Executors.newSingleThreadExecutor( new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "workspace-remover");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
 		//forceAsyncScan(false);
 	}
 	
+	/**
+	 * Schedules the periodic scans every {@link Fields#QUOTA_SCAN_INTERVAL} seconds
+	 * and the removal of expired workspaces.
+	 * The first scan runs right away, if the total quota needs to be known.
+	 */
+	public void start() {
+		
+		boolean scanNow = Fields.QUOTA_TOTAL_SIZE != Fields.QUOTA_UNLIMITED;
+		if( Fields.QUOTA_SCAN_INTERVAL > 0 ) {
+			executor.scheduleWithFixedDelay( new Runnable() {
+				@Override
+				public void run() {
+					forceAsyncScan(false);
+				}
+			}, scanNow ? 0 : Fields.QUOTA_SCAN_INTERVAL, Fields.QUOTA_SCAN_INTERVAL, TimeUnit.SECONDS );
+		}
+		else if( scanNow )
+			forceAsyncScan(false);
+		
+		// only visits the workspaces, which are due
+		if( Fields.QUOTA_WORKSPACE_AGE != Fields.QUOTA_UNLIMITED )
+			maintenance.scheduleWithFixedDelay( new Reaper(), 0, WorkspaceManager.EXPIRY_BUCKET_WIDTH, TimeUnit.MILLISECONDS );
+		
+		// drops the reservations of crashed or abandoned uploads
+		if( Fields.QUOTA_RESERVATION_TIMEOUT > 0 ) {
+			long period = Math.min( Fields.QUOTA_RESERVATION_TIMEOUT, RESERVATION_SWEEP_INTERVAL );
+			maintenance.scheduleWithFixedDelay( new ReservationSweeper(), period, period, TimeUnit.SECONDS );
+		}
+		
+	}
+	
+	/**
+	 * Stops all scans and the removal of expired workspaces. A running scan gets interrupted.
+	 */
+	public void shutdown() {
+		
+		LOGGER.info("shutting down quota manager");
+		executor.shutdownNow();
+		scanPool.shutdownNow();
+		maintenance.shutdownNow();
+		// queued removals are skipped, a running one is finished
+		remover.shutdown();
+		
+		try {
+			if( executor.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.SECONDS) == false )
+				LOGGER.warn("quota scan did not finish within ", SHUTDOWN_TIMEOUT, " seconds");
+			if( remover.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.SECONDS) == false )
+				LOGGER.warn("workspace removal did not finish within ", SHUTDOWN_TIMEOUT, " seconds");
+		} catch (InterruptedException e) {
+			LOGGER.warn(e, "Interrupted while waiting for the quota scan");
+		}
+	}
+	
 	/**
 	 * Retuns the total size in bytes from all workspaces or 0L if it fails.
 	 * 
 	 * @return the total size
 	 */
 	public long getTotalSize() {
-		return totalSize;
+		return totalSize.get();
 	}
 	
 	/**
@@ -78,38 +218,336 @@ public class QuotaManager {
 	 */
 	public void forceAsyncScan( boolean storeSettingsAfterwards ) {
 		
-		if( (workerThread == null || workerThread.isAlive() == false) && workerLock.tryLock() ) {
-			workerThread = new Thread( new Worker(this, storeSettingsAfterwards) );
-			workerLock.unlock();
-			workerThread.start();
+		if( storeSettingsAfterwards )
+			storeSettingsPending.set(true);
+		
+		// at most one scan is queued at a time, later requests are served by it
+		if( scanPending.compareAndSet(false, true) ) {
+			try {
+				executor.execute( new Worker(this) );
+			}
+			catch (RejectedExecutionException e) {
+				scanPending.set(false);
+				LOGGER.warn(e, "Cannot schedule quota scan");
+			}
 		}
 		
 	}
 	
 	/**
-	 * Returns the size in bytes of all archives together in the workspace or {@code 0L} if it fails. 
+	 * Returns the size in bytes of all archives together in the workspace or {@code 0L} if it fails.
+	 * Only scans the workspace, if its size is not known yet.
+	 * 
 	 * @param workspace  the workspace
 	 * @return the size in bytes of all archives in the workspace
 	 */
 	public long getWorkspaceSize( Workspace workspace ) {
 		
-		if( workspaceCache.get(workspace.getWorkspaceId()) != null )
-			return workspaceCache.get( workspace.getWorkspaceId() );
-
-		return updateWorkspace(workspace);
+		WorkspaceUsage usage = getUsage(workspace);
+		return usage != null ? usage.size.get() : 0L;
+	}
+	
+	/**
+	 * Returns the accounted size in bytes of one archive, without touching the file system.
+	 * 
+	 * @param workspace the workspace
+	 * @param archiveId the archive id
+	 * @return the size in bytes of the archive
+	 */
+	public long getArchiveSize( Workspace workspace, String archiveId ) {
+		
+		WorkspaceUsage usage = getUsage(workspace);
+		if( usage == null )
+			return 0L;
+		
+		synchronized (usage) {
+			Long archiveSize = usage.archives.get(archiveId);
+			// not accounted yet, fall back to the file system
+			return archiveSize != null ? archiveSize : workspace.getArchiveSize(archiveId);
+		}
+	}
+	
+	/**
+	 * Accounts a new or changed archive file. Has to be called after every write of an archive.
+	 * 
+	 * @param workspace the workspace
+	 * @param archiveId id of the written archive
+	 * @return the new size of the workspace
+	 */
+	public long updateArchive( Workspace workspace, String archiveId ) {
+		
+		WorkspaceUsage usage = getUsage(workspace);
+		if( usage == null )
+			return 0L;
+		
+		synchronized (usage) {
+			if( usage.removed == false ) {
+				long archiveSize = workspace.getArchiveSize(archiveId);
+				Long oldSize = usage.archives.put(archiveId, archiveSize);
+				if( oldSize != null )
+					archiveSizes.replace(oldSize, archiveSize);
+				else
+					archiveSizes.add(archiveSize);
+				addDelta( usage, archiveSize - (oldSize != null ? oldSize : 0L) );
+			}
+			return usage.size.get();
+		}
+	}
+	
+	/**
+	 * Accounts a deleted archive.
+	 * 
+	 * @param workspace the workspace
+	 * @param archiveId id of the deleted archive
+	 * @return the new size of the workspace
+	 */
+	public long removeArchive( Workspace workspace, String archiveId ) {
+		
+		WorkspaceUsage usage = getUsage(workspace);
+		if( usage == null )
+			return 0L;
+		
+		synchronized (usage) {
+			if( usage.removed == false ) {
+				Long oldSize = usage.archives.remove(archiveId);
+				if( oldSize != null ) {
+					archiveSizes.remove(oldSize);
+					addDelta( usage, -oldSize );
+				}
+				Long oldEntries = usage.entries.remove(archiveId);
+				if( oldEntries != null )
+					archiveEntries.remove(oldEntries);
+			}
+			return usage.size.get();
+		}
+	}
+	
+	/**
+	 * Records the number of entries of an archive, whenever it is known anyway, e.g. after the archive got opened.
+	 * 
+	 * @param workspace the workspace
+	 * @param archiveId the archive id
+	 * @param entries number of entries in the archive
+	 */
+	public void updateArchiveEntries( Workspace workspace, String archiveId, long entries ) {
+		
+		WorkspaceUsage usage = getUsage(workspace);
+		if( usage == null )
+			return;
+		
+		synchronized (usage) {
+			// only archives, which are accounted, deleted ones may still be open
+			if( usage.removed || usage.archives.containsKey(archiveId) == false )
+				return;
+			
+			Long oldEntries = usage.entries.put(archiveId, entries);
+			if( oldEntries != null )
+				archiveEntries.replace(oldEntries, entries);
+			else
+				archiveEntries.add(entries);
+		}
+	}
+	
+	/**
+	 * Drops the accounting of a deleted workspace.
+	 * 
+	 * @param workspaceId id of the workspace
+	 */
+	public void removeWorkspace( String workspaceId ) {
+		
+		WorkspaceUsage usage = usages.remove(workspaceId);
+		if( usage == null )
+			return;
+		
+		synchronized (usage) {
+			if( usage.removed == false ) {
+				usage.removed = true;
+				totalSize.addAndGet( -usage.size.get() );
+				
+				if( usage.scanned )
+					workspaceSizes.remove( usage.size.get() );
+				for( long archiveSize : usage.archives.values() )
+					archiveSizes.remove(archiveSize);
+				for( long entries : usage.entries.values() )
+					archiveEntries.remove(entries);
+			}
+		}
+	}
+	
+	/**
+	 * Reserves bytes for an upload or import into the workspace, before anything is written.
+	 * The reservation is checked against the archive, workspace and total quota, counting in all
+	 * other open reservations. The check and the reservation are atomic.
+	 * 
+	 * The caller has to {@link QuotaReservation#commit() commit} the reservation after the data is written
+	 * or {@link QuotaReservation#release() release} it on failure.
+	 * 
+	 * @param workspace the workspace
+	 * @param archiveId the archive, which receives the data, or null for a new archive
+	 * @param bytes number of bytes to reserve, may be 0 to grow the reservation later on
+	 * @return the reservation
+	 * @throws QuotaException if a quota would be exceeded
+	 */
+	public QuotaReservation reserve( Workspace workspace, String archiveId, long bytes ) throws QuotaException {
+		
+		if( workspace == null )
+			throw new IllegalArgumentException("No workspace provided");
+		
+		long deadline = Fields.QUOTA_RESERVATION_TIMEOUT > 0 ? new Date().getTime() + Fields.QUOTA_RESERVATION_TIMEOUT * 1000 : Long.MAX_VALUE;
+		QuotaReservation reservation = new QuotaReservation( this, workspace, archiveId, getUsage(workspace), deadline );
+		reserve( reservation, bytes );
+		reservations.add(reservation);
+		
+		return reservation;
+	}
+	
+	/**
+	 * Returns the number of bytes, which are currently reserved in all workspaces.
+	 * 
+	 * @return the reserved bytes
+	 */
+	public long getTotalReserved() {
+		return totalReserved.get();
+	}
+	
+	/**
+	 * Adds bytes to a reservation, if no quota gets exceeded.
+	 * The workspace and archive quota are checked under the monitor of the workspace accounting, so
+	 * reservations in different workspaces do not block each other. The total quota is checked lock free.
+	 * 
+	 * @param reservation the reservation
+	 * @param bytes the additional bytes
+	 * @throws QuotaException if a quota would be exceeded
+	 */
+	protected void reserve( QuotaReservation reservation, long bytes ) throws QuotaException {
+		
+		if( bytes < 0 )
+			throw new IllegalArgumentException("Cannot reserve a negative amount of bytes");
+		
+		String workspaceId = reservation.workspace.getWorkspaceId();
+		synchronized (reservation) {
+			if( reservation.released )
+				throw new IllegalStateException("Reservation is already released");
+			if( bytes == 0 )
+				return;
+			
+			WorkspaceUsage usage = reservation.usage;
+			if( usage == null ) {
+				// workspace is gone, only the total quota is left
+				reserveTotal(workspaceId, bytes);
+				reservation.bytes += bytes;
+				return;
+			}
+			
+			synchronized (usage) {
+				String archiveId = reservation.archiveId;
+				
+				// max archive size
+				if( archiveId != null && Fields.QUOTA_ARCHIVE_SIZE != Fields.QUOTA_UNLIMITED ) {
+					Long archiveSize = usage.archives.get(archiveId);
+					Long archiveReserved = usage.reservedArchives.get(archiveId);
+					long current = (archiveSize != null ? archiveSize : reservation.workspace.getArchiveSize(archiveId)) + (archiveReserved != null ? archiveReserved : 0L);
+					if( Tools.checkQuota(current + bytes, Fields.QUOTA_ARCHIVE_SIZE) == false ) {
+						LOGGER.warn("QUOTA_ARCHIVE_SIZE reached in workspace ", workspaceId);
+						throw new QuotaException("QUOTA_ARCHIVE_SIZE reached in workspace " + workspaceId, "The maximum size of one archive is reached.");
+					}
+				}
+				
+				// max workspace size
+				if( Fields.QUOTA_WORKSPACE_SIZE != Fields.QUOTA_UNLIMITED && Tools.checkQuota(usage.size.get() + usage.reserved + bytes, Fields.QUOTA_WORKSPACE_SIZE) == false ) {
+					LOGGER.warn("QUOTA_WORKSPACE_SIZE reached in workspace ", workspaceId);
+					throw new QuotaException("QUOTA_WORKSPACE_SIZE reached in workspace " + workspaceId, "The maximum size of one workspace is reached.");
+				}
+				
+				// max total size
+				reserveTotal(workspaceId, bytes);
+				
+				usage.reserved += bytes;
+				if( archiveId != null ) {
+					Long archiveReserved = usage.reservedArchives.get(archiveId);
+					usage.reservedArchives.put( archiveId, (archiveReserved != null ? archiveReserved : 0L) + bytes );
+				}
+			}
+			reservation.bytes += bytes;
+		}
 	}
 	
 	/**
-	 * Updates the size of the workspace or removes the result from the cache, if the workspace is not available anymore
+	 * Accounts the written archive of the reservation, if any, and releases the reservation afterwards.
+	 * The bytes are accounted before they are released, so they never miss in the counters.
+	 * 
+	 * @param reservation the reservation
+	 */
+	protected void commit( QuotaReservation reservation ) {
+		
+		if( reservation.archiveId != null && reservation.isReleased() == false )
+			updateArchive( reservation.workspace, reservation.archiveId );
+		
+		release(reservation);
+	}
+	
+	/**
+	 * Gives the bytes of a reservation back. Does nothing, if the reservation is already released.
+	 * 
+	 * @param reservation the reservation
+	 */
+	protected void release( QuotaReservation reservation ) {
+		
+		synchronized (reservation) {
+			if( reservation.released )
+				return;
+			
+			reservation.released = true;
+			reservations.remove(reservation);
+			if( reservation.bytes == 0 )
+				return;
+			
+			WorkspaceUsage usage = reservation.usage;
+			if( usage != null ) {
+				synchronized (usage) {
+					usage.reserved -= reservation.bytes;
+					if( reservation.archiveId != null ) {
+						Long archiveReserved = usage.reservedArchives.remove(reservation.archiveId);
+						if( archiveReserved != null && archiveReserved > reservation.bytes )
+							usage.reservedArchives.put( reservation.archiveId, archiveReserved - reservation.bytes );
+					}
+				}
+			}
+			totalReserved.addAndGet( -reservation.bytes );
+		}
+	}
+	
+	/**
+	 * Adds bytes to the total reservations, if the total quota is not exceeded.
+	 * 
+	 * @param workspaceId id of the workspace, just for logging
+	 * @param bytes the bytes to reserve
+	 * @throws QuotaException if the total quota would be exceeded
+	 */
+	private void reserveTotal( String workspaceId, long bytes ) throws QuotaException {
+		
+		while( true ) {
+			long reserved = totalReserved.get();
+			if( Fields.QUOTA_TOTAL_SIZE != Fields.QUOTA_UNLIMITED && Tools.checkQuota(totalSize.get() + reserved + bytes, Fields.QUOTA_TOTAL_SIZE) == false ) {
+				LOGGER.warn("QUOTA_TOTAL_SIZE reached in workspace ", workspaceId);
+				throw new QuotaException("QUOTA_TOTAL_SIZE reached in workspace " + workspaceId, "The maximum size is reached.");
+			}
+			
+			if( totalReserved.compareAndSet(reserved, reserved + bytes) )
+				return;
+		}
+	}
+	
+	/**
+	 * Rescans the size of the workspace or removes it from the accounting, if the workspace is not available anymore
 	 * @param workspaceId id of the workspace
 	 * @return the new size of the workspace
 	 */
 	public long updateWorkspace( String workspaceId ) {
-		Workspace workspace = workspaceManager.getWorkspace(workspaceId);
+		Workspace workspace = workspaceManager.peekWorkspace(workspaceId);
 		
 		if( workspace == null ) {
-			workspaceCache.remove(workspaceId);
-			calcTotalSize();
+			removeWorkspace(workspaceId);
 			return 0L;
 		}
 		else
@@ -118,17 +556,43 @@ public class QuotaManager {
 	
 	/**
 	 * Gets the statistics on the page.
+	 * Never waits for a scan: outdated stats are returned immediately and refreshed in the background,
+	 * the refreshing flag of the result tells if a newer version is on its way.
 	 *
-	 * @return the stats
+	 * @return a copy of the last stats
 	 */
 	public StatisticData getStats() {
 		
-		// if cache is ok
-		if( stats == null || statsTimestamp == null || (new Date().getTime() - statsTimestamp.getTime() + workerExecutionTime)/1000 > Fields.STATS_MAX_AGE )
-			generateStats();
+		StatisticData stats = this.stats;
 		
-		LOGGER.debug( "return stats, generated at ", stats.getGenerated() );
-		return stats;
+		// stale while revalidate
+		if( stats == null || (new Date().getTime() - stats.getGenerated().getTime() + workerExecutionTime)/1000 > Fields.STATS_MAX_AGE ) {
+			LOGGER.debug( "refresh stats, old are generated at: ", stats != null ? stats.getGenerated() : null );
+			forceAsyncScan(false);
+		}
+		
+		StatisticData result = null;
+		if( stats != null )
+			result = stats.clone();
+		else {
+			// first scan after startup is not done yet
+			result = new StatisticData();
+			result.setGenerated(null);
+		}
+		result.setRefreshing( scanPending.get() || scanRunning );
+		
+		// the histograms are always up to date, no need to wait for a scan
+		result.setArchiveSizeDistribution( archiveSizes.getDistribution() );
+		result.setWorkspaceSizeDistribution( workspaceSizes.getDistribution() );
+		result.setArchiveEntriesDistribution( archiveEntries.getDistribution() );
+		result.setWorkspaceAgeDistribution( getWorkspaceAges(new Date().getTime()).getDistribution() );
+		ArchiveCache.getInstance().fillStats(result);
+		ArchiveAppender.getInstance().fillStats(result);
+		ArchiveMutationQueue.getInstance().fillStats(result);
+		WorkingCopyManager.getInstance().fillStats(result);
+		
+		LOGGER.debug( "return stats, generated at ", result.getGenerated() );
+		return result;
 	}
 	
 	/**
@@ -138,7 +602,7 @@ public class QuotaManager {
 	 * @return the user stats
 	 */
 	public StatisticData getUserStats(UserManager user) {
-		StatisticData stats = getStats().clone();
+		StatisticData stats = getStats();
 		
 		if( user != null ) {
 			// add user stats
@@ -151,156 +615,493 @@ public class QuotaManager {
 		return stats;
 	}
 	
-	private void generateStats() {
+	/**
+	 * Rescans the size of all archives in the workspace
+	 * @param workspace the workspace
+	 * @return updated size of the workspace
+	 */
+	public long updateWorkspace( Workspace workspace ) {
 		
-		LOGGER.debug( "start generation of new stats, old are generated at: ", stats.getGenerated() );
+		if( workspace == null )
+			return 0L;
+		if( workspaceManager.hasWorkspace(workspace.getWorkspaceId()) == false ) {
+			removeWorkspace( workspace.getWorkspaceId() );
+			return 0L;
+		}
 		
-		// start new thread
-		forceAsyncScan(false);
+		WorkspaceUsage usage = getUsage(workspace);
+		if( usage == null )
+			return 0L;
 		
-		// wait for the thread to finish
-		try {
-			workerThread.join( workerExecutionTime > 5 ? workerExecutionTime * 2 : 250 );
-		} catch (InterruptedException e) {
-			LOGGER.debug(e, "Aborted waiting for background task");
+		synchronized (usage) {
+			scanWorkspace(workspace.getWorkspaceId(), workspace.getArchives().keySet(), usage);
+			return usage.size.get();
 		}
+	}
+	
+	/**
+	 * Rescans the size of all accounted archives in the workspace, without reading the workspace from the store.
+	 * 
+	 * @param workspaceId id of the workspace
+	 * @param usage the accounting of the workspace
+	 * @return number of archives, which got rescanned
+	 */
+	private int rescanWorkspace( String workspaceId, WorkspaceUsage usage ) {
 		
-		LOGGER.debug( "stop waiting for generation, new stats are from: ", stats.getGenerated() );
+		if( workspaceManager.hasWorkspace(workspaceId) == false ) {
+			removeWorkspace(workspaceId);
+			return 0;
+		}
+		
+		synchronized (usage) {
+			List<String> archiveIds = new ArrayList<String>( usage.archives.keySet() );
+			scanWorkspace(workspaceId, archiveIds, usage);
+			return archiveIds.size();
+		}
 	}
 	
 	/**
-	 * Updates the size of the workspace
+	 * Returns the accounting of the workspace and scans it once, if it is not known yet.
+	 * 
 	 * @param workspace the workspace
-	 * @return updated size of the workspace
+	 * @return the usage or null, if the workspace does not exist (anymore)
 	 */
-	public long updateWorkspace( Workspace workspace ) {
+	private WorkspaceUsage getUsage( Workspace workspace ) {
 		
 		if( workspace == null )
-			return 0L;
-		if( workspaceManager.getWorkspace(workspace.getWorkspaceId()) == null ) {
-			workspaceCache.remove( workspace.getWorkspaceId() );
-			calcTotalSize();
-			return 0L;
+			return null;
+		
+		String workspaceId = workspace.getWorkspaceId();
+		WorkspaceUsage usage = usages.get(workspaceId);
+		if( usage == null ) {
+			if( workspaceManager.hasWorkspace(workspaceId) == false )
+				return null;
+			
+			WorkspaceUsage created = new WorkspaceUsage();
+			usage = usages.putIfAbsent(workspaceId, created);
+			if( usage == null )
+				usage = created;
 		}
 		
-		long size = scanWorkspace(workspace);
-		workspaceCache.put( workspace.getWorkspaceId(), size );
-		calcTotalSize();
+		synchronized (usage) {
+			if( usage.scanned == false )
+				scanWorkspace(workspaceId, workspace.getArchives().keySet(), usage);
+		}
 		
-		return size;
+		return usage;
 	}
 	
-	private long calcTotalSize() {
-		long totalSize = 0L;
-		for( Long workspaceSize : workspaceCache.values() )
-			totalSize += workspaceSize;
-
-		this.totalSize = totalSize;
-		return totalSize;
-	}
-
-	private long scanWorkspace( Workspace workspace ) {
-		long workspaceSize = 0L;
+	/**
+	 * Reads the sizes of the archives in the workspace from disk and corrects the counters,
+	 * caller has to hold the monitor of the usage.
+	 * 
+	 * @param workspaceId id of the workspace
+	 * @param archiveIds ids of all archives in the workspace
+	 * @param usage the accounting of the workspace
+	 */
+	private void scanWorkspace( String workspaceId, Collection<String> archiveIds, WorkspaceUsage usage ) {
 		
-		if( workspace == null )
-			return workspaceSize;
+		File workspaceDir = new File( Fields.STORAGE, workspaceId );
+		Map<String, Long> archives = new HashMap<String, Long>();
+		long workspaceSize = 0L;
+		for( String id : archiveIds ) {
+			File archiveFile = new File( workspaceDir, id );
+			long archiveSize = archiveFile.length();
+			if( archiveSize == 0L && archiveFile.exists() == false )
+				LOGGER.warn("archive ", id, " in workspace ", workspaceId, " does not exists.");
+			archives.put(id, archiveSize);
+			workspaceSize += archiveSize;
+		}
 		
-		if( !Tools.checkQuota( (new Date().getTime() - workspace.getLastseen().getTime())/1000, Fields.QUOTA_WORKSPACE_AGE ) ) {
-			// this workspace is too old -> delete it
-			LOGGER.warn( "Workspace ", workspace.getWorkspaceId(), " exceeded the age limit. Get deleted" );
-			workspaceManager.removeWorkspace(workspace);
+		if( usage.removed == false ) {
+			for( long archiveSize : usage.archives.values() )
+				archiveSizes.remove(archiveSize);
+			for( long archiveSize : archives.values() )
+				archiveSizes.add(archiveSize);
+			
+			// forget the entries of archives, which vanished meanwhile
+			for( String archiveId : new ArrayList<String>(usage.entries.keySet()) ) {
+				if( archives.containsKey(archiveId) == false )
+					archiveEntries.remove( usage.entries.remove(archiveId) );
+			}
 		}
-		else {
-			for( String id : workspace.getArchives().keySet() )
-				workspaceSize += workspace.getArchiveSize(id);
+		
+		boolean firstScan = usage.scanned == false;
+		usage.archives = archives;
+		if( usage.removed == false ) {
+			addDelta( usage, workspaceSize - usage.size.get() );
+			if( firstScan )
+				workspaceSizes.add( usage.size.get() );
 		}
+		usage.scanned = true;
+	}
+	
+	private void addDelta( WorkspaceUsage usage, long delta ) {
+		if( delta == 0 )
+			return;
+		
+		long size = usage.size.addAndGet(delta);
+		totalSize.addAndGet(delta);
+		if( usage.scanned )
+			workspaceSizes.replace(size - delta, size);
+	}
+	
+	/**
+	 * Builds the histogram of the workspace ages from the expiry index, one step per bucket of the index.
+	 * 
+	 * @param nowTime current time in ms
+	 * @return ages of all workspaces in seconds
+	 */
+	private Histogram getWorkspaceAges( long nowTime ) {
+		
+		Histogram ages = new Histogram();
+		ExpiryIndex expiryIndex = workspaceManager.getExpiryIndex();
+		long bucketWidth = expiryIndex.getBucketWidth();
+		
+		for( Map.Entry<Long, Set<String>> bucket : expiryIndex.getBuckets().entrySet() )
+			ages.add( (nowTime - bucket.getKey() * bucketWidth) / 1000, bucket.getValue().size() );
 		
-		return workspaceSize;
+		return ages;
+	}
+	
+	private boolean isExpired( long lastseen, long nowTime ) {
+		return !Tools.checkQuota( (nowTime - lastseen)/1000, Fields.QUOTA_WORKSPACE_AGE );
 	}
 	
 	// --------------------------------------------------------------------------------
 	
-	private final Lock workerLock = new ReentrantLock(false);
+	/**
+	 * Size accounting of one workspace. The counter can be read without locking,
+	 * changes are done while holding the monitor of the object.
+	 */
+	protected static class WorkspaceUsage {
+		
+		protected final AtomicLong size = new AtomicLong(0L);
+		/** archive id -> size in bytes */
+		protected Map<String, Long> archives = new HashMap<String, Long>();
+		protected boolean scanned = false;
+		protected boolean removed = false;
+		
+		/** bytes reserved by open uploads */
+		protected long reserved = 0L;
+		/** archive id -> bytes reserved by open uploads into this archive */
+		protected Map<String, Long> reservedArchives = new HashMap<String, Long>();
+		/** archive id -> number of entries, only for archives opened since the start */
+		protected Map<String, Long> entries = new HashMap<String, Long>();
+	}
+	
+	// --------------------------------------------------------------------------------
 	
 	protected class Worker implements Runnable {
 		
 		private QuotaManager quotaManager;
-		private boolean storeSettings;
 		
-		public Worker( QuotaManager quotaManager, boolean storeSettingsAfterwards ) {
+		public Worker( QuotaManager quotaManager ) {
 			this.quotaManager = quotaManager;
-			this.storeSettings = storeSettingsAfterwards;
 		}
 		
 		@Override
 		public void run() {
 			long startTime = new Date().getTime();
 			
-			// runs only once per time
-			if( quotaManager.workerLock.tryLock() == false )
-				return;
+			// the executor runs one scan at a time, requests from now on need another scan
+			quotaManager.scanRunning = true;
+			quotaManager.scanPending.set(false);
+			boolean storeSettings = quotaManager.storeSettingsPending.getAndSet(false);
 			
-			LOGGER.info("start full quota scan");
+			try {
+				// only re-read all archive sizes once in a while, in between the counters are up to date
+				boolean reconcile = startTime >= quotaManager.nextReconciliation;
+				int parallelism = quotaManager.scanPool.getParallelism();
+				LOGGER.info("start full quota scan with parallelism ", parallelism, reconcile ? " and reconciliation of all archive sizes" : "");
+				
+				Date now = new Date();
+				long nowTime = now.getTime();
+				
+				// clone collection in order to not get the iterator broken by some manipulations form other threads
+				List<String> collection = new ArrayList<String>( quotaManager.workspaceManager.getWorkspaceIds() );
+				
+				// split the workspaces across the bounded fork/join pool
+				ScanResult result = quotaManager.scanPool.invoke( new ScanTask(quotaManager, collection, 0, collection.size(), nowTime, reconcile) );
+				
+				if( reconcile ) {
+					// drop the accounting of workspaces, which vanished without notice
+					for( String workspaceId : new ArrayList<String>(quotaManager.usages.keySet()) ) {
+						if( quotaManager.workspaceManager.hasWorkspace(workspaceId) == false )
+							quotaManager.removeWorkspace(workspaceId);
+					}
+					quotaManager.nextReconciliation = nowTime + Fields.QUOTA_RECONCILIATION_INTERVAL * 1000;
+				}
+				
+				long duration = new Date().getTime() - startTime;
+				
+				// generate stats
+				StatisticData stats = new StatisticData();
+				stats.setGenerated(now);
+				
+				stats.setTotalSize(result.totalSize);
+				stats.setTotalWorkspaceCount(result.workspaceCount);
+				stats.setTotalArchiveCount(result.archiveCount);
+				stats.setAverageWorkspaceSize( (double) result.totalSize / (double) result.workspaceCount );
+				stats.setAverageArchiveCount( (double) result.archiveCount / (double) result.workspaceCount );
+				stats.setAverageWorkspaceAge( (double) result.workspaceAge / (double) result.workspaceCount );
+				
+				if( Fields.QUOTA_WORKSPACE_SIZE != Fields.QUOTA_UNLIMITED )
+					stats.setAverageWorkspaceSizeQuota( stats.getAverageWorkspaceSize() / (double) Fields.QUOTA_WORKSPACE_SIZE );
+				if( Fields.QUOTA_TOTAL_SIZE != Fields.QUOTA_UNLIMITED )
+					stats.setTotalSizeQuota( (double) result.totalSize / (double) Fields.QUOTA_TOTAL_SIZE );
+				if( Fields.QUOTA_ARCHIVE_LIMIT != Fields.QUOTA_UNLIMITED )
+					stats.setAverageArchiveCountQuota( stats.getAverageArchiveCount() / (double) Fields.QUOTA_ARCHIVE_LIMIT );
+				
+				stats.setMaxStatsAge( Fields.STATS_MAX_AGE );
+				
+				// metrics of the scan itself
+				stats.setScanDuration(duration);
+				stats.setScanParallelism(parallelism);
+				stats.setScannedFiles(result.scannedFiles);
+				double throughput = duration > 0 ? (double) result.scannedFiles * 1000 / (double) duration : result.scannedFiles;
+				stats.setScanThroughput(throughput);
+				stats.setScanIoWait( result.ioWait / 1000000 );
+				
+				// tranfer the results to the main class
+				quotaManager.stats = stats;
+				
+				// store settings to disk, if needed
+				if( storeSettings )
+					quotaManager.workspaceManager.storeSettings();
+				
+				// save duration of execution
+				quotaManager.workerExecutionTime = new Date().getTime() - startTime;
+				LOGGER.info("finished full quota scan in ", quotaManager.workerExecutionTime, "ms: ", collection.size(), " workspaces, ",
+						result.scannedFiles, " files (", throughput, " files/s), ", result.ioWait / 1000000, "ms I/O wait");
+			}
+			catch (RuntimeException e) {
+				// keep the executor alive for the next scan
+				LOGGER.error(e, "quota scan failed");
+			}
+			finally {
+				// give dobby a sock
+				quotaManager.scanRunning = false;
+			}
+		}
+		
+	}
+	
+	/**
+	 * Mergeable result of a (partial) quota scan.
+	 */
+	protected static class ScanResult {
+		
+		protected long totalSize = 0L;
+		protected long archiveCount = 0L;
+		protected long workspaceAge = 0L;
+		protected long workspaceCount = 0L;
+		
+		/** number of files, which got stat'ed */
+		protected long scannedFiles = 0L;
+		/** time in ns spent in reading from the file system or the workspace store, summed up over all threads */
+		protected long ioWait = 0L;
+		
+		protected void add( ScanResult other ) {
+			totalSize += other.totalSize;
+			archiveCount += other.archiveCount;
+			workspaceAge += other.workspaceAge;
+			workspaceCount += other.workspaceCount;
+			scannedFiles += other.scannedFiles;
+			ioWait += other.ioWait;
+		}
+	}
+	
+	/**
+	 * Scans a range of workspaces, splits itself until the range is small enough.
+	 */
+	protected static class ScanTask extends RecursiveTask<ScanResult> {
+		
+		private static final long serialVersionUID = -1859462390731623411L;
+		
+		/** number of workspaces scanned sequentially by one task */
+		private static final int BATCH_SIZE = 32;
+		
+		private final QuotaManager quotaManager;
+		private final List<String> workspaceIds;
+		private final int from;
+		private final int to;
+		private final long nowTime;
+		private final boolean reconcile;
+		
+		public ScanTask( QuotaManager quotaManager, List<String> workspaceIds, int from, int to, long nowTime, boolean reconcile ) {
+			this.quotaManager = quotaManager;
+			this.workspaceIds = workspaceIds;
+			this.from = from;
+			this.to = to;
+			this.nowTime = nowTime;
+			this.reconcile = reconcile;
+		}
+		
+		@Override
+		protected ScanResult compute() {
 			
-			// scan all workspaces
-			long totalSize = 0L;
-			long totalArchiveCount = 0L;
-			long totalWorkspaceAge = 0L;
-			long workspaceCount = 0L;
-			Map<String, Long> cache = new HashMap<String, Long>();
-			Date now = new Date();
-			long nowTime = now.getTime();
+			if( to - from > BATCH_SIZE ) {
+				int middle = (from + to) >>> 1;
+				ScanTask left = new ScanTask(quotaManager, workspaceIds, from, middle, nowTime, reconcile);
+				ScanTask right = new ScanTask(quotaManager, workspaceIds, middle, to, nowTime, reconcile);
+				invokeAll(left, right);
+				
+				ScanResult result = left.join();
+				result.add( right.join() );
+				return result;
+			}
 			
-			// clone collection in order to not get the iterator broken by some manipulations form other threads
-			List<Workspace> collection = new ArrayList<Workspace>( quotaManager.workspaceManager.workspaces.values() ); 
-			for( Workspace workspace : collection ) {
+			ScanResult result = new ScanResult();
+			for( int i = from; i < to; i++ ) {
+				
+				String workspaceId = workspaceIds.get(i);
+				Long lastseen = quotaManager.workspaceManager.getLastseen(workspaceId);
+				if( lastseen == null )
+					// removed meanwhile
+					continue;
+				
+				long ioStart = System.nanoTime();
+				WorkspaceUsage usage = quotaManager.usages.get(workspaceId);
+				if( usage == null || usage.scanned == false ) {
+					// not accounted yet, read its archives once from the store, without materializing it
+					Workspace workspace = quotaManager.workspaceManager.peekWorkspace(workspaceId);
+					usage = quotaManager.getUsage(workspace);
+					if( usage != null )
+						result.scannedFiles += workspace.getArchives().size();
+				}
+				else if( reconcile )
+					// the accounting knows the archives, no need to ask the store
+					result.scannedFiles += quotaManager.rescanWorkspace(workspaceId, usage);
+				result.ioWait += System.nanoTime() - ioStart;
+				
+				if( usage == null )
+					continue;
+				
+				long size = 0L;
+				long archiveCount = 0L;
+				synchronized (usage) {
+					if( usage.removed )
+						continue;
+					size = usage.size.get();
+					archiveCount = usage.archives.size();
+				}
 				
-				long size = quotaManager.scanWorkspace(workspace);
 				if( size > 0 ) {
-					cache.put( workspace.getWorkspaceId(), size );
-					
-					totalSize += size;
-					totalArchiveCount += workspace.getArchives().size();
-					totalWorkspaceAge += (nowTime - workspace.getLastseen().getTime())/1000;
-					workspaceCount++;
+					result.totalSize += size;
+					result.archiveCount += archiveCount;
+					result.workspaceAge += (nowTime - lastseen)/1000;
+					result.workspaceCount++;
 				}
 			}
 			
-			// generate stats
-			StatisticData stats = new StatisticData();
-			stats.setGenerated(now);
-			
-			stats.setTotalSize(totalSize);
-			stats.setTotalWorkspaceCount(workspaceCount);
-			stats.setTotalArchiveCount(totalArchiveCount);
-			stats.setAverageWorkspaceSize( (double) totalSize / (double) workspaceCount );
-			stats.setAverageArchiveCount( (double) totalArchiveCount / (double) workspaceCount );
-			stats.setAverageWorkspaceAge( (double) totalWorkspaceAge / (double) workspaceCount );
+			return result;
+		}
+		
+	}
+	
+	// --------------------------------------------------------------------------------
+	
+	/**
+	 * Queues an expired workspace for deletion, the deletion itself is done by a separate thread.
+	 * 
+	 * @param workspaceId id of the expired workspace
+	 */
+	protected void scheduleRemoval( String workspaceId ) {
+		
+		if( pendingRemovals.add(workspaceId) == false )
+			return;
+		
+		try {
+			remover.execute( new Remover(workspaceId) );
+		}
+		catch (RejectedExecutionException e) {
+			// shutting down, the workspace is still expired on the next start
+			pendingRemovals.remove(workspaceId);
+			LOGGER.warn(e, "Cannot queue expired workspace ", workspaceId, " for deletion");
+		}
+	}
+	
+	/**
+	 * Pops the workspaces from the expiry index, which exceeded the age limit, and queues them for deletion.
+	 */
+	protected class Reaper implements Runnable {
+		
+		@Override
+		public void run() {
 			
-			if( Fields.QUOTA_WORKSPACE_SIZE != Fields.QUOTA_UNLIMITED )
-				stats.setAverageWorkspaceSizeQuota( stats.getAverageWorkspaceSize() / (double) Fields.QUOTA_WORKSPACE_SIZE );
-			if( Fields.QUOTA_TOTAL_SIZE != Fields.QUOTA_UNLIMITED )
-				stats.setTotalSizeQuota( (double) totalSize / (double) Fields.QUOTA_TOTAL_SIZE );
-			if( Fields.QUOTA_ARCHIVE_LIMIT != Fields.QUOTA_UNLIMITED )
-				stats.setAverageArchiveCountQuota( stats.getAverageArchiveCount() / (double) Fields.QUOTA_ARCHIVE_LIMIT );
+			if( Fields.QUOTA_WORKSPACE_AGE == Fields.QUOTA_UNLIMITED )
+				return;
 			
-			stats.setMaxStatsAge( Fields.STATS_MAX_AGE );
+			List<String> expired = workspaceManager.pollExpiredWorkspaces( new Date().getTime() - Fields.QUOTA_WORKSPACE_AGE * 1000 );
+			for( String workspaceId : expired )
+				scheduleRemoval(workspaceId);
 			
-			// tranfer the results to the main class
-			quotaManager.workspaceCache = cache;
-			quotaManager.totalSize = totalSize;
-			quotaManager.stats = stats;
-			quotaManager.statsTimestamp = now;
+			if( expired.isEmpty() == false )
+				LOGGER.info( expired.size(), " expired workspaces queued for deletion" );
+		}
+		
+	}
+	
+	/**
+	 * Drops the reservations, which were neither committed nor released in time.
+	 */
+	protected class ReservationSweeper implements Runnable {
+		
+		@Override
+		public void run() {
 			
-			// store settings to disk, if needed
-			if( storeSettings )
-				quotaManager.workspaceManager.storeSettings();
+			long now = new Date().getTime();
+			for( QuotaReservation reservation : new ArrayList<QuotaReservation>(reservations) ) {
+				if( reservation.deadline > now )
+					continue;
+				
+				LOGGER.warn( "Reservation of ", reservation.getBytes(), " bytes in workspace ", reservation.workspace.getWorkspaceId(), " timed out" );
+				release(reservation);
+			}
+		}
+		
+	}
+	
+	/** ids of the workspaces, which are queued for deletion */
+	protected final Set<String> pendingRemovals = Collections.newSetFromMap( new ConcurrentHashMap<String, Boolean>() );
+	
+	/**
+	 * Deletes one expired workspace.
+	 */
+	protected class Remover implements Runnable {
+		
+		private final String workspaceId;
+		
+		public Remover( String workspaceId ) {
+			this.workspaceId = workspaceId;
+		}
+		
+		@Override
+		public void run() {
 			
-			// save duration of execution
-			quotaManager.workerExecutionTime = new Date().getTime() - startTime;
-			LOGGER.info("finished full quota scan in ", quotaManager.workerExecutionTime, "ms");
-			// give dobby a sock
-			quotaManager.workerLock.unlock();
+			try {
+				// still expired on the next start
+				if( remover.isShutdown() )
+					return;
+				
+				// the workspace may got used since it was queued, than it is back in the expiry index
+				Long lastseen = workspaceManager.getLastseen(workspaceId);
+				Workspace workspace = null;
+				if( lastseen != null && isExpired(lastseen, new Date().getTime()) )
+					workspace = workspaceManager.peekWorkspace(workspaceId);
+				
+				if( workspace != null ) {
+					LOGGER.warn( "Workspace ", workspaceId, " exceeded the age limit. Get deleted" );
+					workspaceManager.removeWorkspace(workspace);
+				}
+			}
+			catch (Exception e) {
+				LOGGER.error(e, "Cannot remove expired workspace ", workspaceId);
+			}
+			finally {
+				pendingRemovals.remove(workspaceId);
+			}
 		}
 		
 	}
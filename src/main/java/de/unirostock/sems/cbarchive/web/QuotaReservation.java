@@ -0,0 +1,109 @@
+package de.unirostock.sems.cbarchive.web;
+/*
+CombineArchiveWeb - a WebInterface to read/create/write/manipulate/... COMBINE archives
+Copyright (C) 2014  SEMS Group
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.Closeable;
+
+import de.unirostock.sems.cbarchive.web.dataholder.Workspace;
+import de.unirostock.sems.cbarchive.web.exception.QuotaException;
+
+/**
+ * Bytes of the disk quota, which are held for an upload or import, before the data is written.
+ *
+ * Obtained by {@link QuotaManager#reserve(Workspace, String, long)}. The reserved bytes count
+ * against the workspace, archive and total quota of all other requests, until the reservation
+ * gets committed or released. A reservation, which is neither committed nor released, is dropped
+ * after {@link Fields#QUOTA_RESERVATION_TIMEOUT} seconds.
+ */
+public class QuotaReservation implements Closeable {
+
+	protected final QuotaManager quotaManager;
+	protected final Workspace workspace;
+	protected final String archiveId;
+	/** accounting of the workspace or null, if the workspace is not known to the quota manager */
+	protected final QuotaManager.WorkspaceUsage usage;
+	/** time in ms, when the reservation times out */
+	protected final long deadline;
+
+	/** reserved bytes, guarded by the monitor of this object */
+	protected long bytes = 0L;
+	protected boolean released = false;
+
+	protected QuotaReservation( QuotaManager quotaManager, Workspace workspace, String archiveId, QuotaManager.WorkspaceUsage usage, long deadline ) {
+		this.quotaManager = quotaManager;
+		this.workspace = workspace;
+		this.archiveId = archiveId;
+		this.usage = usage;
+		this.deadline = deadline;
+	}
+
+	/**
+	 * Reserves further bytes, e.g. for the next file of a multi file upload.
+	 *
+	 * @param bytes the additional bytes
+	 * @throws QuotaException if a quota would be exceeded, the reservation stays unchanged then
+	 */
+	public void grow( long bytes ) throws QuotaException {
+		quotaManager.reserve(this, bytes);
+	}
+
+	/**
+	 * Accounts the written data and releases the reservation.
+	 * If the reservation belongs to an archive, the archive gets re-accounted, otherwise the
+	 * caller has to take care, that the written data is accounted (e.g. by {@link UserManager#createArchive(String, java.io.File)}).
+	 */
+	public void commit() {
+		quotaManager.commit(this);
+	}
+
+	/**
+	 * Gives the reserved bytes back, without accounting anything. Does nothing, if the reservation is already committed or released.
+	 */
+	public void release() {
+		quotaManager.release(this);
+	}
+
+	/**
+	 * Same as {@link #release()}, so a reservation can be used in a try-with-resources block.
+	 */
+	@Override
+	public void close() {
+		release();
+	}
+
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	public synchronized boolean isReleased() {
+		return released;
+	}
+
+	public Workspace getWorkspace() {
+		return workspace;
+	}
+
+	public String getArchiveId() {
+		return archiveId;
+	}
+
+	public long getDeadline() {
+		return deadline;
+	}
+
+}
@@ -239,14 +239,16 @@ public class Tools
 	}
 	
 	/**
-	 * Checks for all quotas required to add/update an file within a CombineArchive. If a quota is exceeded it fails by throwing an QuotaException.
+	 * Checks for all quotas required to add/update an file within a CombineArchive and reserves the size of the file. If a quota is exceeded it fails by throwing an QuotaException.
+	 * The size quotas are checked against the reservation, so concurrent uploads cannot exceed them together.
 	 *  
 	 * @param fileSize of the uploaded file
 	 * @param archive the archive
 	 * @param user the user
+	 * @param reservation the reservation of the upload, obtained by {@link QuotaManager#reserve(de.unirostock.sems.cbarchive.web.dataholder.Workspace, String, long)}
 	 * @throws QuotaException an error if the quotas on the server are exhausted
 	 */
-	public static void checkQuotasOrFail( long fileSize, Archive archive, UserManager user ) throws QuotaException {
+	public static void checkQuotasOrFail( long fileSize, Archive archive, UserManager user, QuotaReservation reservation ) throws QuotaException {
 		
 		// max size for upload
 		if( Fields.QUOTA_UPLOAD_SIZE != Fields.QUOTA_UNLIMITED && fileSize > 0 && Tools.checkQuota(fileSize, Fields.QUOTA_UPLOAD_SIZE) == false ) {
@@ -260,23 +262,9 @@ public class Tools
 			throw new QuotaException("QUOTA_FILE_LIMIT reached in workspace " + user.getWorkspaceId(), "The max amount of files in one archive is reached.");
 		}
 		
-		// max archive size
-		if( Fields.QUOTA_ARCHIVE_SIZE != Fields.QUOTA_UNLIMITED && fileSize > 0 && Tools.checkQuota(user.getWorkspace().getArchiveSize( archive.getId() ) + fileSize, Fields.QUOTA_ARCHIVE_SIZE) == false ) {
-			LOGGER.warn("QUOTA_ARCHIVE_SIZE reached in workspace ", user.getWorkspaceId());
-			throw new QuotaException("QUOTA_ARCHIVE_SIZE reached in workspace " + user.getWorkspaceId(), "The maximum size of one archive is reached.");
-		}
-		
-		// max workspace size
-		if( Fields.QUOTA_WORKSPACE_SIZE != Fields.QUOTA_UNLIMITED && fileSize > 0 && Tools.checkQuota(QuotaManager.getInstance().getWorkspaceSize(user.getWorkspace()) + fileSize, Fields.QUOTA_WORKSPACE_SIZE) == false ) {
-			LOGGER.warn("QUOTA_WORKSPACE_SIZE reached in workspace ", user.getWorkspaceId());
-			throw new QuotaException("QUOTA_WORKSPACE_SIZE reached in workspace " + user.getWorkspaceId(), "The maximum size of one workspace is reached.");
-		}
-		
-		// max total size
-		if( Fields.QUOTA_TOTAL_SIZE != Fields.QUOTA_UNLIMITED && fileSize > 0 && Tools.checkQuota(QuotaManager.getInstance().getTotalSize() + fileSize, Fields.QUOTA_TOTAL_SIZE) == false ) {
-			LOGGER.warn("QUOTA_TOTAL_SIZE reached in workspace ", user.getWorkspaceId());
-			throw new QuotaException("QUOTA_TOTAL_SIZE reached in workspace " + user.getWorkspaceId(), "The maximum size is reached.");
-		}
+		// max archive, workspace and total size
+		if( fileSize > 0 )
+			reservation.grow(fileSize);
 		
 	}
 
@@ -25,12 +25,12 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.text.MessageFormat;
 import java.text.ParseException;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.UUID;
-import java.util.concurrent.locks.Lock;
+import java.util.concurrent.Callable;
 
 import javax.xml.transform.TransformerException;
 
@@ -42,11 +42,18 @@ import de.unirostock.sems.cbarchive.ArchiveEntry;
 import de.unirostock.sems.cbarchive.CombineArchive;
 import de.unirostock.sems.cbarchive.CombineArchiveException;
 import de.unirostock.sems.cbarchive.meta.OmexMetaDataObject;
+import de.unirostock.sems.cbarchive.web.ArchiveAppender.Append;
+import de.unirostock.sems.cbarchive.web.ArchiveCache.CachedArchive;
+import de.unirostock.sems.cbarchive.web.ArchiveLockRegistry.ArchiveLockHandle;
+import de.unirostock.sems.cbarchive.web.WorkingCopyManager.WorkingCopy;
 import de.unirostock.sems.cbarchive.meta.omex.OmexDescription;
 import de.unirostock.sems.cbarchive.meta.omex.VCard;
 import de.unirostock.sems.cbarchive.web.dataholder.Archive;
 import de.unirostock.sems.cbarchive.web.dataholder.Archive.ReplaceStrategy;
 import de.unirostock.sems.cbarchive.web.dataholder.ArchiveEntryDataholder;
+import de.unirostock.sems.cbarchive.web.dataholder.BatchOperation;
+import de.unirostock.sems.cbarchive.web.dataholder.BatchResult;
+import de.unirostock.sems.cbarchive.web.dataholder.MetaObjectDataholder;
 import de.unirostock.sems.cbarchive.web.dataholder.UserData;
 import de.unirostock.sems.cbarchive.web.dataholder.Workspace;
 import de.unirostock.sems.cbarchive.web.exception.CombineArchiveWebException;
@@ -77,7 +84,7 @@ public class UserManager {
 			LOGGER.debug("Got it...");
 		
 		// updates the last-seen time stamp
-		workspace.updateLastseen();
+		workspaceManager.touchWorkspace(workspace);
 		workingDir = workspace.getWorkspaceDir();
 
 	}
@@ -119,37 +126,51 @@ public class UserManager {
 	/**
 	 * Lists all available archives for the user
 	 * if {@code deepScan} is set to true, the content of the archives will be analysed.
+	 * The archives are analysed in parallel, archives which are locked, broken or too slow to
+	 * read are listed without content, see {@link ArchiveScanner}.
 	 *
 	 * @param deepScan should we deep-scan?
 	 * @return the archives
 	 */
 	public List<Archive> getArchives( boolean deepScan ) {
-		List<Archive> result = new LinkedList<Archive>();
+		List<Archive> result = new ArrayList<Archive>();
+		List<Callable<Archive>> scans = new ArrayList<Callable<Archive>>();
+		// do not wait for locked archives longer than for the whole scan
+		final long deadline = Fields.DEEP_SCAN_TIMEOUT > 0 ? System.currentTimeMillis() + Fields.DEEP_SCAN_TIMEOUT : 0L;
 		
 		Iterator<String> iter = workspace.getArchives().keySet().iterator();
 		while( iter.hasNext() ) {
-			String archiveId = iter.next();
+			final String archiveId = iter.next();
 			
-			String name = workspace.getArchives().get(archiveId);
-			File archiveFile = new File( workingDir, archiveId);
+			final String name = workspace.getArchives().get(archiveId);
+			final File archiveFile = new File( workingDir, archiveId);
 			
 			// checks if archive exists
 			if( archiveFile.exists() ) {
-				try {
-					Archive dataholder = new Archive( archiveId, name );
-
-					// if deepScan enabled, analyse content
-					if( deepScan == true ) {
-						dataholder.setArchiveFile(archiveFile, workspace.lockArchive(archiveId));
-						// closes it
-						dataholder.close();
-					}
-
-					// adds this archive to the dataholder
-					result.add(dataholder);
-
-				} catch (Exception e) {
-					LOGGER.error (e, "couldn't read combine archive: ", archiveFile);
+				// adds this archive to the dataholder
+				result.add( new Archive( archiveId, name ) );
+				
+				// if deepScan enabled, analyse content
+				if( deepScan == true ) {
+					scans.add( new Callable<Archive>() {
+						@Override
+						public Archive call() throws Exception {
+							long timeout = deadline > 0 ? deadline - System.currentTimeMillis() : Fields.LOCK_ARCHIVE_TIMEOUT * 1000;
+							if( timeout <= 0 )
+								throw new CombineArchiveWebException("Deep scan timeout.");
+							
+							Archive dataholder = new Archive( archiveId, name );
+							openReadOnly(dataholder, archiveId, archiveFile, timeout);
+							try {
+								QuotaManager.getInstance().updateArchiveEntries(workspace, archiveId, dataholder.countArchiveEntries());
+							}
+							finally {
+								// closes it
+								dataholder.close();
+							}
+							return dataholder;
+						}
+					});
 				}
 			}
 			else {
@@ -158,6 +179,9 @@ public class UserManager {
 			}
 		}
 		
+		if( deepScan == true && scans.isEmpty() == false )
+			result = ArchiveScanner.getInstance().scan(scans, result);
+		
 		return result;
 	}
 	
@@ -180,8 +204,13 @@ public class UserManager {
 				
 				Archive archiveModel = new Archive(archiveId, archiveName, null, null);
 				if( deepScan ) {
-					Lock lock = workspace.lockArchive(archiveId);
+					ArchiveLockHandle lock = workspace.lockArchive(archiveId);
+					// the archive might get changed, so nobody else may have it open
+					ArchiveCache.getInstance().invalidate(workspace.getWorkspaceId(), archiveId);
+					recoverAppend(archive, lock);
+					checkpointWorkingCopy(archiveId, archive, lock);
 					archiveModel.setArchiveFile(archive, lock );
+					QuotaManager.getInstance().updateArchiveEntries(workspace, archiveId, archiveModel.countArchiveEntries());
 				}
 				return archiveModel;
 			}
@@ -190,6 +219,285 @@ public class UserManager {
 		}
 	}
 
+	/**
+	 * Opens an archive to add files to it. As long as files are only added or replaced, the changes
+	 * are written to the end of the archive file, instead of rewriting the whole file, see {@link ArchiveAppender}.
+	 *
+	 * @param archiveId the archive id
+	 * @return the opened archive, has to be closed afterwards
+	 * @throws FileNotFoundException if there is no such archive
+	 * @throws CombineArchiveWebException if the archive cannot be read
+	 */
+	public Archive getAppendableArchive( String archiveId ) throws FileNotFoundException, CombineArchiveWebException {
+		
+		File archiveFile = getArchiveFile(archiveId);
+		Archive archiveModel = new Archive(archiveId, workspace.getArchives().get(archiveId), null, null);
+		ArchiveLockHandle lock = workspace.lockArchive(archiveId);
+		// the archive file gets changed, so nobody else may have it open
+		ArchiveCache.getInstance().invalidate(workspace.getWorkspaceId(), archiveId);
+		// both release the lock on failure
+		recoverAppend(archiveFile, lock);
+		checkpointWorkingCopy(archiveId, archiveFile, lock);
+		
+		Append append = null;
+		try {
+			try {
+				append = ArchiveAppender.getInstance().prepare(archiveFile);
+			} catch (IOException e) {
+				LOGGER.warn(e, "Cannot prepare to add files in place to archive ", archiveId, " in workspace ", workspace.getWorkspaceId());
+			}
+			
+			if( append != null )
+				archiveModel.setAppend(archiveFile, lock, append);
+			else
+				archiveModel.setArchiveFile(archiveFile, lock);
+		}
+		catch (CombineArchiveWebException | RuntimeException e) {
+			if( append != null )
+				append.discard();
+			lock.unlock();
+			throw e;
+		}
+		QuotaManager.getInstance().updateArchiveEntries(workspace, archiveId, archiveModel.countArchiveEntries());
+		
+		return archiveModel;
+	}
+	
+	/**
+	 * Undoes an interrupted append to the archive, while holding the exclusive lock.
+	 */
+	private void recoverAppend( File archiveFile, ArchiveLockHandle lock ) throws CombineArchiveWebException {
+		try {
+			ArchiveAppender.recover(archiveFile);
+		} catch (IOException e) {
+			lock.unlock();
+			LOGGER.error(e, "Cannot recover archive ", archiveFile);
+			throw new CombineArchiveWebException("Cannot recover the archive", e);
+		}
+	}
+	
+	/**
+	 * Packs the working copy of the archive or replays its journal after a crash, while holding the exclusive lock.
+	 * Afterwards the archive file contains all changes, see {@link WorkingCopyManager}.
+	 */
+	private void checkpointWorkingCopy( String archiveId, File archiveFile, ArchiveLockHandle lock ) throws CombineArchiveWebException {
+		try {
+			WorkingCopy copy = WorkingCopyManager.getInstance().remove(workspace.getWorkspaceId(), archiveId);
+			if( copy != null ) {
+				copy.checkpoint();
+				QuotaManager.getInstance().updateArchive(workspace, archiveId);
+			}
+			else if( WorkingCopyManager.hasJournal(archiveFile) ) {
+				replayJournal(archiveId, archiveFile);
+				QuotaManager.getInstance().updateArchive(workspace, archiveId);
+			}
+		} catch (IOException | TransformerException | CombineArchiveWebException | RuntimeException e) {
+			lock.unlock();
+			LOGGER.error(e, "Cannot pack working copy of archive ", archiveFile);
+			throw new CombineArchiveWebException("Cannot pack the working copy of the archive", e);
+		}
+	}
+	
+	/**
+	 * Applies the changes from the journal of a working copy, which was not packed before a crash.
+	 */
+	private void replayJournal( String archiveId, File archiveFile ) throws IOException, TransformerException, CombineArchiveWebException {
+		
+		List<List<BatchOperation>> batches = WorkingCopyManager.readJournal(archiveFile);
+		if( batches != null && batches.isEmpty() == false ) {
+			Archive archive = new Archive(archiveId, workspace.getArchives().get(archiveId), null, null);
+			// the lock is held by the caller
+			archive.setArchiveFile(archiveFile, null);
+			try {
+				for( List<BatchOperation> batch : batches )
+					applyBatch(archive, archiveId, batch, new ArrayList<BatchResult>(), new ArrayList<String>());
+			}
+			catch (RuntimeException e) {
+				WorkingCopyManager.closeUnpacked(archive, archiveFile);
+				throw e;
+			}
+			// the journal is kept, unless the archive file contains all its changes
+			WorkingCopyManager.packAndClose(archive, archiveFile);
+			WorkingCopyManager.getInstance().countReplay();
+			LOGGER.warn("replayed ", batches.size(), " changes of archive ", archiveId, " in workspace ", workspace.getWorkspaceId(), " from the working copy journal");
+		}
+		
+		WorkingCopyManager.deleteJournal(archiveFile);
+	}
+	
+	/**
+	 * Checks if the archive file lacks changes of a working copy.
+	 */
+	private boolean needsCheckpoint( String archiveId, File archiveFile ) {
+		return WorkingCopyManager.getInstance().get(workspace.getWorkspaceId(), archiveId) != null || WorkingCopyManager.hasJournal(archiveFile);
+	}
+	
+	/**
+	 * Opens the working copy of an archive to change it, see {@link WorkingCopyManager}. The archive
+	 * stays locked exclusively, until the working copy gets released.
+	 *
+	 * @param archiveId the archive id
+	 * @return the working copy, has to be released afterwards
+	 * @throws FileNotFoundException if there is no such archive
+	 * @throws CombineArchiveWebException if the archive cannot be opened
+	 */
+	public WorkingCopy openWorkingCopy( String archiveId ) throws FileNotFoundException, CombineArchiveWebException {
+		
+		File archiveFile = getArchiveFile(archiveId);
+		WorkingCopyManager manager = WorkingCopyManager.getInstance();
+		ArchiveLockHandle lock = workspace.lockArchive(archiveId);
+		
+		WorkingCopy copy = manager.get(workspace.getWorkspaceId(), archiveId);
+		if( copy == null ) {
+			// the archive stays open, so nobody else may have it open
+			ArchiveCache.getInstance().invalidate(workspace.getWorkspaceId(), archiveId);
+			// the journal of the new working copy is based on the current archive file, both release the lock on failure
+			recoverAppend(archiveFile, lock);
+			checkpointWorkingCopy(archiveId, archiveFile, lock);
+			
+			Archive archive = new Archive(archiveId, workspace.getArchives().get(archiveId), null, null);
+			try {
+				// the working copy outlives the lock
+				archive.setArchiveFile(archiveFile, null);
+				copy = manager.open(workspace, archive, archiveFile);
+			} catch (CombineArchiveWebException | IOException | RuntimeException e) {
+				try {
+					archive.close();
+				} catch (IOException e1) {
+					LOGGER.warn(e1, "Cannot close archive ", archiveId, " in workspace ", workspace.getWorkspaceId());
+				}
+				lock.unlock();
+				LOGGER.error(e, "Cannot open working copy of archive ", archiveId, " in workspace ", workspace.getWorkspaceId());
+				throw new CombineArchiveWebException("Cannot open the working copy of the archive", e);
+			}
+			QuotaManager.getInstance().updateArchiveEntries(workspace, archiveId, archive.countArchiveEntries());
+		}
+		
+		copy.acquire(lock);
+		return copy;
+	}
+	
+	/**
+	 * Packs the working copy of an archive, if there is one, so the archive file contains all changes.
+	 *
+	 * @param archiveId the archive id
+	 * @throws FileNotFoundException if there is no such archive
+	 * @throws CombineArchiveWebException if the working copy cannot be packed
+	 */
+	public void checkpointArchive( String archiveId ) throws FileNotFoundException, CombineArchiveWebException {
+		
+		File archiveFile = getArchiveFile(archiveId);
+		if( needsCheckpoint(archiveId, archiveFile) == false )
+			return;
+		
+		ArchiveLockHandle lock = workspace.lockArchive(archiveId);
+		checkpointWorkingCopy(archiveId, archiveFile, lock);
+		lock.unlock();
+	}
+	
+	/**
+	 * Opens an archive just for reading. The archive is shared with other readers by the {@link ArchiveCache},
+	 * so neither the archive nor its entries may be modified. Use {@link #getArchive(String)} to change an archive.
+	 *
+	 * @param archiveId the archive id
+	 * @return the opened archive, has to be closed afterwards
+	 * @throws FileNotFoundException if there is no such archive
+	 * @throws CombineArchiveWebException if the archive cannot be read
+	 */
+	public Archive getReadOnlyArchive( String archiveId ) throws FileNotFoundException, CombineArchiveWebException {
+		
+		File archiveFile = getArchiveFile(archiveId);
+		Archive archiveModel = new Archive(archiveId, workspace.getArchives().get(archiveId), null, null);
+		openReadOnly(archiveModel, archiveId, archiveFile, Fields.LOCK_ARCHIVE_TIMEOUT * 1000);
+		QuotaManager.getInstance().updateArchiveEntries(workspace, archiveId, archiveModel.countArchiveEntries());
+		
+		return archiveModel;
+	}
+	
+	/**
+	 * Returns the summary of an archive, which is enough to list its entries and meta data.
+	 * The summary is rebuilt, if it is missing or outdated.
+	 *
+	 * @param archiveId the archive id
+	 * @return the summary
+	 * @throws FileNotFoundException if there is no such archive
+	 * @throws CombineArchiveWebException if the archive cannot be read
+	 */
+	public ArchiveSummary getArchiveSummary( String archiveId ) throws FileNotFoundException, CombineArchiveWebException {
+		
+		File archiveFile = getArchiveFile(archiveId);
+		
+		// the archive file does not contain the changes of the working copy yet
+		WorkingCopyManager manager = WorkingCopyManager.getInstance();
+		WorkingCopy copy = manager.get(workspace.getWorkspaceId(), archiveId);
+		if( copy != null ) {
+			ArchiveLockHandle lock = workspace.lockArchiveShared(archiveId, Fields.LOCK_ARCHIVE_TIMEOUT * 1000);
+			try {
+				// unless it got packed meanwhile
+				if( manager.get(workspace.getWorkspaceId(), archiveId) == copy )
+					return copy.getSummary();
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+		
+		// a journal left from a crash is replayed, before the archive is read
+		ArchiveSummary summary = WorkingCopyManager.hasJournal(archiveFile) ? null : ArchiveSummary.read(archiveFile);
+		if( summary != null )
+			return summary;
+		
+		// missing or outdated, the lock keeps the archive file unchanged meanwhile
+		Archive archive = getReadOnlyArchive(archiveId);
+		try {
+			summary = ArchiveSummary.build( archive.getEntries().values() );
+			summary.write(archiveFile);
+			LOGGER.debug("rebuilt summary of archive ", archiveId, " in workspace ", workspace.getWorkspaceId());
+		} catch (IOException e) {
+			LOGGER.warn(e, "Cannot write summary of archive ", archiveId, " in workspace ", workspace.getWorkspaceId());
+		}
+		finally {
+			try {
+				archive.close();
+			} catch (IOException e) {
+				LOGGER.warn(e, "Cannot close archive ", archiveId, " in workspace ", workspace.getWorkspaceId());
+			}
+		}
+		
+		return summary;
+	}
+	
+	private void openReadOnly( Archive archiveModel, String archiveId, File archiveFile, long lockTimeout ) throws CombineArchiveWebException {
+		
+		while( true ) {
+			// an interrupted append has to be undone and a working copy has to be packed exclusively
+			if( ArchiveAppender.needsRecovery(archiveFile) || needsCheckpoint(archiveId, archiveFile) ) {
+				ArchiveLockHandle lock = workspace.lockArchive(archiveId, lockTimeout);
+				recoverAppend(archiveFile, lock);
+				checkpointWorkingCopy(archiveId, archiveFile, lock);
+				lock.unlock();
+			}
+			
+			// readers share the archive, only writers need it exclusively
+			ArchiveLockHandle lock = workspace.lockArchiveShared(archiveId, lockTimeout);
+			if( WorkingCopyManager.getInstance().get(workspace.getWorkspaceId(), archiveId) != null ) {
+				// changed again meanwhile
+				lock.unlock();
+				continue;
+			}
+			
+			try {
+				CachedArchive cached = ArchiveCache.getInstance().acquire(workspace.getWorkspaceId(), archiveId, archiveFile);
+				archiveModel.setCachedArchive(archiveFile, lock, cached);
+				return;
+			}
+			catch (CombineArchiveWebException | RuntimeException e) {
+				lock.unlock();
+				throw e;
+			}
+		}
+	}
+
 	public File getArchiveFile( String archiveId ) throws FileNotFoundException {
 
 		// gets the properties Key for this archive
@@ -221,11 +529,10 @@ public class UserManager {
 			// if not, throw an exception!
 			throw new FileNotFoundException("There is no archive in this working space with the ID " + archiveId);
 		else {
-			workspace.getArchives().put(archiveId, newName);
+			// update and journal the settings
+			workspaceManager.putArchive(workspace, archiveId, newName);
+			ArchiveCache.getInstance().invalidate(workspace.getWorkspaceId(), archiveId);
 		}
-		
-		// save the settings
-		workspaceManager.storeSettings();
 
 	}
 
@@ -282,29 +589,46 @@ public class UserManager {
 			archive.close ();
 		}
 		
-		// update the Properties
-		workspace.getArchives().put(uuid, name);
+		// update and journal the Properties
+		workspaceManager.putArchive(workspace, uuid, name);
+		QuotaManager.getInstance().updateArchive(workspace, uuid);
 		
 		LOGGER.info( MessageFormat.format("Created new archive with id {0} in workspace {1}", uuid, getWorkingDir()) );
 		
-		// save the settings
-		workspaceManager.storeSettings();
-		
 		return uuid;
 	}
 	
 	public void deleteArchive( String archiveId ) throws IOException {
 		
 		File archiveFile = getArchiveFile(archiveId);
-		// deletes the archive file
-		if( !archiveFile.delete() )
-			throw new IOException("Cannot delete archive file");
+		// nobody may change or pack the archive, while it goes away
+		ArchiveLockHandle lock = null;
+		try {
+			lock = workspace.lockArchive(archiveId);
+		} catch (CombineArchiveWebException e) {
+			throw new IOException("Cannot lock archive " + archiveId, e);
+		}
 		
-		// removes the internal reference from the settings
-		workspace.getArchives().remove(archiveId);
+		try {
+			// closes the cached archive and the working copy, before the file goes away
+			ArchiveCache.getInstance().invalidate(workspace.getWorkspaceId(), archiveId);
+			WorkingCopy copy = WorkingCopyManager.getInstance().remove(workspace.getWorkspaceId(), archiveId);
+			if( copy != null )
+				copy.discard();
+			// deletes the archive file
+			if( !archiveFile.delete() )
+				throw new IOException("Cannot delete archive file");
+			ArchiveSummary.delete(archiveFile);
+			ArchiveAppender.deleteJournal(archiveFile);
+			WorkingCopyManager.deleteJournal(archiveFile);
+		}
+		finally {
+			lock.unlock();
+		}
 		
-		// save the settings
-		workspaceManager.storeSettings();
+		// removes the internal reference from the settings
+		workspaceManager.removeArchive(workspace, archiveId);
+		QuotaManager.getInstance().removeArchive(workspace, archiveId);
 	}
 	
 	public void deleteArchiveSilent( String archiveId ) {
@@ -318,129 +642,377 @@ public class UserManager {
 	}
 
 	public void updateArchiveEntry( String archiveId, ArchiveEntryDataholder newEntryDataholder ) throws CombineArchiveWebException {
-		Archive archive = null;
 		
 		if( Tools.isFilenameBlacklisted(newEntryDataholder.getFileName()) || Tools.isFilenameBlacklisted(newEntryDataholder.getFilePath()) )
 			throw new CombineArchiveWebException( 
 					MessageFormat.format("The filename is blacklisted. You may not add files called {0}!", newEntryDataholder.getFileName())
 				);
 		
+		// the changes are applied as batch, so they can be journaled. The id depends on the path,
+		// so the entry is moved last
+		List<BatchOperation> operations = new ArrayList<BatchOperation>();
+		
+		URI newFileFormat = newEntryDataholder.getFormat();
+		if( newFileFormat != null ) {
+			BatchOperation format = new BatchOperation();
+			format.setAction(BatchOperation.ACTION_FORMAT);
+			format.setEntryId( newEntryDataholder.getId() );
+			format.setFormat(newFileFormat);
+			operations.add(format);
+		}
+		
+		// set the master flag or remove it
+		BatchOperation master = new BatchOperation();
+		master.setAction(BatchOperation.ACTION_MASTER);
+		master.setEntryId( newEntryDataholder.getId() );
+		master.setMaster( newEntryDataholder.isMaster() );
+		operations.add(master);
+		
+		// applies changes in the filename/filepath
+		String newFilePath = newEntryDataholder.getFilePath();
+		if( newFilePath != null && !newFilePath.isEmpty() ) {
+			BatchOperation move = new BatchOperation();
+			move.setAction(BatchOperation.ACTION_MOVE);
+			move.setEntryId( newEntryDataholder.getId() );
+			move.setFilePath(newFilePath);
+			if( newEntryDataholder.getOption() != null )
+				move.setOption( newEntryDataholder.getOption() );
+			operations.add(move);
+		}
+		
+		// all or nothing, like a single change of the entry
+		for( BatchResult result : applyBatch(archiveId, operations, true) ) {
+			if( result.getStatus() == 404 )
+				// was not able to find the old entry
+				throw new CombineArchiveWebException("Cannot find old version of archive entry");
+			else if( result.getStatus() != 200 )
+				throw new CombineArchiveWebException( result.getMessage() );
+		}
+	}
+	
+	/**
+	 * Moves an entry within an opened archive. If the target path is taken, the strategy decides.
+	 *
+	 * @param archive the opened archive
+	 * @param oldEntryDataholder the entry to move
+	 * @param newFilePath the target path, starting with a slash
+	 * @param strategy the strategy, if the target path is taken
+	 * @return the path, the entry was moved to
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws CombineArchiveWebException if the entry cannot be replaced
+	 */
+	private String moveArchiveEntry( Archive archive, ArchiveEntryDataholder oldEntryDataholder, String newFilePath, ReplaceStrategy strategy ) throws IOException, CombineArchiveWebException {
+		
+		CombineArchive combineArchive = archive.getArchive();
+		
+		if( combineArchive.getEntryByLocation(newFilePath) != null ) {
+			// there is a file existing at target path -> check replace strategy
+			if( strategy == ReplaceStrategy.REPLACE ) {
+				// Replace -> meta data of source file will be destroyed.
+				// get some temp file
+				Path temp = Files.createTempFile( Fields.TEMP_FILE_PREFIX, oldEntryDataholder.getFileName() );
+				
+				// extract old file
+				oldEntryDataholder.getArchiveEntry().extractFile(temp.toFile());
+				// replaces file in target path
+				archive.addArchiveEntry(newFilePath, temp, ReplaceStrategy.REPLACE);
+				// delete old source file
+				archive.getArchive().removeEntry( oldEntryDataholder.getArchiveEntry() );
+				
+			}
+			else if( strategy == ReplaceStrategy.OVERRIDE ) {
+				// Override -> meta data of target file will be destroyed.
+				
+				// remove file on new position first
+				combineArchive.removeEntry(newFilePath);
+				// than move source file to target position
+				combineArchive.moveEntry(oldEntryDataholder.getFilePath(), newFilePath);
+			}
+			else if( strategy == ReplaceStrategy.RENAME ) {
+				// Rename -> rename source file
+				
+				// find new name
+				String altFileName = newFilePath;
+				int i = 1;
+				while( combineArchive.getEntry(altFileName) != null ) {
+					i++;
+					int extensionPoint = newFilePath.lastIndexOf( '.' );
+					// file names without extension get the counter appended
+					if( extensionPoint <= newFilePath.lastIndexOf('/') )
+						extensionPoint = newFilePath.length();
+					String extension = newFilePath.substring( extensionPoint );
+					String pureName = newFilePath.substring( 0, extensionPoint );
+					
+					altFileName = pureName + "-" + String.valueOf(i) + extension;
+				}
+				// moving file to alternative path
+				combineArchive.moveEntry(oldEntryDataholder.getFilePath(), altFileName);
+				newFilePath = altFileName;
+			}
+			
+		}
+		else {
+			// usual case
+			combineArchive.moveEntry(oldEntryDataholder.getFilePath(), newFilePath);
+		}
+		
+		return newFilePath;
+	}
+	
+	/**
+	 * Applies all operations of a batch to an archive, in the given order, under one lock and packs the
+	 * archive once, together with concurrent changes, see {@link ArchiveMutationQueue}. A failed operation is reported in its result and does not stop the following ones.
+	 *
+	 * @param archiveId the archive id
+	 * @param operations the operations
+	 * @return the result of each operation, in the same order
+	 * @throws CombineArchiveWebException if the archive cannot be opened or packed
+	 */
+	public List<BatchResult> applyBatch( String archiveId, List<BatchOperation> operations ) throws CombineArchiveWebException {
+		return applyBatch(archiveId, operations, false);
+	}
+	
+	/**
+	 * Applies all operations of a batch to an archive, see {@link #applyBatch(String, List)}.
+	 * An atomic batch is checked first and rejected as a whole, if one of its operations cannot be applied.
+	 * Its operations refer to the entries as they are before the batch.
+	 *
+	 * @throws CombineArchiveWebException if the archive cannot be opened or packed, or the atomic batch got rejected
+	 */
+	private List<BatchResult> applyBatch( final String archiveId, final List<BatchOperation> operations, final boolean atomic ) throws CombineArchiveWebException {
+		
+		final List<BatchResult> results = new ArrayList<BatchResult>( operations.size() );
+		// path of the entry, which is returned for each operation, looked up after the pack
+		final List<String> resultPaths = new ArrayList<String>( operations.size() );
+		
+		boolean changed = false;
 		try {
-			archive = getArchive(archiveId);
-		} catch (FileNotFoundException e) {
+			// packed together with concurrent changes of the same archive
+			changed = ArchiveMutationQueue.getInstance().submit(this, archiveId, false, new ArchiveMutationQueue.Mutation<Boolean>() {
+				@Override
+				public Boolean apply(Archive archive) {
+					boolean changed = applyBatch(archive, archiveId, operations, results, resultPaths);
+					if( !changed )
+						unchanged();
+					return changed;
+				}
+				
+				@Override
+				protected void check(Archive archive) throws CombineArchiveWebException {
+					if( atomic )
+						checkBatch(archive, operations);
+				}
+				
+				@Override
+				protected List<BatchOperation> getOperations() {
+					return operations;
+				}
+			});
+		} catch (IOException e) {
 			LOGGER.error(e, "Cannot open archive with id: ", archiveId);
 			throw new CombineArchiveWebException("Cannot open archive with id: " + archiveId, e);
 		}
-		CombineArchive combineArchive = archive.getArchive();
-		// searching for the old entry by the id
-		ArchiveEntryDataholder oldEntryDataholder = archive.getEntryById( newEntryDataholder.getId() );
 		
-		if( oldEntryDataholder == null ) {
-			// was not able to find the old entry
-			try {
-				archive.close();
-			} catch (IOException e1) {
-				LOGGER.error(e1, "Cannot close archive");
-			}
-			throw new CombineArchiveWebException("Cannot find old version of archive entry");
+		if( !changed )
+			return results;
+		
+		// return the entries as they are stored now
+		ArchiveSummary summary = null;
+		try {
+			summary = getArchiveSummary(archiveId);
+		} catch (FileNotFoundException | CombineArchiveWebException e) {
+			LOGGER.warn(e, "Cannot read summary of archive ", archiveId, " after batch");
 		}
-		// get the real entry
-		ArchiveEntry archiveEntry = oldEntryDataholder.getArchiveEntry();
 		
-		// applies changes in the filename/filepath
-		String newFilePath = newEntryDataholder.getFilePath();
-		if( !oldEntryDataholder.getFilePath().equals(newFilePath) && newFilePath != null && !newFilePath.isEmpty() ) {
-			// filePath has changed!
+		for( int index = 0; index < results.size(); index++ ) {
+			BatchResult result = results.get(index);
+			if( result.getStatus() != 200 )
+				continue;
 			
-			if( !newFilePath.startsWith("/") )
-				newFilePath = "/" + newFilePath;
+			if( result.getEntity() instanceof MetaObjectDataholder )
+				// force to re-generate the id, after the pack
+				((MetaObjectDataholder) result.getEntity()).generateId();
+			else if( resultPaths.get(index) != null && summary != null )
+				result.setEntity( summary.getEntryByPath(resultPaths.get(index)) );
+		}
+		
+		return results;
+	}
+	
+	/**
+	 * Applies all operations of a batch to an opened archive.
+	 *
+	 * @return true, if at least one operation succeeded
+	 */
+	private boolean applyBatch( Archive archive, String archiveId, List<BatchOperation> operations, List<BatchResult> results, List<String> resultPaths ) {
+		
+		boolean changed = false;
+		boolean moved = false;
+		
+		for( int index = 0; index < operations.size(); index++ ) {
+			BatchOperation operation = operations.get(index);
+			BatchResult result = new BatchResult( index, operation != null ? operation.getAction() : null );
+			results.add(result);
+			resultPaths.add(null);
+			
+			if( operation == null || !operation.isValid() ) {
+				result.failed(400, "Invalid operation");
+				continue;
+			}
+			
+			ArchiveEntryDataholder entry = getBatchEntry(archive, operation);
+			if( entry == null ) {
+				result.failed(404, "No such entry found");
+				continue;
+			}
 			
-			// move it!
 			try {
-				if( combineArchive.getEntryByLocation(newFilePath) != null ) {
-					// there is a file existing at target path -> check replace strategy
-					ReplaceStrategy strategy = ReplaceStrategy.fromString( newEntryDataholder.getOption() );
-					if( strategy == ReplaceStrategy.REPLACE ) {
-						// Replace -> meta data of source file will be destroyed.
-						// get some temp file
-						Path temp = Files.createTempFile( Fields.TEMP_FILE_PREFIX, oldEntryDataholder.getFileName() );
-						
-						// extract old file
-						oldEntryDataholder.getArchiveEntry().extractFile(temp.toFile());
-						// replaces file in target path
-						archive.addArchiveEntry(newFilePath, temp, ReplaceStrategy.REPLACE);
-						// delete old source file
-						archive.getArchive().removeEntry( oldEntryDataholder.getArchiveEntry() );
-						
-					}
-					else if( strategy == ReplaceStrategy.OVERRIDE ) {
-						// Override -> meta data of target file will be destroyed.
-						
-						// remove file on new position first
-						combineArchive.removeEntry(newFilePath);
-						// than move source file to target position
-						combineArchive.moveEntry(oldEntryDataholder.getFilePath(), newFilePath);
-					}
-					else if( strategy == ReplaceStrategy.RENAME ) {
-						// Rename -> rename source file
-						
-						// find new name
-						String altFileName = newFilePath;
-						int i = 1;
-						while( combineArchive.getEntry(altFileName) != null ) {
-							i++;
-							int extensionPoint = newFilePath.lastIndexOf( '.' );
-							String extension = newFilePath.substring( extensionPoint );
-							String pureName = newFilePath.substring( 0, extensionPoint );
-							
-							altFileName = pureName + "-" + String.valueOf(i) + extension;
-						}
-						// moving file to alternative path
-						combineArchive.moveEntry(oldEntryDataholder.getFilePath(), altFileName);
-					}
-							
-				}
-				else {
-					// usual case
-					combineArchive.moveEntry(oldEntryDataholder.getFilePath(), newFilePath);
-				}
+				resultPaths.set( index, applyBatchOperation(archive, entry, operation, result) );
+			} catch (CombineArchiveWebException e) {
+				LOGGER.warn(e, "Cannot apply ", operation.getAction(), " to entry ", entry.getFilePath(), " in archive ", archiveId);
+				result.failed(400, e.getMessage());
 			} catch (IOException e) {
-				LOGGER.error(e, "Cannot move file from ", oldEntryDataholder.getFilePath(), " to ", newFilePath);
-				
-				try {
-					archive.close();
-				} catch (IOException e1) {
-					LOGGER.error(e1, "Cannot close archive");
-				}
-				
-				throw new CombineArchiveWebException("Cannot move file", e);
+				LOGGER.error(e, "Cannot apply ", operation.getAction(), " to entry ", entry.getFilePath(), " in archive ", archiveId);
+				result.failed(500, e.getMessage());
+			}
+			
+			if( result.getStatus() == 200 ) {
+				changed = true;
+				moved = moved || ( operation.getAction().equals(BatchOperation.ACTION_MOVE) && !entry.getFilePath().equals(resultPaths.get(index)) );
 			}
+		}
+		
+		// add modified date to all omex descriptions for the root element, once for all moves
+		if( moved )
+			Tools.addOmexMetaData(archive.getArchive(), null, false);
+		
+		return changed;
+	}
+	
+	/**
+	 * Checks all operations of a batch against an opened archive, without applying them.
+	 *
+	 * @throws CombineArchiveWebException if one of the operations cannot be applied
+	 */
+	private void checkBatch( Archive archive, List<BatchOperation> operations ) throws CombineArchiveWebException {
+		
+		for( BatchOperation operation : operations ) {
+			if( operation == null || !operation.isValid() )
+				throw new CombineArchiveWebException("Invalid operation");
 			
-			// add modified date to all omex descriptions for the root element
-			Tools.addOmexMetaData(combineArchive, null, false);
+			ArchiveEntryDataholder entry = getBatchEntry(archive, operation);
+			if( entry == null )
+				throw new CombineArchiveWebException("Cannot find old version of archive entry");
 			
+			if( operation.getAction().equals(BatchOperation.ACTION_MOVE) ) {
+				String newFilePath = operation.getFilePath();
+				if( !newFilePath.startsWith("/") )
+					newFilePath = "/" + newFilePath;
+				if( Tools.isFilenameBlacklisted(newFilePath) )
+					throw new CombineArchiveWebException( 
+							MessageFormat.format("The filename is blacklisted. You may not add files called {0}!", newFilePath)
+						);
+				if( newFilePath.endsWith("/") )
+					throw new CombineArchiveWebException("Invalid file path " + newFilePath);
+			}
+			else if( operation.getMetaId() != null && !operation.getMetaId().isEmpty() && entry.getMetaById(operation.getMetaId()) == null )
+				throw new CombineArchiveWebException("No such meta entry found");
+		}
+	}
+	
+	/**
+	 * Looks up the entry, an operation of a batch refers to, by its id or its path.
+	 *
+	 * @return the entry or null
+	 */
+	private ArchiveEntryDataholder getBatchEntry( Archive archive, BatchOperation operation ) {
+		
+		ArchiveEntryDataholder entry = null;
+		if( operation.getEntryId() != null && !operation.getEntryId().isEmpty() )
+			entry = archive.getEntryById( operation.getEntryId() );
+		else {
+			String entryPath = operation.getEntryPath();
+			entry = archive.getEntries().get( entryPath.startsWith("/") ? entryPath : "/" + entryPath );
 		}
 		
-		// format changed
-		URI newFileFormat = newEntryDataholder.getFormat();
-		if( !oldEntryDataholder.getFormat().equals(newFileFormat) && newFileFormat != null ) {
+		return entry != null && entry.getArchiveEntry() != null ? entry : null;
+	}
+	
+	/**
+	 * Applies one operation of a batch to an opened archive.
+	 *
+	 * @return the path of the entry to return, or null
+	 */
+	private String applyBatchOperation( Archive archive, ArchiveEntryDataholder entry, BatchOperation operation, BatchResult result ) throws IOException, CombineArchiveWebException {
+		
+		CombineArchive combineArchive = archive.getArchive();
+		ArchiveEntry archiveEntry = entry.getArchiveEntry();
+		String action = operation.getAction();
+		
+		if( action.equals(BatchOperation.ACTION_MOVE) ) {
+			String newFilePath = operation.getFilePath();
+			if( !newFilePath.startsWith("/") )
+				newFilePath = "/" + newFilePath;
 			
-			oldEntryDataholder.setFormat(newFileFormat);
-			oldEntryDataholder.getArchiveEntry().setFormat(newFileFormat);
+			if( Tools.isFilenameBlacklisted(newFilePath) )
+				throw new CombineArchiveWebException( 
+						MessageFormat.format("The filename is blacklisted. You may not add files called {0}!", newFilePath)
+					);
 			
+			if( !newFilePath.equals(entry.getFilePath()) ) {
+				newFilePath = moveArchiveEntry(archive, entry, newFilePath, ReplaceStrategy.fromString( operation.getOption() ));
+				// moved entries get new dataholders
+				archive.refreshEntries();
+			}
+			result.succeeded(null);
+			return newFilePath;
+		}
+		else if( action.equals(BatchOperation.ACTION_DELETE) ) {
+			if( !combineArchive.removeEntry(archiveEntry) )
+				throw new IOException("Cannot remove entry " + entry.getFilePath());
+			archive.refreshEntries();
+			result.succeeded(null);
+			return null;
+		}
+		else if( action.equals(BatchOperation.ACTION_FORMAT) ) {
+			archiveEntry.setFormat( operation.getFormat() );
+			result.succeeded(null);
+			return entry.getFilePath();
+		}
+		else if( action.equals(BatchOperation.ACTION_MASTER) ) {
+			// set the master flag or remove it
+			if( operation.isMaster() )
+				combineArchive.addMainEntry(archiveEntry);
+			else
+				combineArchive.removeMainEntry(archiveEntry);
+			result.succeeded(null);
+			return entry.getFilePath();
+		}
+		else if( action.equals(BatchOperation.ACTION_CREATE_META) ) {
+			entry.addMetaEntry( operation.getMeta() );
+			result.succeeded( operation.getMeta() );
+			return null;
 		}
 		
-		// set the master flag or remove it
-		if( newEntryDataholder.isMaster() )
-			combineArchive.addMainEntry( archiveEntry );
-		else
-			combineArchive.removeMainEntry( archiveEntry );
-
-		try {
-			archive.packAndClose();
-		} catch (IOException | TransformerException e) {
-			LOGGER.error(e, "Cannot pack and close archive ", archiveId);
-			throw new CombineArchiveWebException("Cannot pack and close archive", e);
+		// update or delete an existing meta object
+		MetaObjectDataholder metaObject = entry.getMetaById( operation.getMetaId() );
+		if( metaObject == null ) {
+			result.failed(404, "No such meta entry found");
+			return null;
+		}
+		
+		if( action.equals(BatchOperation.ACTION_UPDATE_META) ) {
+			metaObject.update( operation.getMeta() );
+			result.succeeded(metaObject);
+			return null;
+		}
+		else {
+			if( !entry.getMetaDataHolder().removeDescription( metaObject.getMetaObject() ) )
+				throw new IOException("Cannot remove meta description");
+			// the meta objects of the entry are copied again
+			archive.refreshEntries();
+			result.succeeded(null);
+			return entry.getFilePath();
 		}
 	}
 
@@ -0,0 +1,574 @@
+package de.unirostock.sems.cbarchive.web;
+/*
+CombineArchiveWeb - a WebInterface to read/create/write/manipulate/... COMBINE archives
+Copyright (C) 2014  SEMS Group
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.transform.TransformerException;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import de.binfalse.bflog.LOGGER;
+import de.unirostock.sems.cbarchive.web.ArchiveLockRegistry.ArchiveLockHandle;
+import de.unirostock.sems.cbarchive.web.dataholder.Archive;
+import de.unirostock.sems.cbarchive.web.dataholder.BatchOperation;
+import de.unirostock.sems.cbarchive.web.dataholder.StatisticData;
+import de.unirostock.sems.cbarchive.web.dataholder.Workspace;
+import de.unirostock.sems.cbarchive.web.exception.CombineArchiveWebException;
+import de.unirostock.sems.cbarchive.web.provider.ObjectMapperProvider;
+
+/**
+ * Keeps changed archives open as working copies, so a series of changes does not rewrite the
+ * archive file each time.
+ *
+ * The changes of a working copy are applied to the opened archive, which holds the manifest and the
+ * meta data in memory and the moved and removed files in its zip file system, until the archive is
+ * packed. This happens lazily on a checkpoint: before the archive file is read or changed in any other
+ * way, after the working copy was idle for {@link Fields#WORKING_COPY_IDLE_TIMEOUT} ms or on shutdown.
+ *
+ * Every change is written to a journal within the workspace first, so the archive file can always be
+ * brought to the state of the working copy by replaying the journal, even after a crash. The journal
+ * starts with the state of the archive file it is based on and is removed after the checkpoint, a
+ * journal whose archive file changed meanwhile is outdated.
+ *
+ * Working copies are only accessed while the archive is locked exclusively, except for reading their summary.
+ */
+public class WorkingCopyManager {
+
+	// Singleton stuff
+	private static volatile WorkingCopyManager instance = null;
+
+	/**
+	 * Returns the Singleton instance
+	 * @return the WorkingCopyManager
+	 */
+	public static WorkingCopyManager getInstance() {
+		if( instance == null ) {
+			synchronized (WorkingCopyManager.class) {
+				if( instance == null )
+					instance = new WorkingCopyManager();
+			}
+		}
+
+		return instance;
+	}
+
+	// --------------------------------------------------------------------------------
+
+	/** directory within the workspace, containing the journals of the working copies */
+	public static final String JOURNAL_DIR = ".wc";
+	public static final int JOURNAL_VERSION = 1;
+	/** extension of the copy of an archive file, which is restored after a failed pack */
+	private static final String BACKUP_EXTENSION = ".bak";
+	/** time in ms, the idle checkpoint waits for an archive lock, before it tries again later */
+	private static final long CHECKPOINT_LOCK_TIMEOUT = 100;
+
+	private static final ObjectMapper mapper = new ObjectMapperProvider().getContext(null);
+
+	/**
+	 * Checks if changed archives are kept as working copies.
+	 *
+	 * @return true, if working copies are enabled
+	 */
+	public static boolean isEnabled() {
+		return Fields.WORKING_COPY_IDLE_TIMEOUT > 0;
+	}
+
+	/**
+	 * Returns the journal of the working copy of an archive. The journal is kept out of the workspace
+	 * directory itself, so it is not mistaken for an archive.
+	 *
+	 * @param archiveFile the archive file
+	 * @return the journal file
+	 */
+	public static File getJournalFile( File archiveFile ) {
+		return new File( new File(archiveFile.getParentFile(), JOURNAL_DIR), archiveFile.getName() );
+	}
+
+	/**
+	 * Checks if an archive has a journal, which might have to be replayed.
+	 *
+	 * @param archiveFile the archive file
+	 * @return true, if there is a journal
+	 */
+	public static boolean hasJournal( File archiveFile ) {
+		return getJournalFile(archiveFile).exists();
+	}
+
+	/**
+	 * Reads the changes from the journal of an archive, the archive has to be locked exclusively.
+	 *
+	 * @param archiveFile the archive file
+	 * @return the batches of changes in the order they were applied, or null if there is no journal or it is outdated
+	 * @throws IOException if the journal cannot be read
+	 */
+	public static List<List<BatchOperation>> readJournal( File archiveFile ) throws IOException {
+
+		File journalFile = getJournalFile(archiveFile);
+		List<String> lines = null;
+		try {
+			lines = Files.readAllLines( journalFile.toPath(), StandardCharsets.UTF_8 );
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+
+		if( lines.isEmpty() )
+			return null;
+
+		JsonNode header = null;
+		try {
+			header = mapper.readTree( lines.get(0) );
+		} catch (IOException e) {
+			// the header is written before the archive is touched
+			LOGGER.warn(e, "Cannot read header of working copy journal ", journalFile);
+			return null;
+		}
+		if( header == null || header.path("version").asInt() != JOURNAL_VERSION )
+			return null;
+		// the archive got packed already, but the journal was not removed
+		if( header.path("lastModified").asLong() != archiveFile.lastModified() || header.path("length").asLong() != archiveFile.length() )
+			return null;
+
+		List<List<BatchOperation>> batches = new ArrayList<List<BatchOperation>>();
+		for( int index = 1; index < lines.size(); index++ ) {
+			String line = lines.get(index);
+			if( line.isEmpty() )
+				continue;
+			try {
+				List<BatchOperation> batch = mapper.readValue( line, new TypeReference<List<BatchOperation>>() {} );
+				batches.add(batch);
+			} catch (IOException e) {
+				// the last change was interrupted while it got journaled, so it was never applied
+				LOGGER.warn(e, "Cannot read change ", index, " of working copy journal ", journalFile, ", skipping the rest");
+				break;
+			}
+		}
+
+		return batches;
+	}
+
+	/**
+	 * Removes the journal of an archive, if there is one.
+	 *
+	 * @param archiveFile the archive file
+	 */
+	public static void deleteJournal( File archiveFile ) {
+		try {
+			Files.deleteIfExists( getJournalFile(archiveFile).toPath() );
+		} catch (IOException e) {
+			LOGGER.warn(e, "Cannot delete working copy journal of ", archiveFile);
+		}
+	}
+
+	/**
+	 * Packs and closes an archive, which contains the changes of a journal. If the archive cannot be packed,
+	 * it is closed without its changes, see {@link #closeUnpacked(Archive, File)}.
+	 *
+	 * @param archive the opened archive, which is not locked itself
+	 * @param archiveFile the archive file
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws TransformerException the transformer exception
+	 */
+	public static void packAndClose( Archive archive, File archiveFile ) throws IOException, TransformerException {
+		try {
+			archive.pack();
+		}
+		catch (IOException | TransformerException | RuntimeException e) {
+			closeUnpacked(archive, archiveFile);
+			throw e;
+		}
+		// closing writes the archive file
+		archive.close();
+	}
+
+	/**
+	 * Closes an archive, which contains the changes of a journal, without changing the archive file.
+	 * Closing the zip file system writes all files, which got changed, so the archive file is copied
+	 * before and restored afterwards. The journal still matches it then and can be replayed later.
+	 *
+	 * @param archive the opened archive, which is not locked itself
+	 * @param archiveFile the archive file
+	 */
+	public static void closeUnpacked( Archive archive, File archiveFile ) {
+
+		File backup = new File( getJournalFile(archiveFile).getPath() + BACKUP_EXTENSION );
+		try {
+			Files.copy( archiveFile.toPath(), backup.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES );
+		} catch (IOException e) {
+			LOGGER.error(e, "Cannot keep archive ", archiveFile, ", its journal might not match anymore");
+			backup = null;
+		}
+
+		try {
+			archive.close();
+		} catch (IOException e) {
+			LOGGER.warn(e, "Cannot close archive ", archiveFile);
+		}
+
+		if( backup != null ) {
+			try {
+				// keeps the modification time, which the journal is tied to
+				Files.move( backup.toPath(), archiveFile.toPath(), StandardCopyOption.REPLACE_EXISTING );
+			} catch (IOException e) {
+				LOGGER.error(e, "Cannot restore archive ", archiveFile, " from ", backup);
+			}
+		}
+	}
+
+	private final ConcurrentMap<String, WorkingCopy> copies = new ConcurrentHashMap<String, WorkingCopy>();
+	private final ScheduledExecutorService executor;
+
+	private final AtomicLong journaled = new AtomicLong(0);
+	private final AtomicLong checkpoints = new AtomicLong(0);
+	private final AtomicLong replays = new AtomicLong(0);
+
+	private WorkingCopyManager() {
+
+		executor = Executors.newSingleThreadScheduledExecutor( new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "working-copy-checkpoint");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		if( isEnabled() ) {
+			long period = Math.max( Fields.WORKING_COPY_IDLE_TIMEOUT / 2, 100 );
+			executor.scheduleWithFixedDelay( new Runnable() {
+				@Override
+				public void run() {
+					checkpointIdle();
+				}
+			}, period, period, TimeUnit.MILLISECONDS );
+		}
+	}
+
+	/**
+	 * Returns the working copy of an archive.
+	 *
+	 * @param workspaceId the workspace id
+	 * @param archiveId the archive id
+	 * @return the working copy or null, if the archive is not opened as working copy
+	 */
+	public WorkingCopy get( String workspaceId, String archiveId ) {
+		return copies.get( workspaceId + "/" + archiveId );
+	}
+
+	/**
+	 * Makes an opened archive the working copy of its archive file, the archive has to be locked exclusively.
+	 *
+	 * @param workspace the workspace
+	 * @param archive the opened archive, which is not locked itself
+	 * @param archiveFile the archive file
+	 * @return the working copy
+	 * @throws IOException if the journal cannot be written
+	 */
+	public WorkingCopy open( Workspace workspace, Archive archive, File archiveFile ) throws IOException {
+
+		File journalFile = getJournalFile(archiveFile);
+		Files.createDirectories( journalFile.getParentFile().toPath() );
+
+		// ties the journal to the current state of the archive file
+		ObjectNode header = mapper.createObjectNode();
+		header.put("version", JOURNAL_VERSION);
+		header.put("lastModified", archiveFile.lastModified());
+		header.put("length", archiveFile.length());
+		try( FileChannel channel = FileChannel.open(journalFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING) ) {
+			write( channel, mapper.writeValueAsString(header) );
+		}
+
+		WorkingCopy copy = new WorkingCopy(workspace, archive, archiveFile, journalFile);
+		copies.put( copy.key, copy );
+		LOGGER.debug("opened working copy of archive ", archive.getId(), " in workspace ", workspace.getWorkspaceId());
+
+		return copy;
+	}
+
+	/**
+	 * Removes the working copy of an archive, the archive has to be locked exclusively.
+	 * The working copy has to be checkpointed or discarded afterwards.
+	 *
+	 * @param workspaceId the workspace id
+	 * @param archiveId the archive id
+	 * @return the working copy or null, if there was none
+	 */
+	public WorkingCopy remove( String workspaceId, String archiveId ) {
+		return copies.remove( workspaceId + "/" + archiveId );
+	}
+
+	/**
+	 * Drops all working copies of a workspace, which is about to be removed. Working copies, which
+	 * cannot be locked in time, are dropped by the idle checkpoint, once their archive file is gone.
+	 *
+	 * @param workspaceId the workspace id
+	 */
+	public void discardWorkspace( String workspaceId ) {
+		String prefix = workspaceId + "/";
+		for( Map.Entry<String, WorkingCopy> entry : copies.entrySet() ) {
+			if( entry.getKey().startsWith(prefix) == false )
+				continue;
+
+			WorkingCopy copy = entry.getValue();
+			ArchiveLockHandle lock = null;
+			try {
+				lock = ArchiveLockRegistry.getInstance().lock(workspaceId, copy.archiveId, true, Fields.LOCK_ARCHIVE_TIMEOUT * 1000);
+			} catch (CombineArchiveWebException e) {
+				LOGGER.warn(e, "Cannot lock archive ", copy.archiveId, " in workspace ", workspaceId, " to discard its working copy");
+				continue;
+			}
+
+			try {
+				if( copies.remove(entry.getKey(), copy) )
+					copy.discard();
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Counts a journal, which got replayed after a crash.
+	 */
+	public void countReplay() {
+		replays.incrementAndGet();
+	}
+
+	/**
+	 * Adds the statistics of the working copies.
+	 *
+	 * @param stats the stats
+	 */
+	public void fillStats( StatisticData stats ) {
+		stats.setWorkingCopies( copies.size() );
+		stats.setWorkingCopyChanges( journaled.get() );
+		stats.setWorkingCopyCheckpoints( checkpoints.get() );
+		stats.setWorkingCopyReplays( replays.get() );
+	}
+
+	/**
+	 * Stops the idle checkpoints and packs all working copies. Working copies, which cannot be locked
+	 * in time, are recovered from their journal on the next access.
+	 */
+	public void shutdown() {
+		executor.shutdownNow();
+
+		for( WorkingCopy copy : copies.values() ) {
+			ArchiveLockHandle lock = null;
+			try {
+				lock = ArchiveLockRegistry.getInstance().lock(copy.workspace.getWorkspaceId(), copy.archiveId, true, Fields.LOCK_ARCHIVE_TIMEOUT * 1000);
+			} catch (CombineArchiveWebException e) {
+				LOGGER.warn(e, "Cannot lock archive ", copy.archiveId, " in workspace ", copy.workspace.getWorkspaceId(), " to pack its working copy");
+				continue;
+			}
+
+			try {
+				if( copies.remove(copy.key, copy) )
+					copy.checkpoint();
+			} catch (IOException | TransformerException e) {
+				LOGGER.error(e, "Cannot pack working copy of archive ", copy.archiveId, " in workspace ", copy.workspace.getWorkspaceId());
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Packs all working copies, which were not changed for the idle timeout.
+	 */
+	private void checkpointIdle() {
+
+		long idleSince = System.currentTimeMillis() - Fields.WORKING_COPY_IDLE_TIMEOUT;
+		for( WorkingCopy copy : copies.values() ) {
+			if( copy.lastAccess > idleSince )
+				continue;
+
+			ArchiveLockHandle lock = null;
+			try {
+				lock = ArchiveLockRegistry.getInstance().lock(copy.workspace.getWorkspaceId(), copy.archiveId, true, CHECKPOINT_LOCK_TIMEOUT);
+			} catch (CombineArchiveWebException e) {
+				// the archive is in use, so it is not idle anyway
+				continue;
+			}
+
+			try {
+				if( copies.remove(copy.key, copy) ) {
+					if( copy.archiveFile.exists() == false )
+						// the workspace got removed meanwhile
+						copy.discard();
+					else {
+						copy.checkpoint();
+						QuotaManager.getInstance().updateArchive(copy.workspace, copy.archiveId);
+					}
+				}
+			} catch (IOException | TransformerException | RuntimeException e) {
+				LOGGER.error(e, "Cannot pack idle working copy of archive ", copy.archiveId, " in workspace ", copy.workspace.getWorkspaceId());
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	private static void write( FileChannel channel, String line ) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap( (line + "\n").getBytes(StandardCharsets.UTF_8) );
+		while( buffer.hasRemaining() )
+			channel.write(buffer);
+		channel.force(false);
+	}
+
+	/**
+	 * An archive, which is kept open with its changes.
+	 */
+	public class WorkingCopy {
+
+		private final String key;
+		private final Workspace workspace;
+		private final String archiveId;
+		private final Archive archive;
+		private final File archiveFile;
+		private final File journalFile;
+
+		/** time of the last change */
+		private volatile long lastAccess = System.currentTimeMillis();
+		/** summary of the current state, built on demand */
+		private ArchiveSummary summary = null;
+		/** the exclusive archive lock of the current user */
+		private ArchiveLockHandle lock = null;
+
+		private WorkingCopy( Workspace workspace, Archive archive, File archiveFile, File journalFile ) {
+			this.workspace = workspace;
+			this.archiveId = archive.getId();
+			this.key = workspace.getWorkspaceId() + "/" + archiveId;
+			this.archive = archive;
+			this.archiveFile = archiveFile;
+			this.journalFile = journalFile;
+		}
+
+		/**
+		 * Returns the opened archive, to apply changes to it. The archive must neither be packed nor closed.
+		 *
+		 * @return the archive
+		 */
+		public Archive getArchive() {
+			return archive;
+		}
+
+		/**
+		 * Hands the working copy over to a user, who holds the exclusive archive lock.
+		 *
+		 * @param lock the exclusive archive lock, released by {@link #release()}
+		 */
+		void acquire( ArchiveLockHandle lock ) {
+			this.lock = lock;
+		}
+
+		/**
+		 * Releases the archive lock, after the changes got applied.
+		 */
+		public void release() {
+			ArchiveLockHandle lock = this.lock;
+			this.lock = null;
+			if( lock != null )
+				lock.unlock();
+		}
+
+		/**
+		 * Writes changes to the journal. Has to be called before the changes are applied.
+		 *
+		 * @param operations the changes
+		 * @throws IOException if the journal cannot be written, the changes must not be applied then
+		 */
+		public void journal( List<BatchOperation> operations ) throws IOException {
+			try( FileChannel channel = FileChannel.open(journalFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND) ) {
+				write( channel, mapper.writeValueAsString(operations) );
+			}
+			journaled.incrementAndGet();
+		}
+
+		/**
+		 * Marks, that the archive got changed.
+		 */
+		public synchronized void changed() {
+			summary = null;
+			lastAccess = System.currentTimeMillis();
+		}
+
+		/**
+		 * Returns the summary of the current state of the working copy. The archive has to be locked at least shared.
+		 *
+		 * @return the summary
+		 */
+		public synchronized ArchiveSummary getSummary() {
+			if( summary == null )
+				summary = ArchiveSummary.build( ArchiveCache.collectEntries(archive.getArchive()).values() );
+			return summary;
+		}
+
+		/**
+		 * Packs the archive into the archive file and removes the journal. The working copy must not be used afterwards,
+		 * if it fails, the journal is replayed on the next access.
+		 *
+		 * @throws IOException Signals that an I/O exception has occurred.
+		 * @throws TransformerException the transformer exception
+		 */
+		void checkpoint() throws IOException, TransformerException {
+			// the journal is kept for a replay, until the archive file contains all changes
+			packAndClose(archive, archiveFile);
+			Files.deleteIfExists( journalFile.toPath() );
+			checkpoints.incrementAndGet();
+			LOGGER.debug("packed working copy of archive ", archiveId, " in workspace ", workspace.getWorkspaceId());
+		}
+
+		/**
+		 * Closes the working copy without packing it, the archive file is about to be removed.
+		 */
+		void discard() {
+			try {
+				archive.getArchive().close();
+			} catch (IOException e) {
+				LOGGER.warn(e, "Cannot close working copy of archive ", archiveId, " in workspace ", workspace.getWorkspaceId());
+			}
+			deleteJournal(archiveFile);
+		}
+	}
+
+}
@@ -0,0 +1,240 @@
+package de.unirostock.sems.cbarchive.web;
+/*
+CombineArchiveWeb - a WebInterface to read/create/write/manipulate/... COMBINE archives
+Copyright (C) 2014  SEMS Group
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import de.binfalse.bflog.LOGGER;
+
+/**
+ * Deletes removed workspaces in the background.
+ *
+ * A removed workspace directory is renamed into the tombstone directory right away, which
+ * is cheap and hides it from the storage. The files are deleted afterwards by a separate
+ * thread with at most {@link Fields#DELETE_RATE} files per second, so a mass expiry does not
+ * saturate the disk. Tombstones left over from a shutdown are picked up on the next start.
+ */
+public class WorkspaceDeleter implements Closeable {
+
+	private final File tombstoneDir;
+	/** maximum number of files per second, 0 means unlimited */
+	private final long rate;
+
+	private final BlockingQueue<File> queue = new LinkedBlockingQueue<File>();
+	private Thread deleterThread = null;
+	private volatile boolean running = false;
+
+	/** start of the current one second window of the rate limit */
+	private long windowStart = 0L;
+	/** files deleted within the current window */
+	private long windowCount = 0L;
+
+	public WorkspaceDeleter( File tombstoneDir, long rate ) {
+		this.tombstoneDir = tombstoneDir;
+		this.rate = rate;
+	}
+
+	/**
+	 * Queues all left over tombstones and starts the deleter thread.
+	 */
+	public synchronized void start() {
+
+		if( running )
+			return;
+
+		File[] tombstones = tombstoneDir.listFiles();
+		if( tombstones != null && tombstones.length > 0 ) {
+			LOGGER.info("Found ", tombstones.length, " left over tombstones in ", tombstoneDir);
+			for( File tombstone : tombstones )
+				queue.offer(tombstone);
+		}
+
+		running = true;
+		deleterThread = new Thread( new Deleter(), "workspace-deleter" );
+		deleterThread.setDaemon(true);
+		deleterThread.start();
+	}
+
+	/**
+	 * Moves the workspace directory to the tombstones and queues it for deletion.
+	 *
+	 * @param workspaceDir the directory of the removed workspace
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public void bury( File workspaceDir ) throws IOException {
+
+		if( workspaceDir == null || workspaceDir.exists() == false )
+			return;
+
+		Files.createDirectories( tombstoneDir.toPath() );
+		File tombstone = new File( tombstoneDir, workspaceDir.getName() + "-" + System.currentTimeMillis() );
+
+		try {
+			Files.move( workspaceDir.toPath(), tombstone.toPath(), StandardCopyOption.ATOMIC_MOVE );
+		}
+		catch (AtomicMoveNotSupportedException e) {
+			// tombstones on another file system, delete the workspace right where it is
+			LOGGER.warn(e, "Cannot move ", workspaceDir, " to the tombstones. Delete it in place");
+			tombstone = workspaceDir;
+		}
+
+		queue.offer(tombstone);
+		LOGGER.debug("queued ", tombstone, " for deletion");
+	}
+
+	/**
+	 * Returns the number of directories waiting for deletion.
+	 *
+	 * @return the queue length
+	 */
+	public int getPendingCount() {
+		return queue.size();
+	}
+
+	/**
+	 * Stops the deleter thread. Remaining tombstones are deleted after the next start.
+	 */
+	@Override
+	public void close() {
+
+		Thread thread = null;
+		synchronized (this) {
+			running = false;
+			thread = deleterThread;
+			deleterThread = null;
+		}
+
+		if( thread == null )
+			return;
+
+		thread.interrupt();
+		try {
+			thread.join(1000);
+		} catch (InterruptedException e) {
+			LOGGER.warn(e, "Interrupted while waiting for the workspace deleter");
+		}
+	}
+
+	/**
+	 * Waits until one more file may be deleted without exceeding the rate.
+	 *
+	 * @throws InterruptedException the interrupted exception
+	 */
+	private void throttle() throws InterruptedException {
+
+		if( rate <= 0 )
+			return;
+
+		long now = System.currentTimeMillis();
+		if( now - windowStart >= 1000 ) {
+			windowStart = now;
+			windowCount = 0;
+		}
+		else if( windowCount >= rate ) {
+			Thread.sleep( windowStart + 1000 - now );
+			windowStart = System.currentTimeMillis();
+			windowCount = 0;
+		}
+
+		windowCount++;
+	}
+
+	// --------------------------------------------------------------------------------
+
+	private class Deleter implements Runnable {
+
+		@Override
+		public void run() {
+
+			while( running ) {
+				File tombstone = null;
+				try {
+					tombstone = queue.take();
+				} catch (InterruptedException e) {
+					// close() was called
+					return;
+				}
+
+				try {
+					long startTime = System.currentTimeMillis();
+					long files = delete(tombstone);
+					LOGGER.info("deleted ", tombstone, " (", files, " files) in ", System.currentTimeMillis() - startTime, "ms");
+				} catch (IOException e) {
+					LOGGER.error(e, "Cannot delete ", tombstone);
+				} catch (InterruptedException e) {
+					// stays in the tombstones, until the next start
+					LOGGER.info("deletion of ", tombstone, " got interrupted");
+					return;
+				}
+			}
+		}
+
+		private long delete( File tombstone ) throws IOException, InterruptedException {
+
+			final long[] count = new long[] {0L};
+			final InterruptedException[] interrupted = new InterruptedException[] {null};
+
+			Files.walkFileTree( tombstone.toPath(), new SimpleFileVisitor<Path>() {
+
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+					return deletePath(file);
+				}
+
+				@Override
+				public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+					if( exc != null )
+						throw exc;
+					return deletePath(dir);
+				}
+
+				private FileVisitResult deletePath(Path path) throws IOException {
+					try {
+						throttle();
+					} catch (InterruptedException e) {
+						interrupted[0] = e;
+						return FileVisitResult.TERMINATE;
+					}
+
+					Files.deleteIfExists(path);
+					count[0]++;
+					return FileVisitResult.CONTINUE;
+				}
+
+			});
+
+			if( interrupted[0] != null )
+				throw interrupted[0];
+
+			return count[0];
+		}
+
+	}
+
+}
@@ -18,24 +18,26 @@ along with this program.  If not, see <http://www.gnu.org/licenses/>.
 */
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.nio.file.AtomicMoveNotSupportedException;
-import java.nio.file.Files;
-import java.nio.file.StandardCopyOption;
-import java.text.ParseException;
-import java.util.Date;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.Properties;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import de.binfalse.bflog.LOGGER;
-import de.unirostock.sems.cbarchive.Utils;
 import de.unirostock.sems.cbarchive.web.dataholder.Workspace;
+import de.unirostock.sems.cbarchive.web.store.IndexRecovery;
+import de.unirostock.sems.cbarchive.web.store.MVStoreWorkspaceStore;
+import de.unirostock.sems.cbarchive.web.store.PropertiesWorkspaceStore;
+import de.unirostock.sems.cbarchive.web.store.WorkspaceStore;
+import de.unirostock.sems.cbarchive.web.store.WriteBehindWorkspaceStore;
 
 public class WorkspaceManager {
 	
@@ -53,8 +55,22 @@ public class WorkspaceManager {
 	
 	// --------------------------------------------------------------------------------,
 	
-	protected Map<String, Workspace> workspaces = new HashMap<String, Workspace>();
-	protected Date lastSaved = new Date();
+	/** width in ms of one bucket of the expiry index, expired workspaces are found with this precision */
+	public static final long EXPIRY_BUCKET_WIDTH = 60 * 1000;
+	
+	
+	/** compact index of all known workspaces: id -> last-seen timestamp in ms */
+	protected ConcurrentMap<String, Long> index = new ConcurrentHashMap<String, Long>();
+	/** workspaces, which are materialized from the store */
+	protected ConcurrentMap<String, Workspace> workspaces = new ConcurrentHashMap<String, Workspace>();
+	/** all workspaces ordered by their last-seen date, to find the expired ones */
+	protected ExpiryIndex expiryIndex = new ExpiryIndex( EXPIRY_BUCKET_WIDTH );
+	/** point in time (ms) after which the next store cycle is due */
+	protected AtomicLong nextStoreDue = new AtomicLong( System.currentTimeMillis() + Fields.STORAGE_AGE );
+	
+	protected WorkspaceStore store = null;
+	/** deletes the directories of removed workspaces in the background */
+	protected WorkspaceDeleter deleter = null;
 	
 	/**
 	 * Default Constructor.
@@ -62,16 +78,139 @@ public class WorkspaceManager {
 	 */
 	private WorkspaceManager() {
 		// read the settings
+		store = createStore();
 		reloadSettings();
+		
+		deleter = new WorkspaceDeleter( Fields.TOMBSTONE_DIR, Fields.DELETE_RATE );
+		deleter.start();
+	}
+	
+	private static WorkspaceStore createStore() {
+		
+		WorkspaceStore store = null;
+		if( WorkspaceStore.TYPE_PROPERTIES.equals(Fields.WORKSPACE_STORE) )
+			store = new PropertiesWorkspaceStore( Fields.SETTINGS_FILE, Fields.JOURNAL_FILE );
+		else {
+			if( WorkspaceStore.TYPE_MVSTORE.equals(Fields.WORKSPACE_STORE) == false )
+				LOGGER.warn( "Unknown workspace store ", Fields.WORKSPACE_STORE, ". Fallback to ", WorkspaceStore.TYPE_MVSTORE );
+			
+			store = new MVStoreWorkspaceStore( Fields.MVSTORE_FILE );
+		}
+		
+		// keep disk writes out of the request threads
+		if( Fields.WRITE_BEHIND_WINDOW > 0 )
+			store = new WriteBehindWorkspaceStore( store, Fields.WRITE_BEHIND_WINDOW );
+		
+		return store;
 	}
 	
 	public Workspace getWorkspace( String workspaceId ) {
 		updateStorage();
-		return workspaces.get(workspaceId);
+		
+		if( workspaceId == null )
+			return null;
+		
+		Workspace workspace = workspaces.get(workspaceId);
+		if( workspace == null && index.containsKey(workspaceId) )
+			workspace = materializeWorkspace(workspaceId);
+		
+		return workspace;
+	}
+	
+	/**
+	 * Updates the last-seen date of the workspace to now.
+	 * 
+	 * @param workspace the workspace
+	 */
+	public void touchWorkspace( Workspace workspace ) {
+		
+		workspace.updateLastseen();
+		long lastseen = workspace.getLastseen().getTime();
+		
+		// a concurrent removal wins
+		if( index.replace(workspace.getWorkspaceId(), lastseen) != null )
+			expiryIndex.touch( workspace.getWorkspaceId(), lastseen );
+	}
+	
+	/**
+	 * Returns the last-seen timestamp of a workspace, without materializing it.
+	 * 
+	 * @param workspaceId the workspace id
+	 * @return timestamp in ms or null, if there is no such workspace
+	 */
+	public Long getLastseen( String workspaceId ) {
+		return workspaceId != null ? index.get(workspaceId) : null;
+	}
+	
+	/**
+	 * Removes all workspaces from the expiry index, which were last seen before the deadline.
+	 * Does not delete the workspaces itself.
+	 * 
+	 * @param deadline timestamp in ms
+	 * @return ids of the expired workspaces
+	 */
+	public List<String> pollExpiredWorkspaces( long deadline ) {
+		return expiryIndex.pollExpired(deadline);
+	}
+	
+	public ExpiryIndex getExpiryIndex() {
+		return expiryIndex;
 	}
 	
 	public boolean hasWorkspace( String workspaceId ) {
-		return workspaces.containsKey(workspaceId);
+		return workspaceId != null && index.containsKey(workspaceId);
+	}
+	
+	/**
+	 * Returns the ids of all known workspaces
+	 * 
+	 * @return set of workspace ids
+	 */
+	public Set<String> getWorkspaceIds() {
+		return Collections.unmodifiableSet( index.keySet() );
+	}
+	
+	/**
+	 * Returns the workspace, without keeping it in memory, if it is not materialized yet.
+	 * Meant for background tasks, which visit all workspaces once.
+	 * 
+	 * @param workspaceId the workspace id
+	 * @return the workspace or null
+	 */
+	public Workspace peekWorkspace( String workspaceId ) {
+		
+		Workspace workspace = workspaces.get(workspaceId);
+		if( workspace != null || index.containsKey(workspaceId) == false )
+			return workspace;
+		
+		try {
+			return store.loadWorkspace(workspaceId);
+		} catch (IOException e) {
+			LOGGER.error(e, "Cannot load workspace ", workspaceId, " from the workspace store");
+			return null;
+		}
+	}
+	
+	private synchronized Workspace materializeWorkspace( String workspaceId ) {
+		
+		// check again, the workspace may got materialized or removed in the meantime
+		Workspace workspace = workspaces.get(workspaceId);
+		if( workspace != null || index.containsKey(workspaceId) == false )
+			return workspace;
+		
+		try {
+			workspace = store.loadWorkspace(workspaceId);
+		} catch (IOException e) {
+			LOGGER.error(e, "Cannot load workspace ", workspaceId, " from the workspace store");
+			return null;
+		}
+		
+		if( workspace != null ) {
+			workspaces.put(workspaceId, workspace);
+			LOGGER.debug("Materialized workspace ", workspaceId);
+		}
+		
+		return workspace;
 	}
 	
 	public synchronized Workspace createWorkspace() throws IOException {
@@ -100,10 +239,17 @@ public class WorkspaceManager {
 		workspace.updateLastseen();
 		// add to settings
 		workspaces.put(uuid, workspace);
+		index.put(uuid, workspace.getLastseen().getTime());
+		expiryIndex.touch(uuid, workspace.getLastseen().getTime());
 		LOGGER.info("Created new workspace with id ", workspace.getWorkspaceId());
 		
-		// save the settings
-		storeSettings();
+		// persist the new workspace
+		try {
+			store.putWorkspace(workspace);
+		} catch (IOException e) {
+			// the workspace is still part of the next store cycle
+			LOGGER.error(e, "Cannot persist new workspace ", uuid);
+		}
 		
 		return workspace;
 	}
@@ -114,12 +260,25 @@ public class WorkspaceManager {
 			return;
 		
 		// first remove it from the index
+		index.remove( workspace.getWorkspaceId() );
 		workspaces.remove( workspace.getWorkspaceId() );
+		expiryIndex.remove( workspace.getWorkspaceId() );
+		QuotaManager.getInstance().removeWorkspace( workspace.getWorkspaceId() );
+		ArchiveCache.getInstance().invalidateWorkspace( workspace.getWorkspaceId() );
+		WorkingCopyManager.getInstance().discardWorkspace( workspace.getWorkspaceId() );
+		
+		// remove the workspace and all its archives from the store
+		try {
+			store.removeWorkspace(workspace);
+		} catch (IOException e) {
+			LOGGER.error(e, "Cannot remove workspace ", workspace.getWorkspaceId(), " from the workspace store");
+		}
+		
 		updateStorage();
 		
-		// remove directory
+		// move the directory out of the way, the files are deleted in the background
 		try {
-			Utils.delete( workspace.getWorkspaceDir() );
+			deleter.bury( workspace.getWorkspaceDir() );
 		} catch (IOException e) {
 			LOGGER.error(e, "Cannot delete Workspace directory ", workspace.getWorkspaceId() );
 		}
@@ -127,14 +286,50 @@ public class WorkspaceManager {
 	}
 	
 	/**
-	 * Checks if the time for the store cycle exceeded and runs the store process, if necessary
+	 * Adds or renames an archive in the workspace and persists the change
+	 * 
+	 * @param workspace the workspace
+	 * @param archiveId the id of the archive
+	 * @param archiveName the (new) name of the archive
 	 */
-	public synchronized void updateStorage() {
+	public synchronized void putArchive( Workspace workspace, String archiveId, String archiveName ) {
 		
-		long difference = (new Date()).getTime() - lastSaved.getTime();
-//		LOGGER.info( (new Date()).getTime(), "  ", lastSaved.getTime(), "  ", difference, "  ", Fields.STORAGE_AGE );
+		workspace.getArchives().put(archiveId, archiveName);
+		try {
+			store.putArchive( workspace.getWorkspaceId(), archiveId, archiveName );
+		} catch (IOException e) {
+			// the change is still part of the next store cycle
+			LOGGER.error(e, "Cannot persist archive ", archiveId, " in workspace ", workspace.getWorkspaceId());
+		}
+	}
+	
+	/**
+	 * Removes an archive from the workspace and persists the change
+	 * 
+	 * @param workspace the workspace
+	 * @param archiveId the id of the archive
+	 */
+	public synchronized void removeArchive( Workspace workspace, String archiveId ) {
+		
+		workspace.getArchives().remove(archiveId);
+		try {
+			store.removeArchive( workspace.getWorkspaceId(), archiveId );
+		} catch (IOException e) {
+			LOGGER.error(e, "Cannot remove archive ", archiveId, " in workspace ", workspace.getWorkspaceId(), " from the workspace store");
+		}
+	}
+	
+	/**
+	 * Checks if the time for the store cycle exceeded and runs the store process, if necessary.
+	 * Does not block, only the first caller after the due time triggers the store process.
+	 */
+	public void updateStorage() {
 		
-		if( difference > Fields.STORAGE_AGE )
+		long now = System.currentTimeMillis();
+		long due = nextStoreDue.get();
+		
+		// claim this store cycle, so it gets triggered at most once per STORAGE_AGE
+		if( now > due && nextStoreDue.compareAndSet(due, now + Fields.STORAGE_AGE) )
 			// Scan all workspaces and than saves the settings in a separate thread
 			QuotaManager.getInstance().forceAsyncScan(true);
 		
@@ -142,146 +337,137 @@ public class WorkspaceManager {
 	
 	private synchronized void reloadSettings() {
 		
-		if( !Fields.SETTINGS_FILE.exists() || !Fields.SETTINGS_FILE.canRead() ) {
-			// in case the file cannot be read
-			LOGGER.warn( "Cannot read central settings file ", Fields.SETTINGS_FILE, ". No existing Workspace will be available" );
-			LOGGER.warn( "Create empty central settings file.");
-			storeSettings();
-			return;
-		}
-		
-		Properties properties = null;
+		boolean lost = false;
 		try {
-			// open file
-			InputStream input = new FileInputStream(Fields.SETTINGS_FILE);
-			// load properties
-			properties = new Properties();
-			properties.load(input);
-			
+			index.putAll( store.loadIndex() );
+			for( Map.Entry<String, Long> entry : index.entrySet() )
+				expiryIndex.touch( entry.getKey(), entry.getValue() );
+			LOGGER.info( "Indexed ", index.size(), " workspaces" );
 		} catch (IOException e) {
-			LOGGER.error( e, "Error while reading the central settings file." );
-			return;
+			LOGGER.error( e, "Error while reading the workspace store. No existing Workspace will be available" );
+			lost = true;
 		}
 		
-		// **** begin iterating over properties 
-		for( Object p : properties.keySet() ) {
-			String key = (String) p;
-			
-			if( key.startsWith(Fields.PROP_LASTSEEN_PRE) ) {
-				// last-seen field of the workspace
-				
-				String workspaceId = key.substring( Fields.PROP_LASTSEEN_PRE.length() );
-				Workspace workspace = workspaces.get(workspaceId);
-				// add workspace to the list, if necessary
-				if( workspace == null ) {
-					workspace = new Workspace(workspaceId);
-					workspaces.put(workspaceId, workspace);
-				}
-				
-				try {
-					workspace.setLastseen( Tools.DATE_FORMATTER.parse(properties.getProperty(key)) );
-				} catch (ParseException e) {
-					LOGGER.warn(e, "Cannot parse date", properties.getProperty(key));
-				}
-				
-			}
-			else if( key.startsWith(Fields.PROP_WORKSPACE_PRE) ) {
-				// name field of the workspace
-				
-				String workspaceId = key.substring( Fields.PROP_WORKSPACE_PRE.length() );
-				Workspace workspace = workspaces.get(workspaceId);
-				// add workspace to the list, if necessary
-				if( workspace == null ) {
-					workspace = new Workspace(workspaceId);
-					workspaces.put(workspaceId, workspace);
-				}
-				
-				workspace.setName( properties.getProperty(key) );
-			}
-			else if( key.startsWith(Fields.PROP_ARCHIVE_PRE) ) {
-				// archive entry
-				
-				String[] parts = key.substring( Fields.PROP_ARCHIVE_PRE.length() ).split( Fields.PROP_SEPARATOR_REGEX );
-				if( parts.length != 2 ) {
-					LOGGER.warn("confusing properties key found ", key);
-					continue;
+		// walking the storage directory takes as long as the number of workspaces, so only do it if the index is gone
+		if( IndexRecovery.MODE_FORCE.equals(Fields.RECOVERY_MODE) )
+			recoverIndex(true);
+		else if( IndexRecovery.MODE_AUTO.equals(Fields.RECOVERY_MODE) && (lost || index.isEmpty()) )
+			recoverIndex(false);
+	}
+	
+	/**
+	 * Adds workspaces and archives from the storage directory, which are missing in the index.
+	 * 
+	 * @param force if true, also known workspaces are scanned for missing archives
+	 */
+	private synchronized void recoverIndex( boolean force ) {
+		
+		IndexRecovery recovery = new IndexRecovery( Fields.STORAGE, (int) Fields.RECOVERY_PARALLELISM );
+		List<Workspace> recovered = recovery.recover( force ? Collections.<String>emptySet() : index.keySet() );
+		
+		int workspaceCount = 0;
+		int archiveCount = 0;
+		for( Workspace workspace : recovered ) {
+			String workspaceId = workspace.getWorkspaceId();
+			try {
+				Workspace known = index.containsKey(workspaceId) ? store.loadWorkspace(workspaceId) : null;
+				if( known == null ) {
+					store.putWorkspace(workspace);
+					index.put( workspaceId, workspace.getLastseen().getTime() );
+					expiryIndex.touch( workspaceId, workspace.getLastseen().getTime() );
+					workspaceCount++;
 				}
 				
-				Workspace workspace = workspaces.get(parts[0]);
-				// add workspace to the list, if necessary
-				if( workspace == null ) {
-					workspace = new Workspace(parts[0]);
-					workspaces.put(parts[0], workspace);
+				for( Map.Entry<String, String> archive : workspace.getArchives().entrySet() ) {
+					if( known != null && known.getArchives().containsKey(archive.getKey()) )
+						continue;
+					
+					store.putArchive( workspaceId, archive.getKey(), archive.getValue() );
+					archiveCount++;
 				}
-				
-				workspace.getArchives().put( parts[1], properties.getProperty(key) );			
+			} catch (IOException e) {
+				LOGGER.error(e, "Cannot add recovered workspace ", workspaceId, " to the index");
 			}
 		}
-		// **** end iterating over properties
+		
+		if( workspaceCount > 0 || archiveCount > 0 ) {
+			LOGGER.warn( "Recovered ", workspaceCount, " workspaces and ", archiveCount, " archives from ", Fields.STORAGE );
+			storeSettings();
+		}
 	}
 	
 	/**
 	 * stores the settings immediately to disk
 	 * 
 	 */
-	public synchronized void storeSettings() {
+	public void storeSettings() {
 		
-		Properties properties = new Properties();
-		Date savedDate = new Date();
+		long savedTime = System.currentTimeMillis();
+		try {
+			store.store( workspaces.values() );
+			
+			// next store cycle is due one STORAGE_AGE after this one
+			nextStoreDue.set( savedTime + Fields.STORAGE_AGE );
+		} catch (IOException e) {
+			LOGGER.error(e, "Cannot write central properties file");
+			return;
+		}
 		
-		LOGGER.info("store settings to disk");
+		evictWorkspaces(savedTime);
+	}
+	
+	/**
+	 * Drops workspaces from memory, which are idle for too long or exceed the maximum
+	 * number of materialized workspaces. Only workspaces, which did not change since
+	 * the last store cycle, are evicted.
+	 * 
+	 * @param savedTime time of the last store cycle
+	 */
+	private synchronized void evictWorkspaces( long savedTime ) {
 		
-		int workspaceCount = 0;
-		int archiveCount = 0;
-		for( String workspaceId : workspaces.keySet() ) {
-			Workspace workspace = workspaces.get(workspaceId);
-			
-			// add fields for name and last-seen
-			properties.setProperty( Fields.PROP_WORKSPACE_PRE + workspaceId, workspace.getName() );
-			properties.setProperty( Fields.PROP_LASTSEEN_PRE + workspaceId, Tools.DATE_FORMATTER.format(workspace.getLastseen()) );
-			workspaceCount++;
+		long idleBorder = System.currentTimeMillis() - Fields.WORKSPACE_IDLE_TIME * 1000;
+		List<Workspace> candidates = new ArrayList<Workspace>();
+		for( Workspace workspace : workspaces.values() ) {
+			long lastseen = workspace.getLastseen() != null ? workspace.getLastseen().getTime() : 0L;
+			if( lastseen >= savedTime )
+				// last-seen is not persisted yet
+				continue;
 			
-			// iterate over all archives
-			for( String archiveId : workspace.getArchives().keySet() ) {
-				String archiveName = workspace.getArchives().get(archiveId);
-				properties.setProperty( Fields.PROP_ARCHIVE_PRE + workspaceId + Fields.PROP_SEPARATOR + archiveId, archiveName);
-				archiveCount++;
-			}
+			if( lastseen < idleBorder )
+				workspaces.remove( workspace.getWorkspaceId() );
+			else
+				candidates.add(workspace);
 		}
 		
-		LOGGER.debug("Constructed settings file with ", workspaceCount, " Workspaces and ", archiveCount, " Archives");
+		if( Fields.WORKSPACE_CACHE_SIZE > 0 && workspaces.size() > Fields.WORKSPACE_CACHE_SIZE ) {
+			// evict the least recently seen ones
+			Collections.sort( candidates, new Comparator<Workspace>() {
+				@Override
+				public int compare(Workspace o1, Workspace o2) {
+					return o1.getLastseen().compareTo( o2.getLastseen() );
+				}
+			});
+			Iterator<Workspace> iter = candidates.iterator();
+			while( workspaces.size() > Fields.WORKSPACE_CACHE_SIZE && iter.hasNext() )
+				workspaces.remove( iter.next().getWorkspaceId() );
+		}
+		
+		LOGGER.debug( workspaces.size(), " of ", index.size(), " workspaces stay materialized" );
+	}
+	
+	/**
+	 * stores the settings, writes all pending changes and closes the workspace store
+	 * 
+	 */
+	public void close() {
 		
+		storeSettings();
+		deleter.close();
 		try {
-			// first write settings to temp file
-			File temp = File.createTempFile( Fields.TEMP_FILE_PREFIX, "settings.conf");
-			OutputStream output = new FileOutputStream( temp );
-			properties.store(output, null);
-
-			// flush'n'close
-			output.flush();
-			output.close();
-			LOGGER.debug("wrote ", temp, " (", temp.length(), " Bytes) to disk.");
-			
-			// create directories (just in case...)
-			Files.createDirectories( Fields.SETTINGS_FILE.toPath().getParent() );
-			
-			// replace actual settings file, with newly written one
-			try {
-				LOGGER.info("Trying to move new settings file in place ", Fields.SETTINGS_FILE);
-				Files.move( temp.toPath(), Fields.SETTINGS_FILE.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
-				LOGGER.info("done moving.");
-			}
-			catch (AtomicMoveNotSupportedException e) {
-				LOGGER.info(e, "Atomic move of settings file failed. Fallback to normal operation.");
-				Files.move( temp.toPath(), Fields.SETTINGS_FILE.toPath(), StandardCopyOption.REPLACE_EXISTING );
-			}
-			
-			// set time of last store to now
-			lastSaved = savedDate;
+			store.close();
 		} catch (IOException e) {
-			LOGGER.error(e, "Cannot write central properties file");
+			LOGGER.error(e, "Cannot close workspace store");
 		}
-		
 	}
 
 }
@@ -0,0 +1,179 @@
+package de.unirostock.sems.cbarchive.web;
+/*
+CombineArchiveWeb - a WebInterface to read/create/write/manipulate/... COMBINE archives
+Copyright (C) 2014  SEMS Group
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import javax.xml.bind.DatatypeConverter;
+
+import org.jdom2.Attribute;
+import org.jdom2.Comment;
+import org.jdom2.Content;
+import org.jdom2.Element;
+import org.jdom2.EntityRef;
+import org.jdom2.Text;
+
+/**
+ * Hashes xml elements without serializing them.
+ *
+ * The digest walks the tree and feeds namespace URIs, names, attributes (sorted), trimmed
+ * text and comments directly into a {@link MessageDigest}. The result does not depend on
+ * prefixes, attribute order or indentation, so equal descriptions get equal ids, no matter
+ * how they were written. Digest and buffer are reused per thread.
+ */
+public final class XmlDigest {
+
+	// markers, so different structures never feed the same bytes
+	private static final byte START_ELEMENT = 1;
+	private static final byte END_ELEMENT = 2;
+	private static final byte ATTRIBUTE = 3;
+	private static final byte TEXT = 4;
+	private static final byte COMMENT = 5;
+	private static final byte ENTITY_REF = 6;
+
+	private static final int BUFFER_SIZE = 1024;
+
+	private static final Comparator<Attribute> ATTRIBUTE_ORDER = new Comparator<Attribute>() {
+		@Override
+		public int compare(Attribute a1, Attribute a2) {
+			int result = a1.getNamespaceURI().compareTo( a2.getNamespaceURI() );
+			return result != 0 ? result : a1.getName().compareTo( a2.getName() );
+		}
+	};
+
+	private static final ThreadLocal<XmlDigest> DIGESTS = new ThreadLocal<XmlDigest>() {
+		@Override
+		protected XmlDigest initialValue() {
+			return new XmlDigest();
+		}
+	};
+
+	private final MessageDigest digest;
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+	private int position = 0;
+
+	private XmlDigest() {
+		try {
+			digest = MessageDigest.getInstance(Fields.HASH_ALGO);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("Hash algorithm " + Fields.HASH_ALGO + " is not available", e);
+		}
+	}
+
+	/**
+	 * Generates the hash id of an xml element, see {@link Tools#generateHashId(String)}.
+	 *
+	 * @param element the element
+	 * @return the hash id
+	 */
+	public static String generateHashId( Element element ) {
+
+		XmlDigest xmlDigest = DIGESTS.get();
+		try {
+			xmlDigest.update(element);
+			xmlDigest.flush();
+			return DatatypeConverter.printHexBinary( xmlDigest.digest.digest() );
+		}
+		finally {
+			// leave nothing behind, if anything failed
+			xmlDigest.position = 0;
+			xmlDigest.digest.reset();
+		}
+	}
+
+	private void update( Element element ) {
+
+		write(START_ELEMENT);
+		write( element.getNamespaceURI() );
+		write( element.getName() );
+
+		if( element.hasAttributes() ) {
+			List<Attribute> attributes = element.getAttributes();
+			Attribute[] sorted = attributes.toArray( new Attribute[attributes.size()] );
+			if( sorted.length > 1 )
+				Arrays.sort(sorted, ATTRIBUTE_ORDER);
+
+			for( Attribute attribute : sorted ) {
+				write(ATTRIBUTE);
+				write( attribute.getNamespaceURI() );
+				write( attribute.getName() );
+				write( attribute.getValue() );
+			}
+		}
+
+		for( Content content : element.getContent() ) {
+			if( content instanceof Element )
+				update( (Element) content );
+			else if( content instanceof Text ) {
+				// indentation is not part of the description
+				String text = ((Text) content).getTextTrim();
+				if( text.isEmpty() == false ) {
+					write(TEXT);
+					write(text);
+				}
+			}
+			else if( content instanceof Comment ) {
+				write(COMMENT);
+				write( ((Comment) content).getText() );
+			}
+			else if( content instanceof EntityRef ) {
+				write(ENTITY_REF);
+				write( ((EntityRef) content).getName() );
+			}
+		}
+
+		write(END_ELEMENT);
+	}
+
+	/**
+	 * Writes the length and the chars of a string.
+	 */
+	private void write( String value ) {
+
+		int length = value.length();
+		writeInt(length);
+		for( int i = 0; i < length; i++ ) {
+			char c = value.charAt(i);
+			write( (byte) (c >>> 8) );
+			write( (byte) c );
+		}
+	}
+
+	private void writeInt( int value ) {
+		write( (byte) (value >>> 24) );
+		write( (byte) (value >>> 16) );
+		write( (byte) (value >>> 8) );
+		write( (byte) value );
+	}
+
+	private void write( byte value ) {
+		if( position == buffer.length )
+			flush();
+		buffer[position++] = value;
+	}
+
+	private void flush() {
+		digest.update(buffer, 0, position);
+		position = 0;
+	}
+
+}
@@ -23,11 +23,8 @@ import java.io.IOException;
 import java.nio.file.Path;
 import java.text.MessageFormat;
 import java.text.ParseException;
-import java.util.Collection;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.locks.Lock;
 
 import javax.xml.bind.annotation.XmlAccessType;
 import javax.xml.bind.annotation.XmlAccessorType;
@@ -47,6 +44,12 @@ import de.binfalse.bflog.LOGGER;
 import de.unirostock.sems.cbarchive.ArchiveEntry;
 import de.unirostock.sems.cbarchive.CombineArchive;
 import de.unirostock.sems.cbarchive.CombineArchiveException;
+import de.unirostock.sems.cbarchive.web.ArchiveAppender;
+import de.unirostock.sems.cbarchive.web.ArchiveAppender.Append;
+import de.unirostock.sems.cbarchive.web.ArchiveCache;
+import de.unirostock.sems.cbarchive.web.ArchiveCache.CachedArchive;
+import de.unirostock.sems.cbarchive.web.ArchiveLockRegistry.ArchiveLockHandle;
+import de.unirostock.sems.cbarchive.web.ArchiveSummary;
 import de.unirostock.sems.cbarchive.web.Tools;
 import de.unirostock.sems.cbarchive.web.exception.CombineArchiveWebException;
 import de.unirostock.sems.cbext.Formatizer;
@@ -91,9 +94,24 @@ public class Archive implements Closeable {
 	@JsonIgnore
 	private File archiveFile		= null;
 	@JsonIgnore
-	protected Lock lock				= null;
+	protected ArchiveLockHandle lock				= null;
+	/** the shared archive from the cache, if the archive was opened read-only */
+	@JsonIgnore
+	private CachedArchive cached	= null;
+	/** summary of the archive, as it was packed last */
+	@JsonIgnore
+	private ArchiveSummary summary	= null;
+	/** files are added in place, if set, see {@link ArchiveAppender} */
+	@JsonIgnore
+	private Append append			= null;
+	/** true, if the archive got packed since it was opened */
+	@JsonIgnore
+	private boolean packed			= false;
+	/** size of the files added since the archive was opened */
+	@JsonIgnore
+	private long addedBytes			= 0;
 
-	public Archive(String id, String name, File file, Lock lock) throws CombineArchiveWebException {
+	public Archive(String id, String name, File file, ArchiveLockHandle lock) throws CombineArchiveWebException {
 		this.id = id;
 		this.name = name;
 		this.archiveFile = file;
@@ -152,7 +170,7 @@ public class Archive implements Closeable {
 	}
 
 	@JsonIgnore
-	public void setArchiveFile(File file, Lock lock) throws CombineArchiveWebException {
+	public void setArchiveFile(File file, ArchiveLockHandle lock) throws CombineArchiveWebException {
 		
 		if( !file.exists() || !file.isFile() ) {
 			LOGGER.error( MessageFormat.format("The archive is not accesible: {0}", file.getAbsolutePath()) );
@@ -172,37 +190,98 @@ public class Archive implements Closeable {
 		
 		
 		// new entry list
-		this.entries = new HashMap<String, ArchiveEntryDataholder>();
+		this.entries = ArchiveCache.collectEntries(archive);
 		
-		// gather information
-		Collection<ArchiveEntry> archiveEntries = archive.getEntries();
-		List<ArchiveEntry> mainEntries = archive.getMainEntries();
+	}
+	
+	/**
+	 * Uses an archive from the {@link ArchiveCache}. The archive and its entries are shared
+	 * with other readers, so they must not be modified.
+	 *
+	 * @param file the archive file
+	 * @param lock the archive lock, released on close
+	 * @param cached the cached archive, released on close
+	 */
+	@JsonIgnore
+	public void setCachedArchive(File file, ArchiveLockHandle lock, CachedArchive cached) {
+		this.archiveFile	= file;
+		this.lock			= lock;
+		this.cached			= cached;
+		this.archive		= cached.getArchive();
+		this.entries		= cached.getEntries();
+	}
+	
+	/**
+	 * Opens the skeleton of an archive, so files can be added in place. The changes are
+	 * written into the archive on {@link #close()}, if the skeleton got packed.
+	 *
+	 * @param file the archive file
+	 * @param lock the exclusive archive lock, released on close
+	 * @param append the prepared append, discarded on close
+	 * @throws CombineArchiveWebException if the skeleton cannot be opened
+	 */
+	@JsonIgnore
+	public void setAppend(File file, ArchiveLockHandle lock, Append append) throws CombineArchiveWebException {
 		
-		// iterate over entries
-		for( ArchiveEntry entry : archiveEntries ) {
-			
-			// entry information are gathered in the entry dataholder
-			ArchiveEntryDataholder dataholder = new ArchiveEntryDataholder(entry);
-			if( mainEntries.contains(entry) )
-				dataholder.setMaster(true);
-			
-			// put it into the map
-			this.entries.put(dataholder.getFilePath(), dataholder);
-		}
+		this.archiveFile	= file;
+		this.lock			= lock;
+		this.append			= append;
 		
-		// add the archive meta information as root entry
-		ArchiveEntryDataholder rootDataholder = new ArchiveEntryDataholder(archive, false, "/", "", null);
-		rootDataholder.updateId();
-		this.entries.put("/", rootDataholder );
+		try {
+			archive = new CombineArchive( append.getSkeletonFile() );
+			LOGGER.debug("opening skeleton of ", file.getAbsolutePath());
+		} catch (IOException | JDOMException | ParseException | CombineArchiveException e) {
+			LOGGER.error(e, MessageFormat.format("The skeleton of the archive is not parsable: {0}", file.getAbsolutePath()) );
+			throw new CombineArchiveWebException("The archive is not parsable", e);
+		}
 		
+		this.entries = ArchiveCache.collectEntries(archive);
+	}
+	
+	@JsonIgnore
+	public boolean isReadOnly() {
+		return cached != null;
 	}
 	
 	@JsonIgnore
 	public void close() throws IOException {
-		if( archive != null ) {
-			archive.close();
+		if( cached != null ) {
+			// the archive stays open for the next reader
+			ArchiveCache.getInstance().release(cached);
+			cached = null;
 			if( lock != null )
 				lock.unlock();
+		}
+		else if( archive != null ) {
+			try {
+				// sizes are read from the zip file system, which is gone afterwards
+				if( entries != null ) {
+					for( ArchiveEntryDataholder entry : entries.values() )
+						entry.loadFileSize();
+				}
+				// closing writes the zip file
+				archive.close();
+				if( append != null ) {
+					if( packed ) {
+						append.commit(addedBytes);
+						// the placeholders of the skeleton have no size, the summary is rebuilt on the next read
+						ArchiveSummary.delete(archiveFile);
+					}
+				}
+				else if( packed ) {
+					ArchiveAppender.getInstance().countRewrite(archiveFile.length(), addedBytes);
+					if( summary != null )
+						writeSummary();
+				}
+			}
+			finally {
+				if( append != null ) {
+					append.discard();
+					append = null;
+				}
+				if( lock != null )
+					lock.unlock();
+			}
 			LOGGER.debug("close ", archiveFile.getAbsolutePath());
 		}
 		else {
@@ -211,12 +290,57 @@ public class Archive implements Closeable {
 		}
 	}
 	
+	/**
+	 * Writes all changes into the archive. The summary of the archive gets updated on close.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws TransformerException the transformer exception
+	 */
 	@JsonIgnore
-	public void packAndClose() throws IOException, TransformerException {
+	public void pack() throws IOException, TransformerException {
+		if( cached != null )
+			throw new IOException("The archive was opened read-only");
 		if( archive != null ) {
 			archive.pack();
+			packed = true;
+			if( append != null )
+				return;
+			// the dataholders of this archive might be outdated, collect the entries again
+			summary = ArchiveSummary.build( ArchiveCache.collectEntries(archive).values() );
+		}
+	}
+	
+	@JsonIgnore
+	public void packAndClose() throws IOException, TransformerException {
+		if( cached != null ) {
 			this.close();
+			throw new IOException("The archive was opened read-only");
 		}
+		if( archive != null ) {
+			this.pack();
+			this.close();
+		}
+	}
+	
+	private void writeSummary() {
+		try {
+			summary.write(archiveFile);
+		} catch (IOException e) {
+			// an outdated summary is rebuilt on the next read anyway
+			LOGGER.warn(e, "Cannot write summary of archive ", archiveFile);
+			ArchiveSummary.delete(archiveFile);
+		}
+		summary = null;
+	}
+	
+	/**
+	 * Collects the entries of the archive again, after entries got moved or removed
+	 * directly in the {@link CombineArchive}.
+	 */
+	@JsonIgnore
+	public void refreshEntries() {
+		if( archive != null && cached == null )
+			this.entries = ArchiveCache.collectEntries(archive);
 	}
 	
 	@JsonIgnore
@@ -283,6 +407,10 @@ public class Archive implements Closeable {
 			LOGGER.error( "The archive was not opened" );
 			throw new CombineArchiveWebException("The archive was not opened");
 		}
+		if( cached != null ) {
+			LOGGER.error( "The archive was opened read-only" );
+			throw new CombineArchiveWebException("The archive was opened read-only");
+		}
 		
 		// check for blacklisted filename
 		if( Tools.isFilenameBlacklisted(fileName) )
@@ -331,6 +459,12 @@ public class Archive implements Closeable {
 			}
 		}
 		
+		if( entry != null ) {
+			addedBytes += file.toFile().length();
+			if( append != null )
+				append.touch( entry.getFilePath() );
+		}
+		
 		return entry;
 	}
 
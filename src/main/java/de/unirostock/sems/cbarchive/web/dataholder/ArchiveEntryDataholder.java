@@ -19,6 +19,7 @@ along with this program.  If not, see <http://www.gnu.org/licenses/>.
 
 import java.io.IOException;
 import java.net.URI;
+import java.nio.file.ClosedFileSystemException;
 import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.List;
@@ -33,6 +34,12 @@ import de.unirostock.sems.cbarchive.meta.MetaDataHolder;
 import de.unirostock.sems.cbarchive.meta.MetaDataObject;
 import de.unirostock.sems.cbarchive.web.Tools;
 
+/**
+ * Dataholder of an archive entry.
+ *
+ * Entries, which are backed by an archive, compute their id, file size and meta objects on first access,
+ * so listing the entries of large archives does not pay for information, which is never read.
+ */
 public class ArchiveEntryDataholder {
 
 	@JsonIgnore
@@ -45,9 +52,11 @@ public class ArchiveEntryDataholder {
 	protected String id;
 	protected String filePath;
 	protected String fileName;
+	/** -1, as long as the size was not determined */
 	protected long fileSize;
 	protected URI format;
-	protected List<MetaObjectDataholder> meta = new ArrayList<MetaObjectDataholder>();
+	/** null, as long as the meta objects were not copied from the meta data holder */
+	protected List<MetaObjectDataholder> meta = null;
 	
 	/** internal used option field, for replace strategy **/
 	@JsonInclude( Include.NON_NULL )
@@ -61,16 +70,10 @@ public class ArchiveEntryDataholder {
 		filePath	= archiveEntry.getFilePath();
 		fileName	= archiveEntry.getFileName();
 		format		= archiveEntry.getFormat();
-		id			= Tools.generateHashId(filePath);
 		
-		try {
-			fileSize	= Files.size( archiveEntry.getPath() );
-		} catch (IOException e) {
-			LOGGER.warn(e, "Cannot determine file size for ", filePath);
-			fileSize	= 0;
-		}
-		
-		copyMetaData(archiveEntry);
+		// id, size and meta data are determined on first access
+		id			= null;
+		fileSize	= -1;
 	}
 
 	public ArchiveEntryDataholder( MetaDataHolder metaDataHolder, boolean master, String filePath, String fileName, URI format) {
@@ -82,8 +85,7 @@ public class ArchiveEntryDataholder {
 		this.filePath		= filePath;
 		this.fileName		= fileName;
 		this.format			= format;
-
-		copyMetaData(metaDataHolder);
+		// meta data is copied on first access
 	}
 
 	public ArchiveEntryDataholder(boolean master, String id, String filePath, String fileName, URI format, List<MetaObjectDataholder> meta) {
@@ -103,22 +105,42 @@ public class ArchiveEntryDataholder {
 		this.filePath = null;
 		this.fileName = null;
 		this.format = null;
+		this.meta = new ArrayList<MetaObjectDataholder>();
 	}
 
 	protected void copyMetaData( MetaDataHolder metaDataHolder ) {
 
-		meta.clear();
+		List<MetaObjectDataholder> meta = new ArrayList<MetaObjectDataholder>();
 		for (MetaDataObject metaObject : metaDataHolder.getDescriptions ()) {
 			meta.add( MetaObjectDataholder.construct(metaObject, this) );
 		}
+		this.meta = meta;
 
 	}
 
 	@JsonIgnore
-	public void updateId() {
+	public synchronized void updateId() {
 		id = Tools.generateHashId(filePath);
 	}
 
+	/**
+	 * Determines the file size now. Has to be called before the archive gets closed,
+	 * if the size might be read afterwards.
+	 */
+	@JsonIgnore
+	public synchronized void loadFileSize() {
+
+		if( fileSize >= 0 || archiveEntry == null )
+			return;
+
+		try {
+			fileSize	= Files.size( archiveEntry.getPath() );
+		} catch (IOException | ClosedFileSystemException e) {
+			LOGGER.warn(e, "Cannot determine file size for ", filePath);
+			fileSize	= 0;
+		}
+	}
+
 	@JsonIgnore
 	public ArchiveEntry getArchiveEntry() {
 		return archiveEntry;
@@ -128,7 +150,7 @@ public class ArchiveEntryDataholder {
 	public MetaObjectDataholder getMetaById( String metaId ) {
 		
 		MetaObjectDataholder metaObject = null;
-		for( MetaObjectDataholder iterMetaObject : meta ) {
+		for( MetaObjectDataholder iterMetaObject : getMeta() ) {
 			
 			if( iterMetaObject.getId().equals(metaId) ) {
 				metaObject = iterMetaObject;
@@ -140,8 +162,10 @@ public class ArchiveEntryDataholder {
 		return metaObject;
 	}
 	
-	public void addMetaEntry( MetaObjectDataholder metaObject ) {
+	public synchronized void addMetaEntry( MetaObjectDataholder metaObject ) {
 
+		// copy the existing meta data first, otherwise the new object would be added twice
+		getMeta();
 		// add the metaObject to the combineArchiveEntry...
 		metaDataHolder.addDescription( metaObject.getCombineArchiveMetaObject() );
 		// ...and to the internal handler
@@ -159,7 +183,9 @@ public class ArchiveEntryDataholder {
 		this.master = master;
 	}
 
-	public String getId() {
+	public synchronized String getId() {
+		if( id == null && archiveEntry != null )
+			id = Tools.generateHashId(filePath);
 		return id;
 	}
 
@@ -175,7 +201,8 @@ public class ArchiveEntryDataholder {
 		return format;
 	}
 	
-	public long getFileSize() {
+	public synchronized long getFileSize() {
+		loadFileSize();
 		return fileSize;
 	}
 
@@ -194,7 +221,9 @@ public class ArchiveEntryDataholder {
 			this.format = format;
 	}
 
-	public List<MetaObjectDataholder> getMeta() {
+	public synchronized List<MetaObjectDataholder> getMeta() {
+		if( meta == null && metaDataHolder != null )
+			copyMetaData(metaDataHolder);
 		return meta;
 	}
 
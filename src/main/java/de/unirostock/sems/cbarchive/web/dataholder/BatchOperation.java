@@ -0,0 +1,166 @@
+package de.unirostock.sems.cbarchive.web.dataholder;
+/*
+CombineArchiveWeb - a WebInterface to read/create/write/manipulate/... COMBINE archives
+Copyright (C) 2014  SEMS Group
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.net.URI;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+import de.unirostock.sems.cbarchive.web.dataholder.Archive.ReplaceStrategy;
+
+/**
+ * One operation of a batch, which is applied to an archive together with all other operations
+ * of the batch, see {@link de.unirostock.sems.cbarchive.web.UserManager#applyBatch(String, java.util.List)}.
+ *
+ * The entry is addressed by its id or by its path. Moving an entry changes its id, so later
+ * operations of the same batch should address a moved entry by its new path.
+ */
+// so Jersey parses this as root dataholder, if passed to create or update or something...
+@XmlAccessorType(XmlAccessType.FIELD)
+public class BatchOperation {
+	
+	/** moves the entry to filePath, option holds the replace strategy */
+	public static final String ACTION_MOVE			= "move";
+	/** removes the entry */
+	public static final String ACTION_DELETE		= "delete";
+	/** sets the format of the entry */
+	public static final String ACTION_FORMAT		= "format";
+	/** sets or removes the master flag of the entry */
+	public static final String ACTION_MASTER		= "master";
+	/** adds meta to the entry */
+	public static final String ACTION_CREATE_META	= "createMeta";
+	/** updates the meta object metaId of the entry with meta */
+	public static final String ACTION_UPDATE_META	= "updateMeta";
+	/** removes the meta object metaId of the entry */
+	public static final String ACTION_DELETE_META	= "deleteMeta";
+	
+	private String action = null;
+	private String entryId = null;
+	private String entryPath = null;
+	
+	private String filePath = null;
+	private String option = ReplaceStrategy.RENAME.toString();
+	private URI format = null;
+	private boolean master = false;
+	
+	private String metaId = null;
+	private MetaObjectDataholder meta = null;
+	
+	public BatchOperation() {
+		super();
+	}
+
+	public String getAction() {
+		return action;
+	}
+
+	public void setAction(String action) {
+		this.action = action;
+	}
+
+	public String getEntryId() {
+		return entryId;
+	}
+
+	public void setEntryId(String entryId) {
+		this.entryId = entryId;
+	}
+
+	public String getEntryPath() {
+		return entryPath;
+	}
+
+	public void setEntryPath(String entryPath) {
+		this.entryPath = entryPath;
+	}
+
+	public String getFilePath() {
+		return filePath;
+	}
+
+	public void setFilePath(String filePath) {
+		this.filePath = filePath;
+	}
+
+	public String getOption() {
+		return option;
+	}
+
+	public void setOption(String option) {
+		this.option = option;
+	}
+
+	public URI getFormat() {
+		return format;
+	}
+
+	public void setFormat(URI format) {
+		this.format = format;
+	}
+
+	public boolean isMaster() {
+		return master;
+	}
+
+	public void setMaster(boolean master) {
+		this.master = master;
+	}
+
+	public String getMetaId() {
+		return metaId;
+	}
+
+	public void setMetaId(String metaId) {
+		this.metaId = metaId;
+	}
+
+	public MetaObjectDataholder getMeta() {
+		return meta;
+	}
+
+	public void setMeta(MetaObjectDataholder meta) {
+		this.meta = meta;
+	}
+	
+	@JsonIgnore
+	public boolean isValid() {
+		
+		if( action == null || action.isEmpty() )
+			return false;
+		
+		if( (entryId == null || entryId.isEmpty()) && (entryPath == null || entryPath.isEmpty()) )
+			return false;
+		
+		if( action.equals(ACTION_MOVE) )
+			return filePath != null && !filePath.isEmpty();
+		else if( action.equals(ACTION_FORMAT) )
+			return format != null;
+		else if( action.equals(ACTION_CREATE_META) )
+			return meta != null;
+		else if( action.equals(ACTION_UPDATE_META) )
+			return meta != null && metaId != null && !metaId.isEmpty();
+		else if( action.equals(ACTION_DELETE_META) )
+			return metaId != null && !metaId.isEmpty();
+		
+		return action.equals(ACTION_DELETE) || action.equals(ACTION_MASTER);
+	}
+	
+}
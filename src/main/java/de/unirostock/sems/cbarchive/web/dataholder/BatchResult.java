@@ -0,0 +1,101 @@
+package de.unirostock.sems.cbarchive.web.dataholder;
+/*
+CombineArchiveWeb - a WebInterface to read/create/write/manipulate/... COMBINE archives
+Copyright (C) 2014  SEMS Group
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+
+/**
+ * Result of one {@link BatchOperation}, the status follows the status codes of the
+ * equivalent single request.
+ */
+public class BatchResult {
+	
+	private int index;
+	private String action;
+	private int status;
+	
+	@JsonInclude( Include.NON_NULL )
+	private String message = null;
+	/** the entry or meta object after the batch got applied */
+	@JsonInclude( Include.NON_NULL )
+	private Object entity = null;
+	
+	public BatchResult(int index, String action) {
+		super();
+		this.index = index;
+		this.action = action;
+	}
+	
+	public BatchResult() {
+		super();
+	}
+	
+	public void succeeded( Object entity ) {
+		this.status = 200;
+		this.message = null;
+		this.entity = entity;
+	}
+	
+	public void failed( int status, String message ) {
+		this.status = status;
+		this.message = message;
+		this.entity = null;
+	}
+	
+	public int getIndex() {
+		return index;
+	}
+
+	public void setIndex(int index) {
+		this.index = index;
+	}
+
+	public String getAction() {
+		return action;
+	}
+
+	public void setAction(String action) {
+		this.action = action;
+	}
+
+	public int getStatus() {
+		return status;
+	}
+
+	public void setStatus(int status) {
+		this.status = status;
+	}
+
+	public String getMessage() {
+		return message;
+	}
+
+	public void setMessage(String message) {
+		this.message = message;
+	}
+
+	public Object getEntity() {
+		return entity;
+	}
+
+	public void setEntity(Object entity) {
+		this.entity = entity;
+	}
+	
+}
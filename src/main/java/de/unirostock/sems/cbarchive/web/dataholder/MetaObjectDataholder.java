@@ -17,11 +17,6 @@ You should have received a copy of the GNU General Public License
 along with this program.  If not, see <http://www.gnu.org/licenses/>.
 */
 
-import java.io.IOException;
-
-import javax.xml.transform.TransformerException;
-
-import org.jdom2.Document;
 import org.jdom2.Element;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
@@ -30,10 +25,9 @@ import com.fasterxml.jackson.annotation.JsonSubTypes.Type;
 import com.fasterxml.jackson.annotation.JsonTypeInfo;
 
 import de.binfalse.bflog.LOGGER;
-import de.unirostock.sems.cbarchive.Utils;
 import de.unirostock.sems.cbarchive.meta.MetaDataObject;
 import de.unirostock.sems.cbarchive.meta.OmexMetaDataObject;
-import de.unirostock.sems.cbarchive.web.Tools;
+import de.unirostock.sems.cbarchive.web.XmlDigest;
 import de.unirostock.sems.cbarchive.web.exception.CombineArchiveWebException;
 
 // so Jackson can parse json into childs of this abstract class
@@ -72,6 +66,8 @@ abstract public class MetaObjectDataholder {
 	protected MetaDataObject metaObject = null;
 	
 	protected String id = "null";
+	/** true, if the id has to be generated from the meta object on next access */
+	private boolean idOutdated = false;
 	/** type of the meta information */
 	protected String type = TYPE_NOTSET;
 	/** setted from the client side, if anything changed. */
@@ -110,27 +106,25 @@ abstract public class MetaObjectDataholder {
 	public abstract MetaDataObject getCombineArchiveMetaObject();
 	
 	/**
-	 * Generates a temporarily id for the meta entry
+	 * Generates a temporarily id for the meta entry. The id is computed on next access
+	 * and kept, until the meta object changes again.
 	 */
 	@JsonIgnore
-	public void generateId() {
+	public synchronized void generateId() {
+		idOutdated = true;
+	}
+
+	public synchronized String getId() {
 		
-		Element xmlElement = metaObject.getXmlDescription();
-		String xmlString = null;
-		try {
-			Document doc = new Document();
-			doc.setRootElement(xmlElement.clone());
-			xmlString = Utils.prettyPrintDocument( doc );
-		} catch (IOException | TransformerException e) {
-			LOGGER.error(e, "Can't generate xml from meta object to generate meta id");
-			return;
+		if( idOutdated && metaObject != null ) {
+			Element xmlElement = metaObject.getXmlDescription();
+			if( xmlElement != null )
+				id = XmlDigest.generateHashId(xmlElement);
+			else
+				LOGGER.error("Can't generate meta id, the meta object has no xml description");
+			idOutdated = false;
 		}
 		
-		id = Tools.generateHashId(xmlString);
-//		LOGGER.debug("generated ID: ", id);
-	}
-
-	public String getId() {
 		return id;
 	}
 
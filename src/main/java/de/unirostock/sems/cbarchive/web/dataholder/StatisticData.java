@@ -44,6 +44,64 @@ public class StatisticData implements Serializable, Cloneable {
 	// server stuff
 	private long maxStatsAge = IGNORE_LONG;
 	
+	// quota scan
+	/** duration of the last quota scan in ms */
+	private long scanDuration = IGNORE_LONG;
+	/** number of threads used for the last quota scan */
+	private long scanParallelism = IGNORE_LONG;
+	/** number of archive files read by the last quota scan */
+	private long scannedFiles = IGNORE_LONG;
+	/** archive files per second read by the last quota scan */
+	private double scanThroughput = IGNORE_DOUBLE;
+	/** time in ms the last quota scan waited for I/O, summed up over all threads */
+	private long scanIoWait = IGNORE_LONG;
+	
+	// distributions
+	/** sizes of all archives in bytes */
+	private Distribution archiveSizeDistribution = null;
+	/** sizes of all workspaces in bytes */
+	private Distribution workspaceSizeDistribution = null;
+	/** number of entries per archive, only archives opened since the start are known */
+	private Distribution archiveEntriesDistribution = null;
+	/** ages of all workspaces in seconds */
+	private Distribution workspaceAgeDistribution = null;
+	
+	// archive cache
+	/** number of archives served from the archive cache */
+	private long archiveCacheHits = IGNORE_LONG;
+	/** number of archives, which had to be opened */
+	private long archiveCacheMisses = IGNORE_LONG;
+	/** number of archives dropped from the archive cache, because it was full */
+	private long archiveCacheEvictions = IGNORE_LONG;
+	/** number of archives dropped from the archive cache, because they were changed */
+	private long archiveCacheInvalidations = IGNORE_LONG;
+	/** size in bytes of all archive files in the archive cache */
+	private long archiveCacheBytes = IGNORE_LONG;
+	
+	// archive writes
+	/** number of archives, which got files added in place */
+	private long archiveAppends = IGNORE_LONG;
+	/** number of archives, which were rewritten as a whole */
+	private long archiveRewrites = IGNORE_LONG;
+	/** bytes written into archive files */
+	private long archiveBytesWritten = IGNORE_LONG;
+	/** size in bytes of the files added to archives */
+	private long archivePayloadBytes = IGNORE_LONG;
+	/** bytes written into archive files per byte of added files */
+	private double archiveWriteAmplification = IGNORE_DOUBLE;
+	/** number of changes of archives, which went through the mutation queue */
+	private long archiveMutations = IGNORE_LONG;
+	/** number of times, the mutation queue packed an archive */
+	private long archiveMutationCycles = IGNORE_LONG;
+	/** number of archives, currently kept open as working copy */
+	private long workingCopies = IGNORE_LONG;
+	/** number of changes, applied to working copies */
+	private long workingCopyChanges = IGNORE_LONG;
+	/** number of times, a working copy got packed */
+	private long workingCopyCheckpoints = IGNORE_LONG;
+	/** number of working copy journals, replayed after a crash */
+	private long workingCopyReplays = IGNORE_LONG;
+	
 	// internal stuff
 	/** if set to true, all stats are returned */
 	@JsonIgnore
@@ -52,6 +110,9 @@ public class StatisticData implements Serializable, Cloneable {
 	/** Timestamp of generation */
 	private Date generated = new Date();
 	
+	/** true, if newer stats are currently generated */
+	private boolean refreshing = false;
+	
 	public StatisticData() {}
 
 	@JsonIgnore
@@ -152,6 +213,15 @@ public class StatisticData implements Serializable, Cloneable {
 		this.generated = generated;
 	}
 	
+	@JsonInclude(Include.ALWAYS)
+	public boolean isRefreshing() {
+		return refreshing;
+	}
+	
+	public void setRefreshing(boolean refreshing) {
+		this.refreshing = refreshing;
+	}
+	
 	public long getTotalArchiveCount() {
 		return totalArchiveCount;
 	}
@@ -168,6 +238,206 @@ public class StatisticData implements Serializable, Cloneable {
 		this.maxStatsAge = maxStatsAge;
 	}
 
+	public long getScanDuration() {
+		return fullStats ? scanDuration : IGNORE_LONG;
+	}
+
+	public void setScanDuration(long scanDuration) {
+		this.scanDuration = scanDuration;
+	}
+
+	public long getScanParallelism() {
+		return fullStats ? scanParallelism : IGNORE_LONG;
+	}
+
+	public void setScanParallelism(long scanParallelism) {
+		this.scanParallelism = scanParallelism;
+	}
+
+	public long getScannedFiles() {
+		return fullStats ? scannedFiles : IGNORE_LONG;
+	}
+
+	public void setScannedFiles(long scannedFiles) {
+		this.scannedFiles = scannedFiles;
+	}
+
+	public double getScanThroughput() {
+		return fullStats ? scanThroughput : IGNORE_DOUBLE;
+	}
+
+	public void setScanThroughput(double scanThroughput) {
+		this.scanThroughput = scanThroughput;
+	}
+
+	public long getScanIoWait() {
+		return fullStats ? scanIoWait : IGNORE_LONG;
+	}
+
+	public void setScanIoWait(long scanIoWait) {
+		this.scanIoWait = scanIoWait;
+	}
+
+	public Distribution getArchiveSizeDistribution() {
+		return fullStats ? archiveSizeDistribution : null;
+	}
+
+	public void setArchiveSizeDistribution(Distribution archiveSizeDistribution) {
+		this.archiveSizeDistribution = archiveSizeDistribution;
+	}
+
+	public Distribution getWorkspaceSizeDistribution() {
+		return fullStats ? workspaceSizeDistribution : null;
+	}
+
+	public void setWorkspaceSizeDistribution(Distribution workspaceSizeDistribution) {
+		this.workspaceSizeDistribution = workspaceSizeDistribution;
+	}
+
+	public Distribution getArchiveEntriesDistribution() {
+		return fullStats ? archiveEntriesDistribution : null;
+	}
+
+	public void setArchiveEntriesDistribution(Distribution archiveEntriesDistribution) {
+		this.archiveEntriesDistribution = archiveEntriesDistribution;
+	}
+
+	public Distribution getWorkspaceAgeDistribution() {
+		return fullStats ? workspaceAgeDistribution : null;
+	}
+
+	public void setWorkspaceAgeDistribution(Distribution workspaceAgeDistribution) {
+		this.workspaceAgeDistribution = workspaceAgeDistribution;
+	}
+
+	public long getArchiveCacheHits() {
+		return fullStats ? archiveCacheHits : IGNORE_LONG;
+	}
+
+	public void setArchiveCacheHits(long archiveCacheHits) {
+		this.archiveCacheHits = archiveCacheHits;
+	}
+
+	public long getArchiveCacheMisses() {
+		return fullStats ? archiveCacheMisses : IGNORE_LONG;
+	}
+
+	public void setArchiveCacheMisses(long archiveCacheMisses) {
+		this.archiveCacheMisses = archiveCacheMisses;
+	}
+
+	public long getArchiveCacheEvictions() {
+		return fullStats ? archiveCacheEvictions : IGNORE_LONG;
+	}
+
+	public void setArchiveCacheEvictions(long archiveCacheEvictions) {
+		this.archiveCacheEvictions = archiveCacheEvictions;
+	}
+
+	public long getArchiveCacheInvalidations() {
+		return fullStats ? archiveCacheInvalidations : IGNORE_LONG;
+	}
+
+	public void setArchiveCacheInvalidations(long archiveCacheInvalidations) {
+		this.archiveCacheInvalidations = archiveCacheInvalidations;
+	}
+
+	public long getArchiveCacheBytes() {
+		return fullStats ? archiveCacheBytes : IGNORE_LONG;
+	}
+
+	public void setArchiveCacheBytes(long archiveCacheBytes) {
+		this.archiveCacheBytes = archiveCacheBytes;
+	}
+
+	public long getArchiveAppends() {
+		return fullStats ? archiveAppends : IGNORE_LONG;
+	}
+
+	public void setArchiveAppends(long archiveAppends) {
+		this.archiveAppends = archiveAppends;
+	}
+
+	public long getArchiveRewrites() {
+		return fullStats ? archiveRewrites : IGNORE_LONG;
+	}
+
+	public void setArchiveRewrites(long archiveRewrites) {
+		this.archiveRewrites = archiveRewrites;
+	}
+
+	public long getArchiveBytesWritten() {
+		return fullStats ? archiveBytesWritten : IGNORE_LONG;
+	}
+
+	public void setArchiveBytesWritten(long archiveBytesWritten) {
+		this.archiveBytesWritten = archiveBytesWritten;
+	}
+
+	public long getArchivePayloadBytes() {
+		return fullStats ? archivePayloadBytes : IGNORE_LONG;
+	}
+
+	public void setArchivePayloadBytes(long archivePayloadBytes) {
+		this.archivePayloadBytes = archivePayloadBytes;
+	}
+
+	public double getArchiveWriteAmplification() {
+		return fullStats ? archiveWriteAmplification : IGNORE_DOUBLE;
+	}
+
+	public void setArchiveWriteAmplification(double archiveWriteAmplification) {
+		this.archiveWriteAmplification = archiveWriteAmplification;
+	}
+
+	public long getArchiveMutations() {
+		return fullStats ? archiveMutations : IGNORE_LONG;
+	}
+
+	public void setArchiveMutations(long archiveMutations) {
+		this.archiveMutations = archiveMutations;
+	}
+
+	public long getArchiveMutationCycles() {
+		return fullStats ? archiveMutationCycles : IGNORE_LONG;
+	}
+
+	public void setArchiveMutationCycles(long archiveMutationCycles) {
+		this.archiveMutationCycles = archiveMutationCycles;
+	}
+
+	public long getWorkingCopies() {
+		return fullStats ? workingCopies : IGNORE_LONG;
+	}
+
+	public void setWorkingCopies(long workingCopies) {
+		this.workingCopies = workingCopies;
+	}
+
+	public long getWorkingCopyChanges() {
+		return fullStats ? workingCopyChanges : IGNORE_LONG;
+	}
+
+	public void setWorkingCopyChanges(long workingCopyChanges) {
+		this.workingCopyChanges = workingCopyChanges;
+	}
+
+	public long getWorkingCopyCheckpoints() {
+		return fullStats ? workingCopyCheckpoints : IGNORE_LONG;
+	}
+
+	public void setWorkingCopyCheckpoints(long workingCopyCheckpoints) {
+		this.workingCopyCheckpoints = workingCopyCheckpoints;
+	}
+
+	public long getWorkingCopyReplays() {
+		return fullStats ? workingCopyReplays : IGNORE_LONG;
+	}
+
+	public void setWorkingCopyReplays(long workingCopyReplays) {
+		this.workingCopyReplays = workingCopyReplays;
+	}
+
 	@Override
 	public StatisticData clone() {
 		StatisticData clone = new StatisticData();
@@ -185,9 +455,92 @@ public class StatisticData implements Serializable, Cloneable {
 		clone.userWorkspaceSizeQuota = userWorkspaceSizeQuota;
 		
 		clone.maxStatsAge = maxStatsAge;
-		clone.generated = new Date(generated.getTime());
+		clone.scanDuration = scanDuration;
+		clone.scanParallelism = scanParallelism;
+		clone.scannedFiles = scannedFiles;
+		clone.scanThroughput = scanThroughput;
+		clone.scanIoWait = scanIoWait;
+		// distributions are never modified after creation
+		clone.archiveSizeDistribution = archiveSizeDistribution;
+		clone.workspaceSizeDistribution = workspaceSizeDistribution;
+		clone.archiveEntriesDistribution = archiveEntriesDistribution;
+		clone.workspaceAgeDistribution = workspaceAgeDistribution;
+		clone.archiveCacheHits = archiveCacheHits;
+		clone.archiveCacheMisses = archiveCacheMisses;
+		clone.archiveCacheEvictions = archiveCacheEvictions;
+		clone.archiveCacheInvalidations = archiveCacheInvalidations;
+		clone.archiveCacheBytes = archiveCacheBytes;
+		clone.archiveAppends = archiveAppends;
+		clone.archiveRewrites = archiveRewrites;
+		clone.archiveBytesWritten = archiveBytesWritten;
+		clone.archivePayloadBytes = archivePayloadBytes;
+		clone.archiveWriteAmplification = archiveWriteAmplification;
+		clone.archiveMutations = archiveMutations;
+		clone.archiveMutationCycles = archiveMutationCycles;
+		clone.workingCopies = workingCopies;
+		clone.workingCopyChanges = workingCopyChanges;
+		clone.workingCopyCheckpoints = workingCopyCheckpoints;
+		clone.workingCopyReplays = workingCopyReplays;
+		clone.generated = generated != null ? new Date(generated.getTime()) : null;
+		clone.refreshing = refreshing;
 		
 		return clone;
 	}
 	
+	/**
+	 * Percentiles of a distribution, values are upper bounds with a relative error of at most 12.5%.
+	 */
+	public static class Distribution implements Serializable {
+		
+		private static final long serialVersionUID = 2873406126340891527L;
+		
+		/** number of values */
+		private long count = 0L;
+		private long p50 = 0L;
+		private long p90 = 0L;
+		private long p99 = 0L;
+		private long max = 0L;
+		
+		public long getCount() {
+			return count;
+		}
+		
+		public void setCount(long count) {
+			this.count = count;
+		}
+		
+		public long getP50() {
+			return p50;
+		}
+		
+		public void setP50(long p50) {
+			this.p50 = p50;
+		}
+		
+		public long getP90() {
+			return p90;
+		}
+		
+		public void setP90(long p90) {
+			this.p90 = p90;
+		}
+		
+		public long getP99() {
+			return p99;
+		}
+		
+		public void setP99(long p99) {
+			this.p99 = p99;
+		}
+		
+		public long getMax() {
+			return max;
+		}
+		
+		public void setMax(long max) {
+			this.max = max;
+		}
+		
+	}
+	
 }
@@ -20,15 +20,14 @@ along with this program.  If not, see <http://www.gnu.org/licenses/>.
 import java.io.File;
 import java.io.IOException;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
 
 import de.binfalse.bflog.LOGGER;
+import de.unirostock.sems.cbarchive.web.ArchiveLockRegistry;
+import de.unirostock.sems.cbarchive.web.ArchiveLockRegistry.ArchiveLockHandle;
 import de.unirostock.sems.cbarchive.web.Fields;
 import de.unirostock.sems.cbarchive.web.Tools;
 import de.unirostock.sems.cbarchive.web.exception.CombineArchiveWebException;
@@ -42,9 +41,7 @@ public class Workspace {
 	@JsonIgnore
 	private File workspaceDir = null;
 	@JsonIgnore
-	private Map<String, String> archives = new HashMap<String, String>();
-	@JsonIgnore
-	private Map<String, ReentrantLock> locks = new HashMap<String, ReentrantLock>();
+	private Map<String, String> archives = new ConcurrentHashMap<String, String>();
 	
 	public Workspace(String workspaceId, String name) {
 		super();
@@ -160,28 +157,50 @@ public class Workspace {
 		return size;
 	}
 	
+	/**
+	 * Locks an archive exclusively, e.g. to change it.
+	 *
+	 * @param archiveId the archive id
+	 * @return the acquired lock
+	 * @throws CombineArchiveWebException if the archive does not exist or the lock could not be acquired in time
+	 */
+	@JsonIgnore
+	public ArchiveLockHandle lockArchive( String archiveId ) throws CombineArchiveWebException {
+		return lockArchive( archiveId, Fields.LOCK_ARCHIVE_TIMEOUT * 1000 );
+	}
+	
+	/**
+	 * Locks an archive exclusively and waits at most {@code timeout} ms for it.
+	 *
+	 * @param archiveId the archive id
+	 * @param timeout time in ms
+	 * @return the acquired lock
+	 * @throws CombineArchiveWebException if the archive does not exist or the lock could not be acquired in time
+	 */
 	@JsonIgnore
-	public synchronized Lock lockArchive( String archiveId ) throws CombineArchiveWebException {
+	public ArchiveLockHandle lockArchive( String archiveId, long timeout ) throws CombineArchiveWebException {
+		return lockArchive( archiveId, true, timeout );
+	}
+	
+	/**
+	 * Locks an archive for reading and waits at most {@code timeout} ms for it.
+	 * Any number of readers may hold the lock at the same time, but no writer.
+	 *
+	 * @param archiveId the archive id
+	 * @param timeout time in ms
+	 * @return the acquired lock
+	 * @throws CombineArchiveWebException if the archive does not exist or the lock could not be acquired in time
+	 */
+	@JsonIgnore
+	public ArchiveLockHandle lockArchiveShared( String archiveId, long timeout ) throws CombineArchiveWebException {
+		return lockArchive( archiveId, false, timeout );
+	}
+	
+	private ArchiveLockHandle lockArchive( String archiveId, boolean exclusive, long timeout ) throws CombineArchiveWebException {
 		
 		if( archives.containsKey(archiveId) == false )
 			throw new CombineArchiveWebException("No such archive.");
 		
-		ReentrantLock archiveLock = null;
-		synchronized (this) {
-			archiveLock = locks.get(archiveId);
-			if( archiveLock == null ) {
-				archiveLock = new ReentrantLock(true);
-				locks.put(archiveId, archiveLock);
-			}
-		}
-		
-		try {
-			if( archiveLock.tryLock( Fields.LOCK_ARCHIVE_TIMEOUT, TimeUnit.SECONDS ) == false )
-				throw new CombineArchiveWebException("Lock timeout.");
-		} catch (InterruptedException e) {
-			throw new CombineArchiveWebException("Lock interrupted.", e);
-		}
-		
-		return archiveLock;
+		return ArchiveLockRegistry.getInstance().lock(workspaceId, archiveId, exclusive, timeout);
 	}
 }
@@ -93,6 +93,7 @@ public class GitImporter extends Importer {
 	
 	public void close() {
 		
+		releaseQuota();
 		repo.close();
 		
 		try {
@@ -34,11 +34,11 @@ import org.apache.http.impl.client.HttpClientBuilder;
 
 import de.binfalse.bflog.LOGGER;
 import de.unirostock.sems.cbarchive.web.Fields;
-import de.unirostock.sems.cbarchive.web.QuotaManager;
 import de.unirostock.sems.cbarchive.web.Tools;
 import de.unirostock.sems.cbarchive.web.UserManager;
 import de.unirostock.sems.cbarchive.web.dataholder.ArchiveFromHttp;
 import de.unirostock.sems.cbarchive.web.exception.ImporterException;
+import de.unirostock.sems.cbarchive.web.exception.QuotaException;
 
 public class HttpImporter extends Importer {
 	
@@ -74,7 +74,7 @@ public class HttpImporter extends Importer {
 	}
 	
 	public void close() {
-		// nothing todo
+		releaseQuota();
 	}
 	
 	private boolean checkFile() throws ImporterException {
@@ -166,15 +166,14 @@ public class HttpImporter extends Importer {
 			LOGGER.warn("QUOTA_UPLOAD_SIZE reached in workspace ", user.getWorkspaceId());
 			throw new ImporterException("The uploaded file is to big.");
 		}
-		// max workspace size
-		if( user != null && Fields.QUOTA_WORKSPACE_SIZE != Fields.QUOTA_UNLIMITED && Tools.checkQuota(QuotaManager.getInstance().getWorkspaceSize(user.getWorkspace()) + length, Fields.QUOTA_WORKSPACE_SIZE) == false ) {
-			LOGGER.warn("QUOTA_WORKSPACE_SIZE reached in workspace ", user.getWorkspaceId());
-			throw new ImporterException("The maximum size of one workspace is reached.");
-		}
-		// max total size
-		if( user != null && Fields.QUOTA_TOTAL_SIZE != Fields.QUOTA_UNLIMITED && Tools.checkQuota(QuotaManager.getInstance().getTotalSize() + length, Fields.QUOTA_TOTAL_SIZE) == false ) {
-			LOGGER.warn("QUOTA_TOTAL_SIZE reached in workspace ", user.getWorkspaceId());
-			throw new ImporterException("The maximum size is reached.");
+		// max workspace and total size, reserved until the archive is added to the workspace
+		if( user != null ) {
+			try {
+				reserveQuota(length);
+			}
+			catch (QuotaException e) {
+				throw new ImporterException(e.getUserMessage(), e);
+			}
 		}
 		
 	}
@@ -30,11 +30,14 @@ import org.eclipse.jgit.lib.PersonIdent;
 import de.binfalse.bflog.LOGGER;
 import de.unirostock.sems.cbarchive.meta.omex.VCard;
 import de.unirostock.sems.cbarchive.web.Fields;
+import de.unirostock.sems.cbarchive.web.QuotaManager;
+import de.unirostock.sems.cbarchive.web.QuotaReservation;
 import de.unirostock.sems.cbarchive.web.UserManager;
 import de.unirostock.sems.cbarchive.web.dataholder.Archive;
 import de.unirostock.sems.cbarchive.web.dataholder.ArchiveFromGit;
 import de.unirostock.sems.cbarchive.web.dataholder.ArchiveFromHttp;
 import de.unirostock.sems.cbarchive.web.exception.ImporterException;
+import de.unirostock.sems.cbarchive.web.exception.QuotaException;
 
 public abstract class Importer implements Closeable {
 	
@@ -112,6 +115,7 @@ public abstract class Importer implements Closeable {
 	protected String remoteUrl = null;
 	protected File tempFile = null;
 	protected UserManager user = null;
+	protected QuotaReservation reservation = null;
 	
 	public Importer( UserManager user ) {
 		this.user = user;
@@ -128,6 +132,37 @@ public abstract class Importer implements Closeable {
 	public abstract Importer importRepo() throws ImporterException;
 	public abstract void close();
 	
+	/**
+	 * Reserves the size of the imported archive in the workspace of the user,
+	 * or grows the existing reservation, if the archive turned out to be bigger.
+	 * The reservation is released by {@link #close()}, commit it after the archive is added to the workspace.
+	 *
+	 * @param size the size of the imported archive in bytes
+	 * @return the reservation
+	 * @throws QuotaException if a quota would be exceeded
+	 */
+	public QuotaReservation reserveQuota( long size ) throws QuotaException {
+		
+		if( reservation == null )
+			reservation = QuotaManager.getInstance().reserve( user.getWorkspace(), null, size );
+		else if( size > reservation.getBytes() )
+			reservation.grow( size - reservation.getBytes() );
+		
+		return reservation;
+	}
+	
+	public QuotaReservation getQuotaReservation() {
+		return reservation;
+	}
+	
+	/**
+	 * Releases the quota reservation, if not done yet.
+	 */
+	protected void releaseQuota() {
+		if( reservation != null )
+			reservation.release();
+	}
+	
 	/**
 	 * Suggest a name, in case the user does not provide one
 	 * 
@@ -25,7 +25,6 @@ import java.io.InputStream;
 import java.nio.file.Files;
 import java.text.MessageFormat;
 import java.text.ParseException;
-import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.LinkedList;
@@ -58,14 +57,17 @@ import org.jdom2.JDOMException;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 import de.binfalse.bflog.LOGGER;
 import de.unirostock.sems.cbarchive.ArchiveEntry;
-import de.unirostock.sems.cbarchive.CombineArchive;
 import de.unirostock.sems.cbarchive.CombineArchiveException;
+import de.unirostock.sems.cbarchive.web.ArchiveMutationQueue;
+import de.unirostock.sems.cbarchive.web.ArchiveSummary;
 import de.unirostock.sems.cbarchive.web.Fields;
 import de.unirostock.sems.cbarchive.web.QuotaManager;
+import de.unirostock.sems.cbarchive.web.QuotaReservation;
 import de.unirostock.sems.cbarchive.web.Tools;
 import de.unirostock.sems.cbarchive.web.UserManager;
 import de.unirostock.sems.cbarchive.web.WorkspaceManager;
@@ -73,6 +75,8 @@ import de.unirostock.sems.cbarchive.web.dataholder.Archive;
 import de.unirostock.sems.cbarchive.web.dataholder.Archive.ReplaceStrategy;
 import de.unirostock.sems.cbarchive.web.dataholder.ArchiveEntryDataholder;
 import de.unirostock.sems.cbarchive.web.dataholder.ArchiveFromExisting;
+import de.unirostock.sems.cbarchive.web.dataholder.BatchOperation;
+import de.unirostock.sems.cbarchive.web.dataholder.BatchResult;
 import de.unirostock.sems.cbarchive.web.dataholder.FetchRequest;
 import de.unirostock.sems.cbarchive.web.dataholder.MetaObjectDataholder;
 import de.unirostock.sems.cbarchive.web.dataholder.StatisticData;
@@ -566,36 +570,29 @@ public class RestApi extends RestHelper {
 			if( Importer.isImportable(archive) ) {
 				
 				File archiveFile = null;
+				Importer importer = null;
 				try {
 					// import stuff
-					Importer importer = Importer.getImporter(archive, user);
+					importer = Importer.getImporter(archive, user);
 					archiveFile = importer.importRepo().getTempFile();
-					importer.close();
 					
-					long repoFileSize = archiveFile.length();
-					// max workspace size
-					if( Fields.QUOTA_WORKSPACE_SIZE != Fields.QUOTA_UNLIMITED && Tools.checkQuota(QuotaManager.getInstance().getWorkspaceSize(user.getWorkspace()) + repoFileSize, Fields.QUOTA_WORKSPACE_SIZE) == false ) {
-						LOGGER.warn("QUOTA_WORKSPACE_SIZE reached in workspace ", user.getWorkspaceId());
-						// remove temp file
-						archiveFile.delete();
-						return buildErrorResponse(507, user, "The maximum size of one workspace is reached.");
-					}
-					// max total size
-					if( Fields.QUOTA_TOTAL_SIZE != Fields.QUOTA_UNLIMITED && Tools.checkQuota(QuotaManager.getInstance().getTotalSize() + repoFileSize, Fields.QUOTA_TOTAL_SIZE) == false ) {
-						LOGGER.warn("QUOTA_TOTAL_SIZE reached in workspace ", user.getWorkspaceId());
-						// remove temp file
-						archiveFile.delete();
-						return buildErrorResponse(507, user, "The maximum size is reached.");
-					}
+					// max workspace and total size, reserved until the archive is accounted
+					QuotaReservation reservation = importer.reserveQuota( archiveFile.length() );
 					
 					String id = user.createArchive( archive.getName(), archiveFile, archive.isIncludeVCard() && user.hasData() ? user.getData().getVCard() : null );
 					archive.setId(id);
+					reservation.commit();
 					
 				}
+				catch (QuotaException e) {
+					return buildErrorResponse(507, user, e.getUserMessage());
+				}
 				catch (ImporterException e) {
 					LOGGER.error (e, "Cannot import archive.");
 					return buildErrorResponse( 500, user, "Cannot import archive!", e.getMessage() );
 				} finally {
+					if( importer != null )
+						importer.close();
 					if( archiveFile != null && archiveFile.exists() )
 						archiveFile.delete();
 				}
@@ -606,9 +603,6 @@ public class RestApi extends RestHelper {
 				archive.setId(id);
 			}
 			
-			// trigger quota update
-			QuotaManager.getInstance().updateWorkspace( user.getWorkspace() );
-			
 			return buildResponse(200, user).entity(archive).build();
 			
 		} catch (IOException | JDOMException | ParseException | CombineArchiveException | TransformerException e) {
@@ -662,6 +656,7 @@ public class RestApi extends RestHelper {
 		}
 		
 		java.nio.file.Path temp = null;
+		QuotaReservation reservation = null;
 		try {
 			// check for mime type
 			// TODO
@@ -681,34 +676,24 @@ public class RestApi extends RestHelper {
 				temp.toFile().delete();
 				return buildErrorResponse(507, user, "The uploaded file is to big.");
 			}
-			// max workspace size
-			if( Fields.QUOTA_WORKSPACE_SIZE != Fields.QUOTA_UNLIMITED && Tools.checkQuota(QuotaManager.getInstance().getWorkspaceSize(user.getWorkspace()) + uploadedFileSize, Fields.QUOTA_WORKSPACE_SIZE) == false ) {
-				LOGGER.warn("QUOTA_WORKSPACE_SIZE reached in workspace ", user.getWorkspaceId());
-				// remove temp file
-				temp.toFile().delete();
-				return buildErrorResponse(507, user, "The maximum size of one workspace is reached.");
-			}
-			// max total size
-			if( Fields.QUOTA_TOTAL_SIZE != Fields.QUOTA_UNLIMITED && Tools.checkQuota(QuotaManager.getInstance().getTotalSize() + uploadedFileSize, Fields.QUOTA_TOTAL_SIZE) == false ) {
-				LOGGER.warn("QUOTA_TOTAL_SIZE reached in workspace ", user.getWorkspaceId());
-				// remove temp file
-				temp.toFile().delete();
-				return buildErrorResponse(507, user, "The maximum size is reached.");
-			}
+			// max workspace and total size, reserved until the archive is accounted
+			reservation = QuotaManager.getInstance().reserve( user.getWorkspace(), null, uploadedFileSize );
 			
 			// creates a existing archive in the working space (check is included)
 			String id = user.createArchive( archive.getName(), temp.toFile(), archive.isIncludeVCard() && user.hasData() ? user.getData().getVCard() : null );
 			archive.setId(id);
-			
-			// trigger quota update
-			QuotaManager.getInstance().updateWorkspace( user.getWorkspace() );
+			reservation.commit();
 			
 			return buildResponse(200, user).entity(archive).build();
 			
+		} catch (QuotaException e) {
+			return buildErrorResponse(507, user, e.getUserMessage());
 		} catch (IOException | JDOMException | ParseException | CombineArchiveException | TransformerException e) {
 			LOGGER.error(e, MessageFormat.format("Cannot create archive in WorkingDir {0}", user.getWorkingDir()) );
 			return buildErrorResponse( 500, user, "Cannot create archive!", e.getMessage() );
 		} finally {
+			if( reservation != null )
+				reservation.release();
 			// remove temp file
 			if( temp != null )
 				temp.toFile().delete();
@@ -736,9 +721,6 @@ public class RestApi extends RestHelper {
 			return buildErrorResponse( 500, user, "Cannot delete archive!", e.getMessage() );
 		}	
 		
-		// trigger quota update
-		QuotaManager.getInstance().updateWorkspace( user.getWorkspace() );
-		
 		// just return a HTTP ok
 		return buildResponse(200, user).entity("ok").build();
 	}
@@ -760,19 +742,9 @@ public class RestApi extends RestHelper {
 		}
 
 		try {
-			Archive archive = user.getArchive(archiveId);
-			archive.close();
-
-			// gets result and sorts it
-			List<ArchiveEntryDataholder> result = new ArrayList<ArchiveEntryDataholder>( archive.getEntries().values() );
-			Collections.sort(result, new Comparator<ArchiveEntryDataholder>() {
-				@Override
-				public int compare(ArchiveEntryDataholder o1, ArchiveEntryDataholder o2) {
-					return o1.getFileName().toLowerCase().compareTo(o2.getFileName().toLowerCase());
-				}
-			});
-			
-			return buildResponse(200, user).entity(result).build();
+			// already sorted by file name
+			ArchiveSummary summary = user.getArchiveSummary(archiveId);
+			return buildResponse(200, user).entity( summary.getEntries() ).build();
 		} catch (CombineArchiveWebException | IOException e) {
 			LOGGER.error(e, MessageFormat.format("Cannot read archive {0} entries in WorkingDir {1}", archiveId, user.getWorkingDir()) );
 			return buildErrorResponse( 500, user, "Cannot read archive " + archiveId + " entries in WorkingDir " + user.getWorkingDir().toString(), e.getMessage() );
@@ -794,9 +766,8 @@ public class RestApi extends RestHelper {
 		}
 
 		try {
-			Archive archive = user.getArchive(archiveId);
-			archive.close();
-			ArchiveEntryDataholder entry = archive.getEntryById(entryId);
+			ArchiveSummary summary = user.getArchiveSummary(archiveId);
+			JsonNode entry = summary.getEntryById(entryId);
 			
 			// check if entry exists
 			if( entry != null )
@@ -827,9 +798,7 @@ public class RestApi extends RestHelper {
 		try {
 			user.updateArchiveEntry(archiveId, newEntry);
 			
-			Archive archive = user.getArchive(archiveId);
-			archive.close();
-			ArchiveEntryDataholder entry = archive.getEntries().get( newEntry.getFilePath() );
+			JsonNode entry = user.getArchiveSummary(archiveId).getEntryByPath( newEntry.getFilePath() );
 			
 			// check if entry exists
 			if( entry != null )
@@ -863,9 +832,13 @@ public class RestApi extends RestHelper {
 		
 		// TODO
 		Archive archive = null;
+		QuotaReservation reservation = null;
 		LinkedList<Object> result = new LinkedList<Object>();
 		try {
-			archive = user.getArchive(archiveId);
+			// only adds files, so they can be appended in place
+			archive = user.getAppendableArchive(archiveId);
+			// grows with every fetched file, until the archive is packed
+			reservation = QuotaManager.getInstance().reserve( user.getWorkspace(), archiveId, 0 );
 			
 			// check maximum files in archive -> is the limit already reached, without uploading anything new?
 			if( Fields.QUOTA_FILE_LIMIT != Fields.QUOTA_UNLIMITED && Tools.checkQuota( archive.countArchiveEntries(), Fields.QUOTA_FILE_LIMIT) == false ) {
@@ -909,8 +882,9 @@ public class RestApi extends RestHelper {
 				}
 				
 				// check for all quotas
+				long reservedBytes = contentLength > 0 ? contentLength : 0;
 				try {
-					Tools.checkQuotasOrFail(contentLength, archive, user);
+					Tools.checkQuotasOrFail(contentLength, archive, user, reservation);
 				}
 				catch (QuotaException e) {
 					getRequest.abort();
@@ -925,8 +899,8 @@ public class RestApi extends RestHelper {
 					limit = Fields.QUOTA_UPLOAD_SIZE;
 					limitError = "The fetched file is to big.";
 				}
-				if( Fields.QUOTA_ARCHIVE_SIZE != Fields.QUOTA_UNLIMITED && Fields.QUOTA_ARCHIVE_SIZE - user.getWorkspace().getArchiveSize(archiveId) < limit ) {
-					limit = Fields.QUOTA_ARCHIVE_SIZE - user.getWorkspace().getArchiveSize(archiveId);
+				if( Fields.QUOTA_ARCHIVE_SIZE != Fields.QUOTA_UNLIMITED && Fields.QUOTA_ARCHIVE_SIZE - QuotaManager.getInstance().getArchiveSize(user.getWorkspace(), archiveId) < limit ) {
+					limit = Fields.QUOTA_ARCHIVE_SIZE - QuotaManager.getInstance().getArchiveSize(user.getWorkspace(), archiveId);
 					limitError = "The maximum size of one archive is reached.";
 				}
 				if( Fields.QUOTA_WORKSPACE_SIZE != Fields.QUOTA_UNLIMITED && Fields.QUOTA_WORKSPACE_SIZE - QuotaManager.getInstance().getWorkspaceSize(user.getWorkspace()) < limit ) {
@@ -955,6 +929,18 @@ public class RestApi extends RestHelper {
 					continue;
 				}
 				
+				// the server did not tell the real size in advance
+				if( copied > reservedBytes ) {
+					try {
+						reservation.grow( copied - reservedBytes );
+					}
+					catch (QuotaException e) {
+						result.add( new ArchiveEntryUploadException(e.getUserMessage(), request.getPath() + fileName) );
+						tempFile.toFile().delete();
+						continue;
+					}
+				}
+				
 				// override flag
 				ReplaceStrategy strategy = ReplaceStrategy.fromString( request.getStrategy() ); 
 						
@@ -971,8 +957,10 @@ public class RestApi extends RestHelper {
 				
 				// clean up
 				tempFile.toFile().delete();
-				// add to result list
-				result.add( new ArchiveEntryDataholder(entry) );
+				// add to result list, the size has to be known before the archive is closed
+				ArchiveEntryDataholder dataholder = new ArchiveEntryDataholder(entry);
+				dataholder.loadFileSize();
+				result.add( dataholder );
 			}
 			
 			synchronized (archive) {
@@ -982,7 +970,7 @@ public class RestApi extends RestHelper {
 			}
 			
 			// trigger quota update
-			QuotaManager.getInstance().updateWorkspace( user.getWorkspace() );
+			reservation.commit();
 			// return all successfully uploaded files
 			return buildResponse(200, user).entity(result).build();
 			
@@ -990,6 +978,8 @@ public class RestApi extends RestHelper {
 			LOGGER.error(e, MessageFormat.format("Error while fetching/adding file to archive {0} in Workspace {1}", archiveId, user.getWorkingDir() ));
 			return buildErrorResponse(500, user, "Error while fetching file: " + e.getMessage() );
 		} finally {
+			if( reservation != null )
+				reservation.release();
 			try {
 				if( archive != null )
 					archive.close();
@@ -1006,7 +996,7 @@ public class RestApi extends RestHelper {
 	@Path( "/archives/{archive_id}/entries" )
 	@Produces( MediaType.APPLICATION_JSON )
 	@Consumes( MediaType.MULTIPART_FORM_DATA )
-	public Response createArchiveEntry( @PathParam("archive_id") String archiveId, @CookieParam(Fields.COOKIE_PATH) String userPath, @FormDataParam("files[]") List<FormDataBodyPart> files,
+	public Response createArchiveEntry( @PathParam("archive_id") final String archiveId, @CookieParam(Fields.COOKIE_PATH) String userPath, @FormDataParam("files[]") List<FormDataBodyPart> files,
 			@FormDataParam("options") String optionString, @FormDataParam("path") String path, @CookieParam(Fields.COOKIE_USER) String userJson ) {
 		// user stuff
 		UserManager user = null;
@@ -1033,103 +1023,133 @@ public class RestApi extends RestHelper {
 			return buildErrorResponse(500, user, "Cannot read options string.");
 		}
 		
-		Archive archive = null;
-		try {
-			archive = user.getArchive(archiveId);
-			List<Object> result = new LinkedList<Object>();
-			
-			// adds ending slash
-			if( path == null || path.isEmpty() )
-				path = "/";
-			else if( !path.endsWith("/") )
-				path = path + "/";
-			
-			// check maximum files in archive -> is the limit already reached, without uploading anything new?
-			if( Fields.QUOTA_FILE_LIMIT != Fields.QUOTA_UNLIMITED && Tools.checkQuota( archive.countArchiveEntries(), Fields.QUOTA_FILE_LIMIT) == false ) {
-				LOGGER.warn("QUOTA_FILE_LIMIT reached in workspace ", user.getWorkspaceId());
-				return buildErrorResponse(507, user, "The max amount of files in one archive is reached.");
+		// adds ending slash
+		if( path == null || path.isEmpty() )
+			path = "/";
+		else if( !path.endsWith("/") )
+			path = path + "/";
+		
+		// copy the streams to temp files first, so the archive is not locked while uploading
+		final List<Upload> uploads = new LinkedList<Upload>();
+		for( FormDataBodyPart file : files ) {
+			Upload upload = new Upload();
+			try {
+				upload.fileName = file.getFormDataContentDisposition().getFileName();
+				// remove leading slash
+				if( upload.fileName.startsWith("/") )
+					upload.fileName = upload.fileName.substring(1);
+				
+				// figuring out a good temp file name (seems like URIs don't like Brackets) 
+				String uploadedFileName = file.getFormDataContentDisposition().getFileName();
+				uploadedFileName = Tools.cleanUpFileName(uploadedFileName);
+				
+				// copy the stream to a temp file
+				upload.temp = Tools.writeStreamToTempFile( uploadedFileName, file.getEntityAs(InputStream.class) ); 
+				
+				// override flag
+				String opt = (options != null) ? options.get( file.getFormDataContentDisposition().getFileName() ) : null;
+				upload.strategy = ReplaceStrategy.fromString(opt); 
+			}
+			catch (IOException e) {
+				LOGGER.error(e, MessageFormat.format("Error while uploading file to archive {0} in Workspace {1}", archiveId, user.getWorkingDir() ));
+				String message = e.getMessage();
+				if( message == null || message.isEmpty() )
+					message = MessageFormat.format("Error while uploading file to archive {0} in Workspace {1}", archiveId, user.getWorkingDir());
+				
+				upload.error = new ArchiveEntryUploadException(message, path + upload.fileName);
 			}
+			uploads.add(upload);
+		}
+		
+		final UserManager owner = user;
+		final String targetPath = path;
+		QuotaReservation reservation = null;
+		try {
+			// grows with every uploaded file, until the archive is packed
+			final QuotaReservation uploadReservation = QuotaManager.getInstance().reserve( user.getWorkspace(), archiveId, 0 );
+			reservation = uploadReservation;
 			
-			for( FormDataBodyPart file : files ) {
-				String fileName = null;
-				try {
-					fileName = file.getFormDataContentDisposition().getFileName();
-					// remove leading slash
-					if( fileName.startsWith("/") )
-						fileName = fileName.substring(1);
-					
-					// figuring out a good temp file name (seems like URIs don't like Brackets) 
-					String uploadedFileName = file.getFormDataContentDisposition().getFileName();
-					uploadedFileName = Tools.cleanUpFileName(uploadedFileName);
-					
-					// copy the stream to a temp file
-					java.nio.file.Path temp = Tools.writeStreamToTempFile( uploadedFileName, file.getEntityAs(InputStream.class) ); 
-					long uploadedFileSize = temp.toFile().length();
+			// only adds files, so they can be appended in place, concurrent uploads are packed together
+			List<Object> result = ArchiveMutationQueue.getInstance().submit(user, archiveId, true, new ArchiveMutationQueue.Mutation<List<Object>>() {
+				@Override
+				public List<Object> apply(Archive archive) {
 					
-					// check for all quotas
-					try {
-						Tools.checkQuotasOrFail(uploadedFileSize, archive, user);
-					}
-					catch (QuotaException e) {
-						// remove temp file
-						temp.toFile().delete();
-						result.add( new ArchiveEntryUploadException(e.getUserMessage(), path + fileName) );
-						continue;
+					// check maximum files in archive -> is the limit already reached, without adding anything new?
+					if( Fields.QUOTA_FILE_LIMIT != Fields.QUOTA_UNLIMITED && Tools.checkQuota( archive.countArchiveEntries(), Fields.QUOTA_FILE_LIMIT) == false ) {
+						LOGGER.warn("QUOTA_FILE_LIMIT reached in workspace ", owner.getWorkspaceId());
+						unchanged();
+						return null;
 					}
 					
-					// override flag
-					String opt = (options != null) ? options.get( file.getFormDataContentDisposition().getFileName() ) : null;
-					ReplaceStrategy strategy = ReplaceStrategy.fromString(opt); 
+					List<Object> result = new LinkedList<Object>();
+					boolean added = false;
+					for( Upload upload : uploads ) {
+						if( upload.error != null ) {
+							result.add(upload.error);
+							continue;
+						}
+						
+						try {
+							// check for all quotas
+							try {
+								Tools.checkQuotasOrFail(upload.temp.toFile().length(), archive, owner, uploadReservation);
+							}
+							catch (QuotaException e) {
+								result.add( new ArchiveEntryUploadException(e.getUserMessage(), targetPath + upload.fileName) );
+								continue;
+							}
 							
-					// add the file in the currently selected path
-					ArchiveEntry entry = archive.addArchiveEntry(path + fileName, temp, strategy);
-					
-					// add default meta information
-					Tools.addOmexMetaData(entry,
-							user.getData() != null && user.getData().hasInformation() ? user.getData().getVCard() : null,
-							true);
-					
-					LOGGER.info(MessageFormat.format("Successfully added file {0} to archive {1}", fileName, archiveId));
-					
-					// clean up
-					temp.toFile().delete();
-					// add to result list
-					result.add( new ArchiveEntryDataholder(entry) );
-				}
-				catch (CombineArchiveWebException | IOException e) {
-					LOGGER.error(e, MessageFormat.format("Error while uploading/adding file to archive {0} in Workspace {1}", archiveId, user.getWorkingDir() ));
-					String message = e.getMessage();
-					if( message == null || message.isEmpty() )
-						message = MessageFormat.format("Error while uploading/adding file to archive {0} in Workspace {1}", archiveId, user.getWorkingDir());
+							// add the file in the currently selected path
+							ArchiveEntry entry = archive.addArchiveEntry(targetPath + upload.fileName, upload.temp, upload.strategy);
+							added = true;
+							
+							// add default meta information
+							Tools.addOmexMetaData(entry,
+									owner.getData() != null && owner.getData().hasInformation() ? owner.getData().getVCard() : null,
+									true);
+							
+							LOGGER.info(MessageFormat.format("Successfully added file {0} to archive {1}", upload.fileName, archiveId));
+							
+							// add to result list, the size has to be known before the archive is closed
+							ArchiveEntryDataholder dataholder = new ArchiveEntryDataholder(entry);
+							dataholder.loadFileSize();
+							result.add( dataholder );
+						}
+						catch (CombineArchiveWebException | IOException e) {
+							LOGGER.error(e, MessageFormat.format("Error while uploading/adding file to archive {0} in Workspace {1}", archiveId, owner.getWorkingDir() ));
+							String message = e.getMessage();
+							if( message == null || message.isEmpty() )
+								message = MessageFormat.format("Error while uploading/adding file to archive {0} in Workspace {1}", archiveId, owner.getWorkingDir());
+							
+							result.add( new ArchiveEntryUploadException(message, targetPath + upload.fileName) );
+						}
+					}
 					
-					result.add( new ArchiveEntryUploadException(message, path + fileName) );
-					continue;
+					if( added == false )
+						unchanged();
+					return result;
 				}
-				
-			}
+			});
 			
-			synchronized (archive) {
-				// pack and close the archive
-				archive.packAndClose();
-				archive = null;
-			}
+			if( result == null )
+				return buildErrorResponse(507, user, "The max amount of files in one archive is reached.");
 			
 			// trigger quota update
-			QuotaManager.getInstance().updateWorkspace( user.getWorkspace() );
+			reservation.commit();
 			
 			// return all successfully uploaded files
 			return buildResponse(200, user).entity(result).build();
 			
-		} catch (CombineArchiveWebException | IOException | TransformerException e) {
+		} catch (CombineArchiveWebException | IOException e) {
 			LOGGER.error(e, MessageFormat.format("Error while uploading/adding file to archive {0} in Workspace {1}", archiveId, user.getWorkingDir() ));
 			return buildErrorResponse(500, user, "Error while uploading file: " + e.getMessage() );
 		} finally {
-			try {
-				if( archive != null )
-					archive.close();
-			}
-			catch (IOException e) {
-				LOGGER.error(e, "Final closing of archive caused exception");
+			if( reservation != null )
+				reservation.release();
+			// the files are copied into the archive
+			for( Upload upload : uploads ) {
+				if( upload.temp != null )
+					upload.temp.toFile().delete();
 			}
 		}
 		
@@ -1148,46 +1168,102 @@ public class RestApi extends RestHelper {
 			return buildErrorResponse(500, null, "user not creatable!", e.getMessage() );
 		}
 		
-		// getting the archive
+		// check if archive exists
 		try {
-			Archive archive = user.getArchive(archiveId);
-			CombineArchive combineArchive = archive.getArchive();
-			ArchiveEntryDataholder entry = archive.getEntryById(entryId);
-			
-			if( entry == null ) {
-				return buildErrorResponse(404, user, "Cannot find archive entry"); 
-			}
-			
-			// removes the entry and pack/closes the archive
-			try {
-				boolean result = combineArchive.removeEntry( entry.getArchiveEntry() );
-				combineArchive.pack();
-				
-				// trigger quota update
-				QuotaManager.getInstance().updateWorkspace( user.getWorkspace() );
-				
-				if( result )
-					return buildResponse(200, user).entity("ok").build();
-				else {
-					LOGGER.error("Cannot move meta description for entry ", entryId, " in Archive ", archiveId, " in Workspace ", user.getWorkspaceId());
-					return buildErrorResponse(500, user, "Cannot remove meta description");
-				}
-			} catch (TransformerException e) {
-				LOGGER.error(e, MessageFormat.format("Cannot pack archive {0} entries in WorkingDir {1}", archiveId, user.getWorkingDir()) );
-				return buildErrorResponse( 500, user, "Cannot delete meta info", "Cannot pack archive " + archiveId + " entries in WorkingDir " + user.getWorkingDir().toString(), e.getMessage() );
-			} finally {
-				archive.close();
+			user.getArchiveFile(archiveId);
+		} catch (FileNotFoundException e) {
+			LOGGER.warn(e, "Cannot find archive to delete an entry");
+			return buildErrorResponse(404, user, "Cannot find archive", e.getMessage());
+		}
+		
+		BatchOperation operation = new BatchOperation();
+		operation.setAction(BatchOperation.ACTION_DELETE);
+		operation.setEntryId(entryId);
+		
+		try {
+			// removes the entry, the archive is packed together with concurrent changes
+			BatchResult result = applyOperation(user, archiveId, operation);
+			if( result.getStatus() != 200 ) {
+				LOGGER.warn("Cannot remove entry ", entryId, " in Archive ", archiveId, " in Workspace ", user.getWorkspaceId(), ": ", result.getMessage());
+				return buildErrorResponse(result.getStatus(), user, "Cannot remove entry", result.getMessage());
 			}
 			
-		} catch (FileNotFoundException | CombineArchiveWebException e) {
-			LOGGER.warn(e, "Cannot find archive to delete an entry");
+			return buildResponse(200, user).entity("ok").build();
+		} catch (CombineArchiveWebException e) {
+			LOGGER.warn(e, "Cannot delete archive entry");
+			return buildErrorResponse(500, user, "Cannot delete archive entry", e.getMessage());
+		}
+	}
+	
+	@POST
+	@Path( "/archives/{archive_id}/batch" )
+	@Produces( MediaType.APPLICATION_JSON )
+	@Consumes( MediaType.APPLICATION_JSON )
+	public Response applyBatch( @PathParam("archive_id") String archiveId, @CookieParam(Fields.COOKIE_PATH) String userPath, List<BatchOperation> operations ) {
+		// user stuff
+		UserManager user = null;
+		try {
+			user = new UserManager( userPath );
+		} catch (IOException e) {
+			LOGGER.error(e, "Cannot create user");
+			return buildErrorResponse(500, null, "user not creatable!", e.getMessage() );
+		}
+		
+		if( operations == null || operations.isEmpty() )
+			return buildErrorResponse(400, user, "No operations given");
+		
+		// check if archive exists
+		try {
+			user.getArchiveFile(archiveId);
+		} catch (FileNotFoundException e) {
+			LOGGER.warn(e, "Cannot find archive to apply a batch");
 			return buildErrorResponse(404, user, "Cannot find archive", e.getMessage());
+		}
+		
+		// all operations are applied under one lock and packed once
+		try {
+			List<BatchResult> results = user.applyBatch(archiveId, operations);
+			return buildResponse(200, user).entity(results).build();
+		} catch (CombineArchiveWebException e) {
+			LOGGER.error(e, MessageFormat.format("Cannot apply batch to archive {0} in WorkingDir {1}", archiveId, user.getWorkingDir()) );
+			return buildErrorResponse( 500, user, MessageFormat.format("Cannot apply batch to archive {0} in WorkingDir {1}", archiveId, user.getWorkingDir()), e.getMessage() );
+		}
+	}
+	
+	@POST
+	@Path( "/archives/{archive_id}/checkpoint" )
+	@Produces( MediaType.TEXT_PLAIN )
+	public Response checkpointArchive( @PathParam("archive_id") String archiveId, @CookieParam(Fields.COOKIE_PATH) String userPath ) {
+		// user stuff
+		UserManager user = null;
+		try {
+			user = new UserManager( userPath );
 		} catch (IOException e) {
-			LOGGER.warn(e, "Cannot delete archive entry");
-			return buildErrorResponse(404, user, "Cannot delete archive entry", e.getMessage());
+			LOGGER.error(e, "Cannot create user");
+			return buildErrorResponse(500, null, "user not creatable!", e.getMessage() );
+		}
+		
+		// packs the working copy, so the archive file contains all changes
+		try {
+			user.checkpointArchive(archiveId);
+			return buildResponse(200, user).entity("ok").build();
+		} catch (FileNotFoundException e) {
+			LOGGER.warn(e, "Cannot find archive to checkpoint");
+			return buildErrorResponse(404, user, "Cannot find archive", e.getMessage());
+		} catch (CombineArchiveWebException e) {
+			LOGGER.error(e, MessageFormat.format("Cannot checkpoint archive {0} in WorkingDir {1}", archiveId, user.getWorkingDir()) );
+			return buildErrorResponse( 500, user, MessageFormat.format("Cannot checkpoint archive {0} in WorkingDir {1}", archiveId, user.getWorkingDir()), e.getMessage() );
 		}
 	}
 	
+	/**
+	 * Applies a single operation as batch, so it is packed together with concurrent changes or
+	 * journaled, if the archive is kept as working copy.
+	 */
+	private BatchResult applyOperation( UserManager user, String archiveId, BatchOperation operation ) throws CombineArchiveWebException {
+		return user.applyBatch( archiveId, Collections.singletonList(operation) ).get(0);
+	}
+	
 	// --------------------------------------------------------------------------------
 	// Meta Object Endpoints
 	
@@ -1205,13 +1281,12 @@ public class RestApi extends RestHelper {
 		}
 		
 		try {
-			Archive archive = user.getArchive(archiveId);
-			archive.close();
-			ArchiveEntryDataholder entry = archive.getEntryById(entryId);
+			ArchiveSummary summary = user.getArchiveSummary(archiveId);
+			JsonNode entry = summary.getEntryById(entryId);
 			
 			// check if entry exists
 			if( entry != null )
-				return buildResponse(200, user).entity( entry.getMeta() ).build();
+				return buildResponse(200, user).entity( entry.path("meta") ).build();
 			else
 				return buildErrorResponse(404, user, "No such entry found");
 			
@@ -1235,16 +1310,15 @@ public class RestApi extends RestHelper {
 		}
 				
 		try {
-			Archive archive = user.getArchive(archiveId);
-			archive.close();
-			ArchiveEntryDataholder entry = archive.getEntryById(entryId);
+			ArchiveSummary summary = user.getArchiveSummary(archiveId);
+			JsonNode entry = summary.getEntryById(entryId);
 			
 			// check if entry exists
 			if( entry == null )
 				return buildErrorResponse(404, user, "No such entry found");
 			
 			// iterate over all meta entries
-			MetaObjectDataholder metaObject = entry.getMetaById(metaId);
+			JsonNode metaObject = summary.getMetaById(entryId, metaId);
 			
 			// check if meta entry exists
 			if( metaObject != null )
@@ -1272,49 +1346,28 @@ public class RestApi extends RestHelper {
 			return buildErrorResponse(500, null, "user not creatable!", e.getMessage() );
 		}
 		
+		BatchOperation operation = new BatchOperation();
+		operation.setAction(BatchOperation.ACTION_UPDATE_META);
+		operation.setEntryId(entryId);
+		operation.setMetaId(metaId);
+		operation.setMeta(metaObject);
+		
 		try {
-			Archive archive = user.getArchive(archiveId);
-			ArchiveEntryDataholder entry = archive.getEntryById(entryId);
-			
-			// check if entry exists
-			if( entry == null ) {
-				archive.close();
-				return buildErrorResponse(404, user, "No such entry found");
-			}
-			
-			// get meta
-			MetaObjectDataholder oldMetaObject = entry.getMetaById(metaId);
-			metaId = metaObject.getId();
-			
-			// check if meta entry exists
-			if( oldMetaObject == null ) {
-				archive.close();
-				return buildErrorResponse(404, user, "No such meta entry found");
-			}
-			
-			// update and pack the archive
-			try {
-				// update the entry
-				oldMetaObject.update( metaObject );
-				archive.getArchive().pack();
-				// force to re-generate the id, after the pack
-				oldMetaObject.generateId();
-			} catch( CombineArchiveWebException e ) {
+			// the archive is packed together with concurrent changes
+			BatchResult result = applyOperation(user, archiveId, operation);
+			if( result.getStatus() == 400 ) {
 				// Something went wrong while the update process
-				LOGGER.error(e, "Not able to update the meta element.");
-				return buildErrorResponse(400, user, "Not able to update the meta element.", e.getMessage());
-			} catch( IOException | TransformerException e ) {
-				LOGGER.error(e, MessageFormat.format("Cannot pack archive {0} entries in WorkingDir {1}", archiveId, user.getWorkingDir()) );
-				return buildErrorResponse( 500, user, "Cannot pack archive " + archiveId + " entries in WorkingDir " + user.getWorkingDir().toString(), e.getMessage() );
-			} finally {
-				archive.close();
+				LOGGER.error("Not able to update the meta element: ", result.getMessage());
+				return buildErrorResponse(400, user, "Not able to update the meta element.", result.getMessage());
 			}
+			else if( result.getStatus() != 200 )
+				return buildErrorResponse(result.getStatus(), user, result.getMessage());
 			
-			return buildResponse(200, user).entity( oldMetaObject ).build();
+			return buildResponse(200, user).entity( result.getEntity() ).build();
 				
-		} catch (CombineArchiveWebException | IOException e) {
-			LOGGER.error(e, MessageFormat.format("Cannot read archive {0} entries in WorkingDir {1}", archiveId, user.getWorkingDir()) );
-			return buildErrorResponse( 500, user, "Cannot read archive " + archiveId + " entries in WorkingDir " + user.getWorkingDir().toString(), e.getMessage() );
+		} catch (CombineArchiveWebException e) {
+			LOGGER.error(e, MessageFormat.format("Cannot update meta object in archive {0} in WorkingDir {1}", archiveId, user.getWorkingDir()) );
+			return buildErrorResponse( 500, user, "Cannot update meta object in archive " + archiveId + " in WorkingDir " + user.getWorkingDir().toString(), e.getMessage() );
 		}
 	}
 	
@@ -1331,35 +1384,23 @@ public class RestApi extends RestHelper {
 			LOGGER.error(e, "Cannot create user");
 			return buildErrorResponse(500, null, "user not creatable!", e.getMessage() );
 		}
-				
+		
+		BatchOperation operation = new BatchOperation();
+		operation.setAction(BatchOperation.ACTION_CREATE_META);
+		operation.setEntryId(entryId);
+		operation.setMeta(metaObject);
+		
 		try {
-			Archive archive = user.getArchive(archiveId);
-			ArchiveEntryDataholder entry = archive.getEntryById(entryId);
-			
-			// check if entry exists
-			if( entry == null ) {
-				archive.close();
-				return buildErrorResponse(404, user, "No such entry found");
-			}
-			
-			// add the description to the entry and pack the archive
-			try {
-				entry.addMetaEntry( metaObject );
-				archive.getArchive().pack();
-				// force to re-generate the id, after the pack
-				metaObject.generateId();
-			} catch( IOException | TransformerException e ) {
-				LOGGER.error(e, MessageFormat.format("Cannot pack archive {0} entries in WorkingDir {1}", archiveId, user.getWorkingDir()) );
-				return buildErrorResponse( 500, user, "Cannot create meta info", "Cannot pack archive " + archiveId + " entries in WorkingDir " + user.getWorkingDir().toString(), e.getMessage() );
-			} finally {
-				archive.close();
-			}
+			// adds the description to the entry, the archive is packed together with concurrent changes
+			BatchResult result = applyOperation(user, archiveId, operation);
+			if( result.getStatus() != 200 )
+				return buildErrorResponse(result.getStatus(), user, result.getMessage());
 			
-			return buildResponse(200, user).entity( metaObject ).build();
+			return buildResponse(200, user).entity( result.getEntity() ).build();
 				
-		} catch (CombineArchiveWebException | IOException e) {
-			LOGGER.error(e, MessageFormat.format("Cannot read archive {0} entries in WorkingDir {1}", archiveId, user.getWorkingDir()) );
-			return buildErrorResponse( 500, user, "Cannot read archive ", archiveId + " entries in WorkingDir " + user.getWorkingDir().toString(), e.getMessage() );
+		} catch (CombineArchiveWebException e) {
+			LOGGER.error(e, MessageFormat.format("Cannot create meta object in archive {0} in WorkingDir {1}", archiveId, user.getWorkingDir()) );
+			return buildErrorResponse( 500, user, "Cannot create meta info", "Cannot create meta object in archive " + archiveId + " in WorkingDir " + user.getWorkingDir().toString(), e.getMessage() );
 		}
 	}
 	
@@ -1376,50 +1417,35 @@ public class RestApi extends RestHelper {
 			return buildErrorResponse(500, null, "user not creatable!", e.getMessage() );
 		}
 		
+		BatchOperation operation = new BatchOperation();
+		operation.setAction(BatchOperation.ACTION_DELETE_META);
+		operation.setEntryId(entryId);
+		operation.setMetaId(metaId);
+		
 		try {
-			Archive archive = user.getArchive(archiveId);
-			CombineArchive combineArchive = archive.getArchive();
-			ArchiveEntryDataholder entry = archive.getEntryById(entryId);
-			
-			// check if entry exists
-			if( entry == null ) {
-				archive.close();
-				return buildErrorResponse(404, user, "No such entry found");
-			}
-			
-			// iterate over all meta entries
-			MetaObjectDataholder metaObject = entry.getMetaById(metaId);
-			
-			// check if meta entry exists
-			if( metaObject == null ) {
-				archive.close();
-				return buildErrorResponse(404, user, "No such meta entry found");
+			// removes the meta entry, the archive is packed together with concurrent changes
+			BatchResult result = applyOperation(user, archiveId, operation);
+			if( result.getStatus() != 200 ) {
+				LOGGER.warn("Cannot remove meta description ", metaId, " for entry ", entryId, " in Archive ", archiveId, " in Workspace ", user.getWorkspaceId(), ": ", result.getMessage());
+				return buildErrorResponse(result.getStatus(), user, "Cannot remove meta description", result.getMessage());
 			}
 			
-			// removes the meta entry and pack/closes the archive
-			try {
-				boolean result = false;
-				result = entry.getMetaDataHolder().removeDescription( metaObject.getMetaObject() );
-					
-				combineArchive.pack();
-				
-				if( result )
-					return buildResponse(200, user).entity("ok").build();
-				else {
-					LOGGER.error("Cannot remove meta description for entry ", entryId, " in Archive ", archiveId, " in Workspace ", user.getWorkspaceId());
-					return buildErrorResponse(500, user, "Cannot remove meta description");
-				}
-			} catch (TransformerException e) {
-				LOGGER.error(e, MessageFormat.format("Cannot pack archive {0} entries in WorkingDir {1}", archiveId, user.getWorkingDir()) );
-				return buildErrorResponse( 500, user, "Cannot delete meta info", "Cannot pack archive " + archiveId + " entries in WorkingDir " + user.getWorkingDir().toString(), e.getMessage() );
-			} finally {
-				archive.close();
-			}
+			return buildResponse(200, user).entity("ok").build();
 			
-		} catch (CombineArchiveWebException | IOException e) {
-			LOGGER.error(e, MessageFormat.format("Cannot read archive {0} entries in WorkingDir {1}", archiveId, user.getWorkingDir()) );
-			return buildErrorResponse( 500, user, "Cannot read archive " + archiveId + " entries in WorkingDir " + user.getWorkingDir().toString(), e.getMessage() );
+		} catch (CombineArchiveWebException e) {
+			LOGGER.error(e, MessageFormat.format("Cannot delete meta object in archive {0} in WorkingDir {1}", archiveId, user.getWorkingDir()) );
+			return buildErrorResponse( 500, user, "Cannot delete meta info", "Cannot delete meta object in archive " + archiveId + " in WorkingDir " + user.getWorkingDir().toString(), e.getMessage() );
 		}
 	}
 	
+	/**
+	 * An uploaded file, waiting to be added to an archive.
+	 */
+	private static class Upload {
+		private String fileName = null;
+		private java.nio.file.Path temp = null;
+		private ReplaceStrategy strategy = ReplaceStrategy.RENAME;
+		private ArchiveEntryUploadException error = null;
+	}
+	
 }
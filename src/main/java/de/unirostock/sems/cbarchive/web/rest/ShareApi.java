@@ -62,6 +62,7 @@ import de.unirostock.sems.cbarchive.CombineArchiveException;
 import de.unirostock.sems.cbarchive.meta.omex.VCard;
 import de.unirostock.sems.cbarchive.web.Fields;
 import de.unirostock.sems.cbarchive.web.QuotaManager;
+import de.unirostock.sems.cbarchive.web.QuotaReservation;
 import de.unirostock.sems.cbarchive.web.Tools;
 import de.unirostock.sems.cbarchive.web.UserManager;
 import de.unirostock.sems.cbarchive.web.WorkspaceManager;
@@ -76,6 +77,7 @@ import de.unirostock.sems.cbarchive.web.dataholder.Workspace;
 import de.unirostock.sems.cbarchive.web.dataholder.WorkspaceHistory;
 import de.unirostock.sems.cbarchive.web.exception.CombineArchiveWebException;
 import de.unirostock.sems.cbarchive.web.exception.ImporterException;
+import de.unirostock.sems.cbarchive.web.exception.QuotaException;
 import de.unirostock.sems.cbarchive.web.importer.Importer;
 import de.unirostock.sems.cbarchive.web.provider.ObjectMapperProvider;
 
@@ -278,9 +280,15 @@ public class ShareApi extends RestHelper {
 			if( archiveName == null || archiveName.isEmpty() )
 				archiveName = importer.getSuggestedName();
 
+			// max workspace and total size, reserved until the archive is accounted
+			QuotaReservation reservation = importer.reserveQuota( importer.getTempFile().length() );
+
 			// add archive to workspace
 			archiveId = user.createArchive( archiveName, importer.getTempFile() );
+			reservation.commit();
 
+		} catch (QuotaException e) {
+			return buildTextErrorResponse(507, user, e.getUserMessage(), "URL: " + remoteUrl);
 		} catch (ImporterException e) {
 			LOGGER.warn(e, "Cannot import remote archive!");
 			return buildTextErrorResponse(400, user, e.getMessage(), "URL: " + remoteUrl);
@@ -334,7 +342,7 @@ public class ShareApi extends RestHelper {
 			return buildTextErrorResponse(400, user, e.getMessage(), e.getCause().getMessage());
 		}
 
-		try ( Archive archive = user.getArchive(archiveId) ) {
+		try ( Archive archive = user.getArchive(archiveId); QuotaReservation reservation = QuotaManager.getInstance().reserve(user.getWorkspace(), archiveId, 0) ) {
 			// set own VCard
 			if( request.isOwnVCard() )
 				setOwnVCard(user, request, archive);
@@ -342,7 +350,7 @@ public class ShareApi extends RestHelper {
 			try {
 				// import additional files
 				if( request.getAdditionalFiles() != null && request.getAdditionalFiles().size() > 0 ) {
-					addAdditionalFiles(user, request, archive, null);
+					addAdditionalFiles(user, request, archive, null, reservation);
 				}
 			}
 			catch (ImporterException e) {
@@ -351,7 +359,8 @@ public class ShareApi extends RestHelper {
 				return buildTextErrorResponse(507, user, e.getMessage(), e.getCause() != null ? e.getCause().getMessage() : null );
 			}
 
-			archive.getArchive().pack();
+			archive.pack();
+			reservation.commit();
 
 		} catch (IOException | CombineArchiveWebException e) {
 			LOGGER.error(e, "Cannot open/pack newly created archive");
@@ -421,7 +430,7 @@ public class ShareApi extends RestHelper {
 			return buildTextErrorResponse(400, user, e.getMessage(), e.getCause().getMessage());
 		}
 
-		try ( Archive archive = user.getArchive(archiveId) ) {
+		try ( Archive archive = user.getArchive(archiveId); QuotaReservation reservation = QuotaManager.getInstance().reserve(user.getWorkspace(), archiveId, 0) ) {
 			// set own VCard
 			if( request.isOwnVCard() )
 				setOwnVCard(user, request, archive);
@@ -429,7 +438,7 @@ public class ShareApi extends RestHelper {
 			try {
 				// import additional files
 				if( request.getAdditionalFiles() != null && request.getAdditionalFiles().size() > 0 ) {
-					addAdditionalFiles(user, request, archive, additionalFiles);
+					addAdditionalFiles(user, request, archive, additionalFiles, reservation);
 				}
 			}
 			catch (ImporterException e) {
@@ -438,7 +447,8 @@ public class ShareApi extends RestHelper {
 				return buildTextErrorResponse(507, user, e.getMessage(), e.getCause() != null ? e.getCause().getMessage() : null );
 			}
 
-			archive.getArchive().pack();
+			archive.pack();
+			reservation.commit();
 
 		} catch (IOException | CombineArchiveWebException e) {
 			LOGGER.error(e, "Cannot open/pack newly created archive");
@@ -465,6 +475,7 @@ public class ShareApi extends RestHelper {
 		if( archiveFile != null ) {
 			// import via post data
 			java.nio.file.Path temp = null;
+			QuotaReservation reservation = null;
 			try {
 				// write uploaded file to temp
 				// copy the stream to a temp file
@@ -484,15 +495,12 @@ public class ShareApi extends RestHelper {
 					LOGGER.warn("QUOTA_UPLOAD_SIZE reached in workspace ", user.getWorkspaceId());
 					throw new ImporterException("The new archive is to big.");
 				}
-				// max workspace size
-				if( user != null && Fields.QUOTA_WORKSPACE_SIZE != Fields.QUOTA_UNLIMITED && Tools.checkQuota(QuotaManager.getInstance().getWorkspaceSize(user.getWorkspace()) + uploadedFileSize, Fields.QUOTA_WORKSPACE_SIZE) == false ) {
-					LOGGER.warn("QUOTA_WORKSPACE_SIZE reached in workspace ", user.getWorkspaceId());
-					throw new ImporterException("The maximum size of the workspace is reached, while importing new archive.");
+				// max workspace and total size, reserved until the archive is accounted
+				try {
+					reservation = QuotaManager.getInstance().reserve( user.getWorkspace(), null, uploadedFileSize );
 				}
-				// max total size
-				if( user != null && Fields.QUOTA_TOTAL_SIZE != Fields.QUOTA_UNLIMITED && Tools.checkQuota(QuotaManager.getInstance().getTotalSize() + uploadedFileSize, Fields.QUOTA_TOTAL_SIZE) == false ) {
-					LOGGER.warn("QUOTA_TOTAL_SIZE reached in workspace ", user.getWorkspaceId());
-					throw new ImporterException("The maximum size is reached, while importing new archive.");
+				catch (QuotaException e) {
+					throw new ImporterException(e.getUserMessage() + " While importing new archive.", e);
 				}
 				
 				// set default name, if necessary
@@ -500,11 +508,14 @@ public class ShareApi extends RestHelper {
 					request.setArchiveName( Fields.NEW_ARCHIVE_NAME );
 				
 				archiveId = user.createArchive( request.getArchiveName(), temp.toFile());
+				reservation.commit();
 			} catch (IOException e) {
 				
 			} catch (JDOMException | ParseException | CombineArchiveException | TransformerException e) {
 				
 			} finally {
+				if( reservation != null )
+					reservation.release();
 				if( temp != null && temp.toFile().exists() )
 					temp.toFile().delete();
 			}
@@ -520,9 +531,15 @@ public class ShareApi extends RestHelper {
 				if( request.getArchiveName() == null || request.getArchiveName().isEmpty() )
 					request.setArchiveName( importer.getSuggestedName() );
 
+				// max workspace and total size, reserved until the archive is accounted
+				QuotaReservation reservation = importer.reserveQuota( importer.getTempFile().length() );
+
 				// add archive to workspace
 				archiveId = user.createArchive( request.getArchiveName(), importer.getTempFile() );
+				reservation.commit();
 
+			} catch (QuotaException e) {
+				throw new ImporterException(e.getUserMessage(), e);
 			} catch (ImporterException e) {
 				LOGGER.warn(e, "Cannot import remote archive!");
 				throw new ImporterException("Cannot import remote archive", e);
@@ -604,7 +621,7 @@ public class ShareApi extends RestHelper {
 		}
 	}
 
-	private void addAdditionalFiles( UserManager user, ImportRequest request, Archive archive, List<FormDataBodyPart> uploadedFiles ) throws ImporterException {
+	private void addAdditionalFiles( UserManager user, ImportRequest request, Archive archive, List<FormDataBodyPart> uploadedFiles, QuotaReservation reservation ) throws ImporterException {
 
 		for( ImportRequest.AdditionalFile addFile : request.getAdditionalFiles() ) {
 			java.nio.file.Path temp = null;
@@ -653,20 +670,12 @@ public class ShareApi extends RestHelper {
 					LOGGER.warn("QUOTA_UPLOAD_SIZE reached in workspace ", user.getWorkspaceId());
 					throw new ImporterException("The additional file is to big: " + addFile.getRemoteUrl());
 				}
-				// max archive size
-				if( user != null && Fields.QUOTA_ARCHIVE_SIZE != Fields.QUOTA_UNLIMITED && Tools.checkQuota(user.getWorkspace().getArchiveSize(archive.getId()) + downloadedFileSize, Fields.QUOTA_ARCHIVE_SIZE) == false ) {
-					LOGGER.warn("QUOTA_ARCHIVE_SIZE reached in workspace ", user.getWorkspaceId(), " while trying to adv import archive");
-					throw new ImporterException("The maximum size of the archive is reached, while adding " + addFile.getRemoteUrl());
-				}
-				// max workspace size
-				if( user != null && Fields.QUOTA_WORKSPACE_SIZE != Fields.QUOTA_UNLIMITED && Tools.checkQuota(QuotaManager.getInstance().getWorkspaceSize(user.getWorkspace()) + downloadedFileSize, Fields.QUOTA_WORKSPACE_SIZE) == false ) {
-					LOGGER.warn("QUOTA_WORKSPACE_SIZE reached in workspace ", user.getWorkspaceId());
-					throw new ImporterException("The maximum size of the workspace is reached, while adding " + addFile.getRemoteUrl());
+				// max archive, workspace and total size, reserved until the archive is packed
+				try {
+					reservation.grow(downloadedFileSize);
 				}
-				// max total size
-				if( user != null && Fields.QUOTA_TOTAL_SIZE != Fields.QUOTA_UNLIMITED && Tools.checkQuota(QuotaManager.getInstance().getTotalSize() + downloadedFileSize, Fields.QUOTA_TOTAL_SIZE) == false ) {
-					LOGGER.warn("QUOTA_TOTAL_SIZE reached in workspace ", user.getWorkspaceId());
-					throw new ImporterException("The maximum size is reached, while adding " + addFile.getRemoteUrl());
+				catch (QuotaException e) {
+					throw new ImporterException(e.getUserMessage() + " While adding " + addFile.getRemoteUrl(), e);
 				}
 
 				String path = addFile.getArchivePath();
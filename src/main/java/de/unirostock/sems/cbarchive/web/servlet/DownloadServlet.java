@@ -133,6 +133,8 @@ public class DownloadServlet extends HttpServlet {
 		try {
 			archiveFile = user.getArchiveFile(archive);
 			archiveName = user.getArchive(archive, false).getName();
+			// the archive file has to contain the changes of the working copy
+			user.checkpointArchive(archive);
 		} catch (FileNotFoundException | CombineArchiveWebException e) {
 			LOGGER.warn(e, MessageFormat.format("FileNotFound Exception, while handling donwload request for Archive {1} in Workspace {0}", user.getWorkingDir(), archive) );
 			response.sendError(HttpServletResponse.SC_NOT_FOUND, e.getMessage() );
@@ -174,7 +176,7 @@ public class DownloadServlet extends HttpServlet {
 		Archive archive = null;
 		CombineArchive combineArchive = null;
 		try {
-			archive = user.getArchive(archiveId, true);
+			archive = user.getReadOnlyArchive(archiveId);
 			combineArchive = archive.getArchive();
 		} catch (FileNotFoundException | CombineArchiveWebException e) {
 			LOGGER.warn(e, MessageFormat.format("Archive FileNotFound Exception, while handling donwload request for File {2} in Archive {1} in Workspace {0}", user.getWorkingDir(), archive, filePath) );
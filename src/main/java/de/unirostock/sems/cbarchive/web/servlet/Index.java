@@ -32,6 +32,9 @@ import javax.servlet.http.HttpServletResponse;
 
 import de.binfalse.bflog.LOGGER;
 import de.unirostock.sems.cbarchive.web.Fields;
+import de.unirostock.sems.cbarchive.web.ArchiveCache;
+import de.unirostock.sems.cbarchive.web.ArchiveScanner;
+import de.unirostock.sems.cbarchive.web.WorkingCopyManager;
 import de.unirostock.sems.cbarchive.web.QuotaManager;
 import de.unirostock.sems.cbarchive.web.Tools;
 import de.unirostock.sems.cbarchive.web.UserManager;
@@ -57,15 +60,22 @@ public class Index extends HttpServlet {
 		
 		// init Singletons
 		WorkspaceManager.getInstance();
-		QuotaManager.getInstance().forceAsyncScan(true);
+		QuotaManager.getInstance().start();
 	}
 	
 	@Override
 	public void destroy() {
 		
 		LOGGER.info("Destroying Index-Servlet.");
+		// stop background scans, before the workspaces go away
+		QuotaManager.getInstance().shutdown();
+		// close all cached archives, after the last deep scan
+		ArchiveScanner.getInstance().shutdown();
+		// pack the working copies, before the cached archives are closed
+		WorkingCopyManager.getInstance().shutdown();
+		ArchiveCache.getInstance().clear();
 		// store settings to disk
-		WorkspaceManager.getInstance().storeSettings();
+		WorkspaceManager.getInstance().close();
 		
 	}
 
@@ -0,0 +1,308 @@
+package de.unirostock.sems.cbarchive.web.store;
+/*
+CombineArchiveWeb - a WebInterface to read/create/write/manipulate/... COMBINE archives
+Copyright (C) 2014  SEMS Group
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.File;
+import java.io.FileFilter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipError;
+
+import de.binfalse.bflog.LOGGER;
+import de.unirostock.sems.cbarchive.CombineArchive;
+import de.unirostock.sems.cbarchive.meta.MetaDataObject;
+import de.unirostock.sems.cbarchive.meta.OmexMetaDataObject;
+import de.unirostock.sems.cbarchive.web.Fields;
+import de.unirostock.sems.cbarchive.web.Tools;
+import de.unirostock.sems.cbarchive.web.dataholder.Workspace;
+
+/**
+ * Rebuilds the workspace index from the storage directory, in case the
+ * index got lost or is incomplete.
+ *
+ * Every directory {@code STORAGE/<workspaceId>} is considered a workspace and every
+ * file {@code STORAGE/<workspaceId>/<archiveId>} an archive. The archives are opened
+ * in parallel with a fork/join pool, to verify them and to recover a name from
+ * the OMEX description of the archive.
+ */
+public class IndexRecovery {
+
+	public static final String MODE_OFF = "off";
+	/** only recovers workspace directories, which are missing in the index, if the index got lost */
+	public static final String MODE_AUTO = "auto";
+	/** also recovers archives, which are missing in known workspaces */
+	public static final String MODE_FORCE = "force";
+
+	/** interval in ms to report the progress */
+	private static final long PROGRESS_INTERVAL = 5000;
+	/** maximum length of a recovered archive name */
+	private static final int MAX_NAME_LENGTH = 100;
+
+	private final File storage;
+	private final int parallelism;
+
+	private volatile long workspacesTotal = 0L;
+	private final AtomicLong workspacesScanned = new AtomicLong(0L);
+	private final AtomicLong archivesScanned = new AtomicLong(0L);
+	private final AtomicLong archivesFailed = new AtomicLong(0L);
+
+	public IndexRecovery( File storage, int parallelism ) {
+		this.storage = storage;
+		this.parallelism = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * Scans all workspace directories, which are not in the skip list.
+	 *
+	 * @param skipWorkspaces ids of workspaces, which should not be scanned
+	 * @return the recovered workspaces including their archives
+	 */
+	public List<Workspace> recover( Collection<String> skipWorkspaces ) {
+
+		long startTime = System.currentTimeMillis();
+		List<File> workspaceDirs = new ArrayList<File>();
+
+		File[] dirs = storage.listFiles( new FileFilter() {
+			@Override
+			public boolean accept(File file) {
+				return file.isDirectory() && file.getName().startsWith(".") == false;
+			}
+		});
+		if( dirs == null ) {
+			LOGGER.warn("Cannot list storage directory ", storage, ". Nothing to recover");
+			return Collections.emptyList();
+		}
+
+		for( File dir : dirs ) {
+			if( skipWorkspaces.contains(dir.getName()) == false )
+				workspaceDirs.add(dir);
+		}
+
+		workspacesTotal = workspaceDirs.size();
+		if( workspaceDirs.isEmpty() )
+			return Collections.emptyList();
+
+		LOGGER.warn("Recovering ", workspacesTotal, " workspaces from ", storage, " with parallelism ", parallelism);
+
+		List<Workspace> result = Collections.emptyList();
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			ForkJoinTask<List<Workspace>> task = pool.submit( new StorageTask(workspaceDirs) );
+			while( true ) {
+				try {
+					result = task.get( PROGRESS_INTERVAL, TimeUnit.MILLISECONDS );
+					break;
+				} catch (TimeoutException e) {
+					LOGGER.warn("Recovery in progress: ", getProgress());
+				}
+			}
+		} catch (InterruptedException e) {
+			LOGGER.error(e, "Recovery got interrupted: ", getProgress());
+		} catch (ExecutionException e) {
+			LOGGER.error(e, "Recovery failed: ", getProgress());
+		}
+		finally {
+			pool.shutdown();
+		}
+
+		LOGGER.warn("Recovery finished in ", System.currentTimeMillis() - startTime, "ms: ", getProgress());
+		return result;
+	}
+
+	/**
+	 * Returns a human readable summary of the progress.
+	 *
+	 * @return the progress
+	 */
+	public String getProgress() {
+		return workspacesScanned.get() + "/" + workspacesTotal + " workspaces, "
+				+ archivesScanned.get() + " archives (" + archivesFailed.get() + " unreadable)";
+	}
+
+	public long getWorkspacesTotal() {
+		return workspacesTotal;
+	}
+
+	public long getWorkspacesScanned() {
+		return workspacesScanned.get();
+	}
+
+	public long getArchivesScanned() {
+		return archivesScanned.get();
+	}
+
+	public long getArchivesFailed() {
+		return archivesFailed.get();
+	}
+
+	/**
+	 * Reads a name for the archive from its OMEX description or falls back to the modification date.
+	 *
+	 * @param archiveFile the archive file
+	 * @return the name or null, if the file is not a readable archive
+	 */
+	private static String recoverArchiveName( File archiveFile ) {
+
+		CombineArchive archive = null;
+		try {
+			archive = new CombineArchive(archiveFile);
+
+			for( MetaDataObject meta : archive.getDescriptions() ) {
+				if( meta instanceof OmexMetaDataObject == false )
+					continue;
+
+				String description = ((OmexMetaDataObject) meta).getOmexDescription().getDescription();
+				if( description == null || description.trim().isEmpty() )
+					continue;
+
+				// first line of the description
+				String name = description.trim().split("\\r?\\n", 2)[0].trim();
+				return name.length() > MAX_NAME_LENGTH ? name.substring(0, MAX_NAME_LENGTH) : name;
+			}
+
+			// the shared formatter is not thread-safe
+			synchronized (Tools.DATE_FORMATTER) {
+				return "Recovered Archive " + Tools.DATE_FORMATTER.format( new Date(archiveFile.lastModified()) );
+			}
+		} catch (Exception e) {
+			LOGGER.warn(e, "Cannot read archive ", archiveFile, " while recovering");
+			return null;
+		} catch (ZipError e) {
+			// thrown by the zip file system for corrupt archives
+			LOGGER.warn(e, "Cannot read archive ", archiveFile, " while recovering");
+			return null;
+		}
+		finally {
+			if( archive != null ) {
+				try {
+					archive.close();
+				} catch (Exception e) {
+					LOGGER.warn(e, "Cannot close archive ", archiveFile);
+				}
+			}
+		}
+	}
+
+	// --------------------------------------------------------------------------------
+
+	private class StorageTask extends RecursiveTask<List<Workspace>> {
+
+		private static final long serialVersionUID = 4523469173510357329L;
+
+		private final List<File> workspaceDirs;
+
+		public StorageTask( List<File> workspaceDirs ) {
+			this.workspaceDirs = workspaceDirs;
+		}
+
+		@Override
+		protected List<Workspace> compute() {
+
+			List<WorkspaceTask> tasks = new ArrayList<WorkspaceTask>( workspaceDirs.size() );
+			for( File dir : workspaceDirs )
+				tasks.add( new WorkspaceTask(dir) );
+			invokeAll(tasks);
+
+			List<Workspace> workspaces = new ArrayList<Workspace>( tasks.size() );
+			for( WorkspaceTask task : tasks )
+				workspaces.add( task.join() );
+
+			return workspaces;
+		}
+
+	}
+
+	private class WorkspaceTask extends RecursiveTask<Workspace> {
+
+		private static final long serialVersionUID = -2340947582315672839L;
+
+		private final File workspaceDir;
+
+		public WorkspaceTask( File workspaceDir ) {
+			this.workspaceDir = workspaceDir;
+		}
+
+		@Override
+		protected Workspace compute() {
+
+			// archive ids cannot contain the separator of the index keys, this also skips hidden files
+			File[] files = workspaceDir.listFiles( new FileFilter() {
+				@Override
+				public boolean accept(File file) {
+					return file.isFile() && file.getName().contains(Fields.PROP_SEPARATOR) == false;
+				}
+			});
+
+			List<ArchiveTask> tasks = new ArrayList<ArchiveTask>();
+			if( files != null ) {
+				for( File file : files )
+					tasks.add( new ArchiveTask(file) );
+				invokeAll(tasks);
+			}
+
+			Workspace workspace = new Workspace( workspaceDir.getName(), "Recovered Workspace" );
+			workspace.setWorkspaceDir(workspaceDir);
+			// the directory date does not tell, when the workspace was used, so it must not expire right away
+			workspace.updateLastseen();
+
+			for( ArchiveTask task : tasks ) {
+				String name = task.join();
+				if( name != null )
+					workspace.getArchives().put( task.archiveFile.getName(), name );
+			}
+
+			workspacesScanned.incrementAndGet();
+			return workspace;
+		}
+
+	}
+
+	private class ArchiveTask extends RecursiveTask<String> {
+
+		private static final long serialVersionUID = 7405216331926549723L;
+
+		private final File archiveFile;
+
+		public ArchiveTask( File archiveFile ) {
+			this.archiveFile = archiveFile;
+		}
+
+		@Override
+		protected String compute() {
+
+			String name = recoverArchiveName(archiveFile);
+			archivesScanned.incrementAndGet();
+			if( name == null )
+				archivesFailed.incrementAndGet();
+
+			return name;
+		}
+
+	}
+
+}
@@ -0,0 +1,236 @@
+package de.unirostock.sems.cbarchive.web.store;
+/*
+CombineArchiveWeb - a WebInterface to read/create/write/manipulate/... COMBINE archives
+Copyright (C) 2014  SEMS Group
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.h2.mvstore.MVMap;
+import org.h2.mvstore.MVStore;
+
+import de.binfalse.bflog.LOGGER;
+import de.unirostock.sems.cbarchive.web.Fields;
+import de.unirostock.sems.cbarchive.web.dataholder.Workspace;
+
+/**
+ * Stores the workspace index in an embedded MVStore key-value database,
+ * every change is a single point update followed by a commit.
+ *
+ * Archive keys are prefixed with the workspace id, so a workspace can be materialized
+ * with one range scan. If the database is empty on startup, the workspaces are
+ * imported from the central settings file.
+ */
+public class MVStoreWorkspaceStore implements WorkspaceStore {
+
+	private static final String MAP_NAMES = "workspace-names";
+	private static final String MAP_LASTSEEN = "workspace-lastseen";
+	private static final String MAP_ARCHIVES = "archives";
+
+	private final File storeFile;
+
+	private MVStore store = null;
+	/** workspace id -> workspace name */
+	private MVMap<String, String> names = null;
+	/** workspace id -> last-seen timestamp in ms */
+	private MVMap<String, Long> lastseen = null;
+	/** workspace id + separator + archive id -> archive name */
+	private MVMap<String, String> archives = null;
+
+	public MVStoreWorkspaceStore( File storeFile ) {
+		this.storeFile = storeFile;
+	}
+
+	@Override
+	public synchronized Map<String, Long> loadIndex() throws IOException {
+
+		if( store == null )
+			open();
+
+		if( names.isEmpty() && Fields.SETTINGS_FILE.exists() ) {
+			// first start with this backend, take over the existing workspaces
+			LOGGER.warn("Workspace store ", storeFile, " is empty. Importing workspaces from ", Fields.SETTINGS_FILE);
+			PropertiesWorkspaceStore properties = new PropertiesWorkspaceStore( Fields.SETTINGS_FILE, Fields.JOURNAL_FILE );
+			try {
+				List<Workspace> workspaces = new ArrayList<Workspace>();
+				for( String workspaceId : properties.loadIndex().keySet() ) {
+					Workspace workspace = properties.loadWorkspace(workspaceId);
+					if( workspace != null )
+						workspaces.add(workspace);
+				}
+				store(workspaces);
+			}
+			finally {
+				properties.close();
+			}
+		}
+
+		Map<String, Long> index = new HashMap<String, Long>();
+		long now = new Date().getTime();
+		for( String workspaceId : names.keySet() ) {
+			Long timestamp = lastseen.get(workspaceId);
+			if( timestamp == null ) {
+				// a missing date must not let the workspace expire right away
+				LOGGER.warn("No last-seen date for workspace ", workspaceId, ", counting from now on");
+				timestamp = now;
+			}
+			index.put( workspaceId, timestamp );
+		}
+
+		LOGGER.info("Loaded ", index.size(), " workspace ids from ", storeFile);
+		return index;
+	}
+
+	@Override
+	public synchronized Workspace loadWorkspace( String workspaceId ) throws IOException {
+
+		String name = names.get(workspaceId);
+		if( name == null )
+			return null;
+
+		Workspace workspace = new Workspace( workspaceId, name );
+		Long timestamp = lastseen.get(workspaceId);
+		if( timestamp != null )
+			workspace.setLastseen( new Date(timestamp) );
+		else
+			// like in the index, a missing date counts from now on
+			workspace.updateLastseen();
+
+		// archive keys are sorted, so all archives of a workspace are in one range
+		String prefix = workspaceId + Fields.PROP_SEPARATOR;
+		Iterator<String> iterator = archives.keyIterator(prefix);
+		while( iterator.hasNext() ) {
+			String key = iterator.next();
+			if( key.startsWith(prefix) == false )
+				break;
+
+			workspace.getArchives().put( key.substring(prefix.length()), archives.get(key) );
+		}
+
+		return workspace;
+	}
+
+	@Override
+	public synchronized void putWorkspace( Workspace workspace ) throws IOException {
+
+		names.put( workspace.getWorkspaceId(), workspace.getName() );
+		if( workspace.getLastseen() != null )
+			lastseen.put( workspace.getWorkspaceId(), workspace.getLastseen().getTime() );
+		commit();
+	}
+
+	@Override
+	public synchronized void removeWorkspace( Workspace workspace ) throws IOException {
+
+		String workspaceId = workspace.getWorkspaceId();
+		names.remove( workspaceId );
+		lastseen.remove( workspaceId );
+		for( String archiveId : workspace.getArchives().keySet() )
+			archives.remove( workspaceId + Fields.PROP_SEPARATOR + archiveId );
+		commit();
+	}
+
+	@Override
+	public synchronized void putArchive( String workspaceId, String archiveId, String archiveName ) throws IOException {
+		archives.put( workspaceId + Fields.PROP_SEPARATOR + archiveId, archiveName );
+		commit();
+	}
+
+	@Override
+	public synchronized void removeArchive( String workspaceId, String archiveId ) throws IOException {
+		archives.remove( workspaceId + Fields.PROP_SEPARATOR + archiveId );
+		commit();
+	}
+
+	@Override
+	public synchronized void store( Collection<Workspace> workspaces ) throws IOException {
+
+		for( Workspace workspace : workspaces ) {
+			String workspaceId = workspace.getWorkspaceId();
+			names.put( workspaceId, workspace.getName() );
+			if( workspace.getLastseen() != null )
+				lastseen.put( workspaceId, workspace.getLastseen().getTime() );
+
+			// archives are kept up to date by point updates, except for imported workspaces
+			for( Map.Entry<String, String> archive : workspace.getArchives().entrySet() ) {
+				String key = workspaceId + Fields.PROP_SEPARATOR + archive.getKey();
+				if( archive.getValue().equals(archives.get(key)) == false )
+					archives.put( key, archive.getValue() );
+			}
+		}
+		commit();
+
+		if( FSYNC_NONE.equals(Fields.FSYNC_POLICY) == false )
+			sync();
+	}
+
+	@Override
+	public synchronized void sync() throws IOException {
+		commit();
+		try {
+			store.sync();
+		} catch (IllegalStateException e) {
+			throw new IOException("Cannot sync workspace store " + storeFile, e);
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+
+		if( store == null )
+			return;
+
+		try {
+			store.close();
+		} catch (IllegalStateException e) {
+			throw new IOException("Cannot close workspace store " + storeFile, e);
+		}
+		finally {
+			store = null;
+		}
+	}
+
+	private void open() throws IOException {
+
+		Files.createDirectories( storeFile.toPath().getParent() );
+		try {
+			store = new MVStore.Builder().fileName( storeFile.getAbsolutePath() ).open();
+			names = store.openMap(MAP_NAMES);
+			lastseen = store.openMap(MAP_LASTSEEN);
+			archives = store.openMap(MAP_ARCHIVES);
+		} catch (IllegalStateException e) {
+			throw new IOException("Cannot open workspace store " + storeFile, e);
+		}
+	}
+
+	private void commit() throws IOException {
+		try {
+			store.commit();
+		} catch (IllegalStateException e) {
+			throw new IOException("Cannot commit to workspace store " + storeFile, e);
+		}
+	}
+
+}
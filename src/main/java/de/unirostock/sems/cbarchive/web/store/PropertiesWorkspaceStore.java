@@ -0,0 +1,398 @@
+package de.unirostock.sems.cbarchive.web.store;
+/*
+CombineArchiveWeb - a WebInterface to read/create/write/manipulate/... COMBINE archives
+Copyright (C) 2014  SEMS Group
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import de.binfalse.bflog.LOGGER;
+import de.unirostock.sems.cbarchive.web.Fields;
+import de.unirostock.sems.cbarchive.web.Tools;
+import de.unirostock.sems.cbarchive.web.WorkspaceManager;
+import de.unirostock.sems.cbarchive.web.dataholder.Workspace;
+
+/**
+ * Stores the workspace index in the central settings file (CaWeb.settings),
+ * single changes are appended to a {@link SettingsJournal} and folded into the
+ * settings file with every {@link #store(Collection)}.
+ *
+ * The settings are mirrored in a sorted map, so single workspaces can be
+ * materialized with a range lookup of their keys.
+ *
+ * Note, that the mirror holds the name, last-seen date and archive names of
+ * every workspace for the life of the process, because each snapshot is written
+ * from it. Dropping idle workspaces from the {@link WorkspaceManager} therefore
+ * does not bound the memory of this store, it grows with the whole index. The
+ * default {@link MVStoreWorkspaceStore} keeps the memory of idle workspaces bounded.
+ */
+public class PropertiesWorkspaceStore implements WorkspaceStore {
+
+	/** formats the dates like {@link Tools#DATE_FORMATTER}, which must not be shared between threads */
+	private static final ThreadLocal<SimpleDateFormat> DATE_FORMAT = new ThreadLocal<SimpleDateFormat>() {
+		@Override
+		protected SimpleDateFormat initialValue() {
+			return new SimpleDateFormat( Tools.DATE_FORMATTER.toPattern() );
+		}
+	};
+
+	private final File settingsFile;
+	private final File journalFile;
+	private final SettingsJournal journal;
+
+	/** sorted mirror of the settings file including all journaled changes, covers all workspaces */
+	private final TreeMap<String, String> settings = new TreeMap<String, String>();
+	private boolean loaded = false;
+
+	/** time in seconds to wait for a running compaction on close */
+	private static final long CLOSE_TIMEOUT = 60;
+
+	private final Lock compactionLock = new ReentrantLock();
+	/** runs the compactions, which are triggered by a growing journal */
+	private final ExecutorService compactor = Executors.newSingleThreadExecutor( new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "settings-compaction");
+			// close() waits for a running compaction
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	/** true, while a compaction is queued or running */
+	private boolean compactionPending = false;
+
+	public PropertiesWorkspaceStore( File settingsFile, File journalFile ) {
+		this.settingsFile = settingsFile;
+		this.journalFile = journalFile;
+		this.journal = new SettingsJournal(journalFile);
+	}
+
+	@Override
+	public Map<String, Long> loadIndex() throws IOException {
+
+		if( open() ) {
+			// fold the journal into a fresh snapshot
+			LOGGER.info( "Compact settings journal into central settings file." );
+			store( new ArrayList<Workspace>() );
+		}
+
+		Map<String, Long> index = new HashMap<String, Long>();
+		synchronized (this) {
+			for( Map.Entry<String, String> entry : prefixMap(Fields.PROP_WORKSPACE_PRE).entrySet() ) {
+				String key = entry.getKey();
+
+				if( key.startsWith(Fields.PROP_LASTSEEN_PRE) ) {
+					// last-seen field of the workspace
+					Date lastseen = parseDate( entry.getValue() );
+					index.put( key.substring(Fields.PROP_LASTSEEN_PRE.length()), lastseen != null ? lastseen.getTime() : null );
+				}
+				else {
+					// name field of the workspace
+					String workspaceId = key.substring( Fields.PROP_WORKSPACE_PRE.length() );
+					if( index.containsKey(workspaceId) == false )
+						index.put( workspaceId, null );
+				}
+			}
+		}
+
+		// a broken date must not let the workspace expire right away
+		long now = new Date().getTime();
+		for( Map.Entry<String, Long> entry : index.entrySet() ) {
+			if( entry.getValue() == null ) {
+				LOGGER.warn("No valid last-seen date for workspace ", entry.getKey(), ", counting from now on");
+				entry.setValue(now);
+			}
+		}
+
+		return index;
+	}
+
+	@Override
+	public synchronized Workspace loadWorkspace( String workspaceId ) throws IOException {
+
+		String name = settings.get( Fields.PROP_WORKSPACE_PRE + workspaceId );
+		String lastseen = settings.get( Fields.PROP_LASTSEEN_PRE + workspaceId );
+		if( name == null && lastseen == null )
+			return null;
+
+		Workspace workspace = new Workspace( workspaceId, name );
+		Date date = lastseen != null ? parseDate(lastseen) : null;
+		if( date != null )
+			workspace.setLastseen(date);
+		else
+			// like in the index, a missing or broken date counts from now on
+			workspace.updateLastseen();
+
+		String archivePrefix = Fields.PROP_ARCHIVE_PRE + workspaceId + Fields.PROP_SEPARATOR;
+		for( Map.Entry<String, String> entry : prefixMap(archivePrefix).entrySet() ) {
+			String archiveId = entry.getKey().substring( archivePrefix.length() );
+			if( archiveId.isEmpty() || archiveId.contains(Fields.PROP_SEPARATOR) ) {
+				LOGGER.warn("confusing properties key found ", entry.getKey());
+				continue;
+			}
+
+			workspace.getArchives().put( archiveId, entry.getValue() );
+		}
+
+		return workspace;
+	}
+
+	@Override
+	public void putWorkspace( Workspace workspace ) throws IOException {
+		append( Fields.PROP_WORKSPACE_PRE + workspace.getWorkspaceId(), workspace.getName() );
+		append( Fields.PROP_LASTSEEN_PRE + workspace.getWorkspaceId(), formatDate(workspace.getLastseen()) );
+	}
+
+	@Override
+	public void removeWorkspace( Workspace workspace ) throws IOException {
+
+		String workspaceId = workspace.getWorkspaceId();
+		append( Fields.PROP_WORKSPACE_PRE + workspaceId, null );
+		append( Fields.PROP_LASTSEEN_PRE + workspaceId, null );
+		for( String archiveId : workspace.getArchives().keySet() )
+			append( Fields.PROP_ARCHIVE_PRE + workspaceId + Fields.PROP_SEPARATOR + archiveId, null );
+	}
+
+	@Override
+	public void putArchive( String workspaceId, String archiveId, String archiveName ) throws IOException {
+		append( Fields.PROP_ARCHIVE_PRE + workspaceId + Fields.PROP_SEPARATOR + archiveId, archiveName );
+	}
+
+	@Override
+	public void removeArchive( String workspaceId, String archiveId ) throws IOException {
+		append( Fields.PROP_ARCHIVE_PRE + workspaceId + Fields.PROP_SEPARATOR + archiveId, null );
+	}
+
+	/**
+	 * Writes a new settings file and compacts the journal.
+	 * All changes, which are not part of the snapshot, end up in the fresh journal.
+	 */
+	@Override
+	public void store( Collection<Workspace> workspaces ) throws IOException {
+
+		compactionLock.lock();
+		try {
+			// never overwrite the settings file with an empty mirror
+			open();
+
+			Properties properties = new Properties();
+			File rotatedJournal = null;
+
+			LOGGER.info("store settings to disk");
+
+			synchronized (this) {
+				// catch up on the fields, which are not journaled
+				for( Workspace workspace : workspaces ) {
+					settings.put( Fields.PROP_WORKSPACE_PRE + workspace.getWorkspaceId(), workspace.getName() );
+					if( workspace.getLastseen() != null )
+						settings.put( Fields.PROP_LASTSEEN_PRE + workspace.getWorkspaceId(), formatDate(workspace.getLastseen()) );
+				}
+
+				// all changes from now on go to a fresh journal, the rotated one is covered by this snapshot
+				rotatedJournal = journal.rotate();
+				properties.putAll(settings);
+
+				LOGGER.debug("Constructed settings file with ", properties.size(), " entries");
+			}
+
+			// first write settings to temp file
+			File temp = File.createTempFile( Fields.TEMP_FILE_PREFIX, "settings.conf");
+			FileOutputStream output = new FileOutputStream( temp );
+			properties.store(output, null);
+
+			// flush'n'close
+			output.flush();
+			if( FSYNC_NONE.equals(Fields.FSYNC_POLICY) == false )
+				output.getFD().sync();
+			output.close();
+			LOGGER.debug("wrote ", temp, " (", temp.length(), " Bytes) to disk.");
+
+			// create directories (just in case...)
+			Files.createDirectories( settingsFile.toPath().getParent() );
+
+			// replace actual settings file, with newly written one
+			try {
+				LOGGER.info("Trying to move new settings file in place ", settingsFile);
+				Files.move( temp.toPath(), settingsFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+				LOGGER.info("done moving.");
+			}
+			catch (AtomicMoveNotSupportedException e) {
+				LOGGER.info(e, "Atomic move of settings file failed. Fallback to normal operation.");
+				Files.move( temp.toPath(), settingsFile.toPath(), StandardCopyOption.REPLACE_EXISTING );
+			}
+
+			// the snapshot contains all journaled changes
+			if( rotatedJournal != null )
+				Files.deleteIfExists( rotatedJournal.toPath() );
+		}
+		finally {
+			compactionLock.unlock();
+		}
+	}
+
+	@Override
+	public void sync() throws IOException {
+		journal.sync();
+	}
+
+	@Override
+	public void close() throws IOException {
+
+		// a running compaction is still writing the settings file
+		compactor.shutdown();
+		try {
+			if( compactor.awaitTermination(CLOSE_TIMEOUT, TimeUnit.SECONDS) == false )
+				LOGGER.warn("settings compaction did not finish within ", CLOSE_TIMEOUT, " seconds");
+		} catch (InterruptedException e) {
+			LOGGER.warn(e, "Interrupted while waiting for the settings compaction");
+		}
+
+		journal.close();
+	}
+
+	/**
+	 * Reads the settings file and replays the journal on top, if not done yet.
+	 *
+	 * @return true, if the settings should be compacted
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private synchronized boolean open() throws IOException {
+
+		if( loaded )
+			return false;
+
+		Properties properties = new Properties();
+		if( !settingsFile.exists() || !settingsFile.canRead() ) {
+			// in case the file cannot be read
+			LOGGER.warn( "Cannot read central settings file ", settingsFile, ". Only workspaces from the journal will be available" );
+		}
+		else {
+			// open file
+			InputStream input = new FileInputStream(settingsFile);
+			// load properties
+			try {
+				properties.load(input);
+			}
+			finally {
+				input.close();
+			}
+		}
+
+		// replay all changes, which did not make it into the snapshot
+		long replayed = 0;
+		try {
+			// journal left over from an interrupted compaction
+			replayed += SettingsJournal.replay( SettingsJournal.getRotatedFile(journalFile), properties );
+			replayed += SettingsJournal.replay( journalFile, properties );
+		} catch (IOException e) {
+			LOGGER.error( e, "Error while replaying the settings journal." );
+		}
+		LOGGER.info( "Replayed ", replayed, " records from the settings journal." );
+
+		for( String key : properties.stringPropertyNames() )
+			settings.put( key, properties.getProperty(key) );
+		loaded = true;
+
+		return replayed > 0 || !settingsFile.exists();
+	}
+
+	/**
+	 * Appends a change of the settings to the journal and applies it to the mirror. A value of null removes the key.
+	 * Queues a compaction, if the journal grew too large.
+	 *
+	 * @param key the properties key
+	 * @param value the new value or null
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private synchronized void append( String key, String value ) throws IOException {
+
+		if( value != null ) {
+			settings.put(key, value);
+			journal.put(key, value);
+		}
+		else {
+			settings.remove(key);
+			journal.remove(key);
+		}
+
+		if( journal.getRecordCount() >= Fields.JOURNAL_COMPACT_THRESHOLD && compactionPending == false ) {
+			compactionPending = true;
+			try {
+				compactor.execute( new Runnable() {
+					@Override
+					public void run() {
+						try {
+							WorkspaceManager.getInstance().storeSettings();
+						}
+						finally {
+							compactionDone();
+						}
+					}
+				});
+			}
+			catch (RejectedExecutionException e) {
+				// closing, the last store cycle compacts the journal
+				compactionPending = false;
+			}
+		}
+	}
+
+	private synchronized void compactionDone() {
+		compactionPending = false;
+	}
+
+	private SortedMap<String, String> prefixMap( String prefix ) {
+		return settings.subMap( prefix, prefix + Character.MAX_VALUE );
+	}
+
+	private static String formatDate( Date date ) {
+		return DATE_FORMAT.get().format(date);
+	}
+
+	private static Date parseDate( String date ) {
+		try {
+			return DATE_FORMAT.get().parse(date);
+		} catch (ParseException e) {
+			LOGGER.warn(e, "Cannot parse date", date);
+			return null;
+		}
+	}
+
+}
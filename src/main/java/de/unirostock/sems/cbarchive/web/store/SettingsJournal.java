@@ -0,0 +1,253 @@
+package de.unirostock.sems.cbarchive.web.store;
+/*
+CombineArchiveWeb - a WebInterface to read/create/write/manipulate/... COMBINE archives
+Copyright (C) 2014  SEMS Group
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+import java.util.zip.CRC32;
+
+import de.binfalse.bflog.LOGGER;
+import de.unirostock.sems.cbarchive.web.Fields;
+
+/**
+ * Append-only journal for the central settings file.
+ *
+ * Every mutation of the workspace index is written as one small record
+ * ({@code +key value} or {@code -key}), instead of rewriting the whole settings file.
+ * Each record is prefixed with the CRC32 of its content as 8 hex digits, so a record,
+ * which was cut off by a crash, is detected and skipped on replay.
+ * The journal gets folded into the settings snapshot by {@link PropertiesWorkspaceStore#store(java.util.Collection)}.
+ */
+public class SettingsJournal implements Closeable {
+
+	public static final char OP_PUT = '+';
+	public static final char OP_REMOVE = '-';
+
+	private static final char SEPARATOR = '\t';
+	/** length of the checksum in front of each record */
+	private static final int CHECKSUM_LENGTH = 8;
+
+	private final File file;
+	private FileOutputStream stream = null;
+	private Writer writer = null;
+	private long records = 0L;
+
+	public SettingsJournal( File file ) {
+		this.file = file;
+	}
+
+	/**
+	 * Appends a record, which sets the key to the given value.
+	 *
+	 * @param key the key
+	 * @param value the value
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public synchronized void put( String key, String value ) throws IOException {
+		append( OP_PUT + encode(key) + SEPARATOR + encode(value) );
+	}
+
+	/**
+	 * Appends a record, which removes the key.
+	 *
+	 * @param key the key
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public synchronized void remove( String key ) throws IOException {
+		append( OP_REMOVE + encode(key) );
+	}
+
+	/**
+	 * Returns the number of records written since the last rotation.
+	 *
+	 * @return the record count
+	 */
+	public synchronized long getRecordCount() {
+		return records;
+	}
+
+	/**
+	 * Moves the current journal aside, so new records end up in a fresh file.
+	 * The returned file has to be removed, as soon as its records are persisted in a snapshot.
+	 *
+	 * @return the rotated journal file or null, if there was no journal
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public synchronized File rotate() throws IOException {
+
+		close();
+		records = 0L;
+
+		if( file.exists() == false )
+			return null;
+
+		File rotated = getRotatedFile(file);
+		if( rotated.exists() ) {
+			// a previous compaction did not finish, keep its records in front of ours
+			// (the extra line break terminates a possibly torn last record)
+			Files.write( rotated.toPath(), new byte[] {'\n'}, StandardOpenOption.APPEND );
+			Files.write( rotated.toPath(), Files.readAllBytes(file.toPath()), StandardOpenOption.APPEND );
+			Files.delete( file.toPath() );
+		}
+		else
+			Files.move( file.toPath(), rotated.toPath(), StandardCopyOption.REPLACE_EXISTING );
+
+		return rotated;
+	}
+
+	/**
+	 * Forces all written records to the storage device.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public synchronized void sync() throws IOException {
+		if( writer != null ) {
+			writer.flush();
+			stream.getChannel().force(false);
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if( writer != null ) {
+			writer.flush();
+			writer.close();
+			writer = null;
+			stream = null;
+		}
+	}
+
+	private void append( String record ) throws IOException {
+
+		if( writer == null ) {
+			Files.createDirectories( file.toPath().getParent() );
+			stream = new FileOutputStream(file, true);
+			writer = new BufferedWriter( new OutputStreamWriter(stream, Fields.CHARSET) );
+		}
+
+		writer.write( checksum(record) );
+		writer.write(record);
+		writer.write('\n');
+		writer.flush();
+		records++;
+	}
+
+	// --------------------------------------------------------------------------------
+
+	/**
+	 * Returns the file, a journal gets moved to while it is compacted.
+	 *
+	 * @param journalFile the journal file
+	 * @return the rotated file
+	 */
+	public static File getRotatedFile( File journalFile ) {
+		return new File( journalFile.getParentFile(), journalFile.getName() + ".old" );
+	}
+
+	/**
+	 * Applies all records of a journal file to the properties.
+	 * Incomplete records, e.g. caused by a crash while writing, are skipped.
+	 *
+	 * @param journalFile the journal file
+	 * @param properties the properties to apply the records to
+	 * @return the number of applied records
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static long replay( File journalFile, Properties properties ) throws IOException {
+
+		if( journalFile == null || journalFile.exists() == false )
+			return 0L;
+
+		long applied = 0L;
+		BufferedReader reader = new BufferedReader( new InputStreamReader(new FileInputStream(journalFile), Fields.CHARSET) );
+		try {
+			String line = null;
+			while( (line = reader.readLine()) != null ) {
+
+				if( line.isEmpty() )
+					continue;
+
+				if( line.charAt(0) != OP_PUT && line.charAt(0) != OP_REMOVE ) {
+					// the content has to match its checksum, otherwise the record is incomplete
+					if( line.length() <= CHECKSUM_LENGTH || line.substring(0, CHECKSUM_LENGTH).equals( checksum(line.substring(CHECKSUM_LENGTH)) ) == false ) {
+						LOGGER.warn("skipping broken journal record in ", journalFile, ": ", line);
+						continue;
+					}
+					line = line.substring(CHECKSUM_LENGTH);
+				}
+				// else: record without checksum, written before checksums were introduced
+
+				char op = line.charAt(0);
+				int separator = line.indexOf(SEPARATOR);
+
+				try {
+					if( op == OP_PUT && separator > 1 ) {
+						properties.setProperty( decode(line.substring(1, separator)), decode(line.substring(separator + 1)) );
+						applied++;
+						continue;
+					}
+					else if( op == OP_REMOVE && separator == -1 && line.length() > 1 ) {
+						properties.remove( decode(line.substring(1)) );
+						applied++;
+						continue;
+					}
+				}
+				catch (IllegalArgumentException e) {
+					// record was not written completely, e.g. due to a crash
+				}
+
+				LOGGER.warn("skipping broken journal record in ", journalFile, ": ", line);
+			}
+		}
+		finally {
+			reader.close();
+		}
+
+		return applied;
+	}
+
+	private static String checksum( String record ) throws IOException {
+		CRC32 crc = new CRC32();
+		byte[] data = record.getBytes(Fields.CHARSET);
+		crc.update(data, 0, data.length);
+		return String.format( "%08x", crc.getValue() );
+	}
+
+	private static String encode( String value ) throws IOException {
+		return URLEncoder.encode( value != null ? value : "", Fields.CHARSET );
+	}
+
+	private static String decode( String value ) throws IOException {
+		return URLDecoder.decode( value, Fields.CHARSET );
+	}
+
+}
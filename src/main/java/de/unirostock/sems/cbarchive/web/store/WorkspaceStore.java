@@ -0,0 +1,115 @@
+package de.unirostock.sems.cbarchive.web.store;
+/*
+CombineArchiveWeb - a WebInterface to read/create/write/manipulate/... COMBINE archives
+Copyright (C) 2014  SEMS Group
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+
+import de.unirostock.sems.cbarchive.web.dataholder.Workspace;
+
+/**
+ * Persistent backend of the workspace index, i.e. all workspaces with their
+ * name, last-seen date and the names of their archives.
+ *
+ * The WorkspaceManager only keeps a compact index of all workspace ids and materializes
+ * the workspaces on first access, a store has to persist the single changes and
+ * has to be able to load single workspaces on demand.
+ */
+public interface WorkspaceStore extends Closeable {
+
+	public static final String TYPE_PROPERTIES = "properties";
+	public static final String TYPE_MVSTORE = "mvstore";
+
+	/** never fsync, leave it to the operating system */
+	public static final String FSYNC_NONE = "none";
+	/** fsync full snapshots of the index */
+	public static final String FSYNC_SNAPSHOT = "snapshot";
+	/** fsync snapshots and every batch of single changes */
+	public static final String FSYNC_BATCH = "batch";
+
+	/**
+	 * Reads the ids of all persisted workspaces, without materializing the workspaces.
+	 *
+	 * @return map of all workspace ids to their last-seen timestamp in ms (0 if unknown)
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public Map<String, Long> loadIndex() throws IOException;
+
+	/**
+	 * Materializes one workspace including its archives.
+	 *
+	 * @param workspaceId the workspace id
+	 * @return the workspace or null, if there is no such workspace
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public Workspace loadWorkspace( String workspaceId ) throws IOException;
+
+	/**
+	 * Persists name and last-seen date of a workspace.
+	 *
+	 * @param workspace the workspace
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public void putWorkspace( Workspace workspace ) throws IOException;
+
+	/**
+	 * Removes a workspace and all its archives.
+	 *
+	 * @param workspace the workspace
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public void removeWorkspace( Workspace workspace ) throws IOException;
+
+	/**
+	 * Persists an archive of a workspace, overrides the name of an existing one.
+	 *
+	 * @param workspaceId the workspace id
+	 * @param archiveId the archive id
+	 * @param archiveName the archive name
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public void putArchive( String workspaceId, String archiveId, String archiveName ) throws IOException;
+
+	/**
+	 * Removes an archive of a workspace.
+	 *
+	 * @param workspaceId the workspace id
+	 * @param archiveId the archive id
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public void removeArchive( String workspaceId, String archiveId ) throws IOException;
+
+	/**
+	 * Persists the state of the given (materialized) workspaces and flushes the store,
+	 * mainly to catch up on the last-seen dates, which are not stored on every access.
+	 *
+	 * @param workspaces the materialized workspaces
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public void store( Collection<Workspace> workspaces ) throws IOException;
+
+	/**
+	 * Forces all written changes to the storage device.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public void sync() throws IOException;
+
+}
@@ -0,0 +1,257 @@
+package de.unirostock.sems.cbarchive.web.store;
+/*
+CombineArchiveWeb - a WebInterface to read/create/write/manipulate/... COMBINE archives
+Copyright (C) 2014  SEMS Group
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import de.binfalse.bflog.LOGGER;
+import de.unirostock.sems.cbarchive.web.Fields;
+import de.unirostock.sems.cbarchive.web.dataholder.Workspace;
+
+/**
+ * Decorator, which takes the writes of the workspace index off the request threads.
+ *
+ * Changes are only queued and marked dirty, a writer thread waits for the
+ * configured window to collect further changes and persists them as one batch.
+ * Multiple changes of the same key within one window are coalesced to the last one.
+ */
+public class WriteBehindWorkspaceStore implements WorkspaceStore {
+
+	private final WorkspaceStore delegate;
+	private final long window;
+
+	/** pending changes, indexed by the key they change */
+	private LinkedHashMap<String, Change> pending = new LinkedHashMap<String, Change>();
+	/** serializes the application of changes to the delegate */
+	private final Lock applyLock = new ReentrantLock();
+
+	private final Thread writerThread;
+	private volatile boolean running = true;
+
+	public WriteBehindWorkspaceStore( WorkspaceStore delegate, long window ) {
+		this.delegate = delegate;
+		this.window = window;
+
+		writerThread = new Thread( new Writer(), "workspace-store-writer" );
+		writerThread.setDaemon(true);
+		writerThread.start();
+	}
+
+	@Override
+	public Map<String, Long> loadIndex() throws IOException {
+		flush();
+		return delegate.loadIndex();
+	}
+
+	@Override
+	public Workspace loadWorkspace( String workspaceId ) throws IOException {
+		flush();
+		return delegate.loadWorkspace(workspaceId);
+	}
+
+	@Override
+	public void putWorkspace( final Workspace workspace ) throws IOException {
+		enqueue( "workspace:" + workspace.getWorkspaceId(), new Change() {
+			@Override
+			public void apply() throws IOException {
+				delegate.putWorkspace(workspace);
+			}
+		});
+	}
+
+	@Override
+	public void removeWorkspace( final Workspace workspace ) throws IOException {
+		enqueue( "workspace:" + workspace.getWorkspaceId(), new Change() {
+			@Override
+			public void apply() throws IOException {
+				delegate.removeWorkspace(workspace);
+			}
+		});
+	}
+
+	@Override
+	public void putArchive( final String workspaceId, final String archiveId, final String archiveName ) throws IOException {
+		enqueue( "archive:" + workspaceId + Fields.PROP_SEPARATOR + archiveId, new Change() {
+			@Override
+			public void apply() throws IOException {
+				delegate.putArchive(workspaceId, archiveId, archiveName);
+			}
+		});
+	}
+
+	@Override
+	public void removeArchive( final String workspaceId, final String archiveId ) throws IOException {
+		enqueue( "archive:" + workspaceId + Fields.PROP_SEPARATOR + archiveId, new Change() {
+			@Override
+			public void apply() throws IOException {
+				delegate.removeArchive(workspaceId, archiveId);
+			}
+		});
+	}
+
+	@Override
+	public void store( Collection<Workspace> workspaces ) throws IOException {
+
+		applyLock.lock();
+		try {
+			flush();
+			delegate.store(workspaces);
+		}
+		finally {
+			applyLock.unlock();
+		}
+	}
+
+	@Override
+	public void sync() throws IOException {
+		flush();
+		delegate.sync();
+	}
+
+	@Override
+	public void close() throws IOException {
+
+		synchronized (this) {
+			running = false;
+			notifyAll();
+		}
+
+		try {
+			writerThread.join( window * 10 );
+		} catch (InterruptedException e) {
+			LOGGER.warn(e, "Interrupted while waiting for the workspace store writer");
+		}
+
+		// persist everything, that is left
+		flush();
+		synchronized (this) {
+			if( !pending.isEmpty() )
+				LOGGER.error("Lost ", pending.size(), " changes of the workspace index, which could not be written");
+		}
+		delegate.close();
+	}
+
+	/**
+	 * Applies all pending changes to the underlying store as one batch.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public void flush() throws IOException {
+
+		applyLock.lock();
+		try {
+			LinkedHashMap<String, Change> changes = null;
+			synchronized (this) {
+				if( pending.isEmpty() )
+					return;
+
+				changes = pending;
+				pending = new LinkedHashMap<String, Change>();
+			}
+
+			LinkedHashMap<String, Change> failed = new LinkedHashMap<String, Change>();
+			for( Map.Entry<String, Change> change : changes.entrySet() ) {
+				try {
+					change.getValue().apply();
+				} catch (IOException e) {
+					// a full store only upserts, so removals would get lost -> retry with the next batch
+					LOGGER.error(e, "Cannot write change of the workspace index, will retry");
+					failed.put( change.getKey(), change.getValue() );
+				}
+			}
+
+			if( !failed.isEmpty() )
+				requeue(failed);
+
+			if( FSYNC_BATCH.equals(Fields.FSYNC_POLICY) )
+				delegate.sync();
+
+			LOGGER.debug("wrote ", changes.size(), " coalesced changes of the workspace index");
+		}
+		finally {
+			applyLock.unlock();
+		}
+	}
+
+	private synchronized void enqueue( String key, Change change ) {
+
+		// the last change of a key wins, but it moves to the end to keep the order between keys
+		pending.remove(key);
+		pending.put(key, change);
+		notifyAll();
+	}
+
+	/**
+	 * Puts failed changes back in front of the pending ones.
+	 * Changes of the same key enqueued in the meantime are newer and supersede them.
+	 *
+	 * @param failed the failed changes
+	 */
+	private synchronized void requeue( LinkedHashMap<String, Change> failed ) {
+
+		for( Map.Entry<String, Change> change : pending.entrySet() ) {
+			failed.remove( change.getKey() );
+			failed.put( change.getKey(), change.getValue() );
+		}
+		pending = failed;
+		notifyAll();
+	}
+
+	private synchronized void awaitChanges() throws InterruptedException {
+		while( pending.isEmpty() && running )
+			wait();
+	}
+
+	// --------------------------------------------------------------------------------
+
+	private interface Change {
+		public void apply() throws IOException;
+	}
+
+	private class Writer implements Runnable {
+
+		@Override
+		public void run() {
+
+			while( running ) {
+				try {
+					awaitChanges();
+					// collect further changes, before writing
+					Thread.sleep(window);
+				} catch (InterruptedException e) {
+					// close() takes care of the remaining changes
+					LOGGER.warn(e, "workspace store writer got interrupted");
+					return;
+				}
+
+				try {
+					flush();
+				} catch (IOException e) {
+					LOGGER.error(e, "Cannot sync workspace index");
+				}
+			}
+		}
+
+	}
+
+}
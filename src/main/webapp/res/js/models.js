@@ -2166,8 +2166,11 @@ var StatsView = Backbone.View.extend({
 		this.model.fetch({
 			success: function(model, response, options) {
 				self.render();
-				if( self.$el.is(":visible") && self.timeout == null )
-					self.timeout = setTimeout( function() { self.fetch(); }, model.has("maxStatsAge") ? (model.get("maxStatsAge")+5) * 1000 : 30000 );
+				if( self.$el.is(":visible") && self.timeout == null ) {
+					// newer stats are on their way, ask again soon
+					var delay = model.get("refreshing") == true ? 2000 : (model.has("maxStatsAge") ? (model.get("maxStatsAge")+5) * 1000 : 30000);
+					self.timeout = setTimeout( function() { self.fetch(); }, delay );
+				}
 			},
 			error: function(model, response, options) {
 				self.$el.fadeOut();
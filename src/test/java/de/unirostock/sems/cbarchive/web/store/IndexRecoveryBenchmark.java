@@ -0,0 +1,98 @@
+package de.unirostock.sems.cbarchive.web.store;
+/*
+CombineArchiveWeb - a WebInterface to read/create/write/manipulate/... COMBINE archives
+Copyright (C) 2014  SEMS Group
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import de.binfalse.bflog.LOGGER;
+import de.unirostock.sems.cbarchive.CombineArchive;
+import de.unirostock.sems.cbarchive.web.Fields;
+import de.unirostock.sems.cbarchive.web.dataholder.Workspace;
+
+/**
+ * Measures the {@link IndexRecovery} on a synthetic storage tree. Not a unit test, run it
+ * after {@code mvn test-compile} with the test classpath:
+ *
+ * {@code java -cp target/test-classes:target/classes:<dependencies> de.unirostock.sems.cbarchive.web.store.IndexRecoveryBenchmark <storage dir> [<archives> [<archives per workspace> [<parallelism>]]]}
+ *
+ * By default 50000 archives are generated, 50 per workspace. An existing storage
+ * directory is not touched, the benchmark then only recovers it.
+ */
+public class IndexRecoveryBenchmark {
+
+	private static final int DEFAULT_ARCHIVES = 50000;
+	private static final int DEFAULT_ARCHIVES_PER_WORKSPACE = 50;
+
+	public static void main( String[] args ) throws Exception {
+
+		LOGGER.setMinLevel(LOGGER.INFO);
+		if( args.length < 1 ) {
+			LOGGER.error("Usage: IndexRecoveryBenchmark <storage dir> [<archives> [<archives per workspace> [<parallelism>]]]");
+			System.exit(1);
+		}
+
+		File storage = new File(args[0]);
+		int archives = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_ARCHIVES;
+		int perWorkspace = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_ARCHIVES_PER_WORKSPACE;
+		int parallelism = args.length > 3 ? Integer.parseInt(args[3]) : 0;
+
+		if( storage.exists() )
+			LOGGER.info("Storage ", storage, " exists, skip generating archives");
+		else
+			generate(storage, archives, perWorkspace);
+
+		long start = System.currentTimeMillis();
+		IndexRecovery recovery = new IndexRecovery( storage, parallelism );
+		List<Workspace> workspaces = recovery.recover( Collections.<String>emptySet() );
+		long duration = System.currentTimeMillis() - start;
+
+		LOGGER.info("recovered ", workspaces.size(), " workspaces, ", recovery.getProgress(), " in ", duration, "ms (",
+				duration > 0 ? recovery.getArchivesScanned() * 1000 / duration : recovery.getArchivesScanned(), " archives/s)");
+	}
+
+	/**
+	 * Copies one empty template archive all over a new storage tree.
+	 */
+	private static void generate( File storage, int archives, int perWorkspace ) throws Exception {
+
+		File template = File.createTempFile(Fields.TEMP_FILE_PREFIX, "template");
+		template.delete();
+		CombineArchive archive = new CombineArchive(template);
+		archive.pack();
+		archive.close();
+
+		long start = System.currentTimeMillis();
+		File workspaceDir = null;
+		for( int i = 0; i < archives; i++ ) {
+			if( i % perWorkspace == 0 ) {
+				workspaceDir = new File( storage, UUID.randomUUID().toString() );
+				Files.createDirectories( workspaceDir.toPath() );
+			}
+			Files.copy( template.toPath(), new File(workspaceDir, UUID.randomUUID().toString()).toPath(), StandardCopyOption.REPLACE_EXISTING );
+		}
+		template.delete();
+
+		LOGGER.info("generated ", archives, " archives in ", storage, " within ", System.currentTimeMillis() - start, "ms");
+	}
+
+}